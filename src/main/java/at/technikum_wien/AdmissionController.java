@@ -0,0 +1,104 @@
+package at.technikum_wien;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how many requests are executed at the same time. Requests beyond the limit wait in a short
+ * bounded queue; once that is full too (or the wait times out) they are rejected right away, so a
+ * slow database leads to fast 503 responses instead of an ever growing number of blocked threads.
+ * Battles have a budget of their own because they wait for an opponent for a long time and must not
+ * use up the slots of cheap requests like {@code GET /deck}; how large it is depends on what a
+ * waiting battle ties up in the server mode (see {@link ServerConfig#maxInFlightBattles}).
+ */
+public class AdmissionController {
+    private final Budget requests;
+    private final Budget battles;
+
+    public AdmissionController(int maxRequests, int maxBattles, int queueSize, long queueTimeoutMs) {
+        this.requests = new Budget(maxRequests, queueSize, queueTimeoutMs);
+        this.battles = new Budget(maxBattles, queueSize, queueTimeoutMs);
+    }
+
+    /**
+     * The limits from {@link ServerConfig} for a server mode ("blocking", "virtual" or "nio").
+     */
+    public static AdmissionController forServerMode(String mode) {
+        return new AdmissionController(ServerConfig.MAX_IN_FLIGHT_REQUESTS,
+                ServerConfig.maxInFlightBattles(mode, ServerConfig.NIO_WORKERS),
+                ServerConfig.ADMISSION_QUEUE_SIZE, ServerConfig.ADMISSION_QUEUE_TIMEOUT_MS);
+    }
+
+    public Budget requests() {
+        return requests;
+    }
+
+    public Budget battles() {
+        return battles;
+    }
+
+    /**
+     * A number of execution slots plus a bounded number of waiters. Based on a {@link Semaphore},
+     * so waiting virtual threads do not pin their carrier.
+     */
+    public static class Budget {
+        private final int limit;
+        private final Semaphore permits;
+        private final int maxWaiting;
+        private final long waitTimeoutMs;
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final LongAdder rejected = new LongAdder();
+
+        public Budget(int limit, int maxWaiting, long waitTimeoutMs) {
+            this.limit = limit;
+            this.permits = new Semaphore(limit);
+            this.maxWaiting = maxWaiting;
+            this.waitTimeoutMs = waitTimeoutMs;
+        }
+
+        /**
+         * Takes a slot, waiting at most the queue timeout if all are in use.
+         *
+         * @return false if the request has to be rejected; {@link #release()} must not be called then
+         */
+        public boolean tryAcquire() {
+            if (permits.tryAcquire()) {
+                return true;
+            }
+            if (waiting.incrementAndGet() > maxWaiting) {
+                waiting.decrementAndGet();
+                rejected.increment();
+                return false;
+            }
+            try {
+                if (permits.tryAcquire(waitTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiting.decrementAndGet();
+            }
+            rejected.increment();
+            return false;
+        }
+
+        public void release() {
+            permits.release();
+        }
+
+        public int inFlight() {
+            return limit - permits.availablePermits();
+        }
+
+        public int waiting() {
+            return waiting.get();
+        }
+
+        public long rejected() {
+            return rejected.sum();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package at.technikum_wien;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access and error log that never blocks request threads. Records are put into a lock-free ring
+ * buffer of preallocated slots and formatted and written by a single background thread. If the
+ * buffer is full, records are dropped (and counted) instead of waiting for the writer.
+ *
+ * <p>Access lines are key=value pairs, e.g.
+ * {@code ts=... method=GET route=/users/{username} status=200 bytes=154 latency_us=912 db_us=640}.
+ */
+public class AsyncLog {
+    private static final int ACCESS = 0;
+    private static final int ERROR = 1;
+    private static final long IDLE_PARK_NANOS = 5_000_000;
+
+    private static final AsyncLog DEFAULT = new AsyncLog(ServerConfig.LOG_BUFFER_SIZE, ServerConfig.LOG_SAMPLE_RATE,
+            "none".equalsIgnoreCase(ServerConfig.LOG_OUTPUT) ? Writer.nullWriter()
+                    : new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+
+    static {
+        DEFAULT.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(DEFAULT::close, "log-shutdown"));
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final double sampleRate;
+    private final Writer output;
+    // Next position producers claim / next position the writer thread reads
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity   number of slots, rounded up to a power of two
+     * @param sampleRate fraction of successful requests that are logged (errors are always logged)
+     */
+    public AsyncLog(int capacity, double sampleRate, Writer output) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(i);
+        }
+        this.mask = size - 1;
+        this.sampleRate = sampleRate;
+        this.output = new BufferedWriter(output);
+        this.writerThread = new Thread(this::writeLoop, "log-writer");
+        this.writerThread.setDaemon(true);
+    }
+
+    public void start() {
+        writerThread.start();
+    }
+
+    /**
+     * Logs one handled request to the default log.
+     */
+    public static void access(String method, String route, int status, long bytes, long latencyNanos, long dbNanos) {
+        DEFAULT.logAccess(method, route, status, bytes, latencyNanos, dbNanos);
+    }
+
+    /**
+     * Logs an error to the default log; the stack trace is printed by the writer thread.
+     */
+    public static void error(String where, Throwable error) {
+        DEFAULT.logError(where, error);
+    }
+
+    /**
+     * Number of records that were dropped because the default log's buffer was full.
+     */
+    public static long droppedRecords() {
+        return DEFAULT.dropped();
+    }
+
+    public void logAccess(String method, String route, int status, long bytes, long latencyNanos, long dbNanos) {
+        if (status < 500 && sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        long position = claim();
+        if (position < 0) {
+            return;
+        }
+        Slot slot = slots[(int) (position & mask)];
+        slot.type = ACCESS;
+        slot.timestamp = System.currentTimeMillis();
+        slot.method = method;
+        slot.route = route;
+        slot.status = status;
+        slot.bytes = bytes;
+        slot.latencyNanos = latencyNanos;
+        slot.dbNanos = dbNanos;
+        slot.sequence = position + 1;
+    }
+
+    public void logError(String where, Throwable error) {
+        long position = claim();
+        if (position < 0) {
+            return;
+        }
+        Slot slot = slots[(int) (position & mask)];
+        slot.type = ERROR;
+        slot.timestamp = System.currentTimeMillis();
+        slot.route = where;
+        slot.error = error;
+        slot.sequence = position + 1;
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes all pending records and stops the writer thread.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Claims the next free slot (multi-producer, bounded queue after D. Vyukov): a slot is free
+     * for position p when its sequence equals p.
+     *
+     * @return the claimed position, or -1 if the buffer is full
+     */
+    private long claim() {
+        long position = tail.get();
+        while (true) {
+            long sequence = slots[(int) (position & mask)].sequence;
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                // The writer has not consumed this slot of the previous round yet
+                dropped.increment();
+                return -1;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (running || head != tail.get()) {
+            if (!drain()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Writes all published records and flushes the output.
+     *
+     * @return false if there was nothing to write
+     */
+    private boolean drain() {
+        boolean wrote = false;
+        try {
+            while (true) {
+                Slot slot = slots[(int) (head & mask)];
+                if (slot.sequence != head + 1) {
+                    break;
+                }
+                write(slot);
+                slot.method = null;
+                slot.route = null;
+                slot.error = null;
+                slot.sequence = head + slots.length;
+                head++;
+                wrote = true;
+            }
+            if (wrote) {
+                output.flush();
+            }
+        } catch (IOException e) {
+            // Nothing sensible left to report to
+        }
+        return wrote;
+    }
+
+    private void write(Slot slot) throws IOException {
+        output.write("ts=");
+        output.write(Instant.ofEpochMilli(slot.timestamp).toString());
+        if (slot.type == ERROR) {
+            output.write(" level=ERROR where=");
+            output.write(slot.route);
+            output.write(" error=\"");
+            output.write(String.valueOf(slot.error).replace('"', '\''));
+            output.write("\"\n");
+            if (slot.error != null) {
+                slot.error.printStackTrace(new PrintWriter(output));
+            }
+            return;
+        }
+        output.write(" method=");
+        output.write(slot.method);
+        output.write(" route=");
+        output.write(slot.route);
+        output.write(" status=");
+        output.write(Integer.toString(slot.status));
+        output.write(" bytes=");
+        output.write(Long.toString(slot.bytes));
+        output.write(" latency_us=");
+        output.write(Long.toString(slot.latencyNanos / 1000));
+        output.write(" db_us=");
+        output.write(Long.toString(slot.dbNanos / 1000));
+        output.write('\n');
+    }
+
+    private static class Slot {
+        private volatile long sequence;
+        private int type;
+        private long timestamp;
+        private String method;
+        private String route;
+        private int status;
+        private long bytes;
+        private long latencyNanos;
+        private long dbNanos;
+        private Throwable error;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
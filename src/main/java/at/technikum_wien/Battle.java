@@ -5,6 +5,8 @@ import at.technikum_wien.cards.MonsterCard;
 import at.technikum_wien.cards.SpellCard;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Battle {
     private Player player1;
@@ -17,6 +19,16 @@ public class Battle {
     }
 
     public void start() throws IOException {
+        try {
+            fight();
+        } finally {
+            // Release both waiting request threads even if sending a result failed
+            player1.finishBattle();
+            player2.finishBattle();
+        }
+    }
+
+    private void fight() throws IOException {
         battleLog.append("Battle between ").append(player1.getUsername()).append(" and ").append(player2.getUsername()).append("\n\n");
 
         int round = 0;
@@ -52,28 +64,25 @@ public class Battle {
 
         // Determine the winner
         String result;
+        boolean recorded;
         if (player1.hasCards() && !player2.hasCards()) {
             result = player1.getUsername() + " wins the battle!";
-            updateElo(player1.getUsername(), player2.getUsername(), true);
+            recorded = updateElo(player1.getUsername(), player2.getUsername(), true);
         } else if (!player1.hasCards() && player2.hasCards()) {
             result = player2.getUsername() + " wins the battle!";
-            updateElo(player2.getUsername(), player1.getUsername(), true);
+            recorded = updateElo(player2.getUsername(), player1.getUsername(), true);
         } else {
             result = "The battle ended in a draw!";
-            updateElo(player1.getUsername(), player2.getUsername(), false);
+            recorded = updateElo(player1.getUsername(), player2.getUsername(), false);
         }
 
         battleLog.append(result);
+        if (!recorded) {
+            battleLog.append("\nThe result could not be recorded, no ELO or cards have changed.");
+        }
 
         player1.sendBattleResult(battleLog.toString());
         player2.sendBattleResult(battleLog.toString());
-
-        synchronized (player1.getBattleLock()) {
-            player1.getBattleLock().notifyAll();
-        }
-        synchronized (player2.getBattleLock()) {
-            player2.getBattleLock().notifyAll();
-        }
     }
 
     private double calculateDamage(Card attacker, Card defender, Player attackingPlayer) {
@@ -205,12 +214,54 @@ public class Battle {
         return false;
     }
 
-    private void updateElo(String winner, String loser, boolean isWin) {
-        if (isWin) {
-            UserDatabase.updateUserElo(winner, 3);
-            UserDatabase.updateUserElo(loser, -5);
+    /**
+     * Stores the outcome: card transfers, ELO and games played in one transaction.
+     *
+     * @return false if nothing was stored (e.g. a won card changed owner during the battle)
+     */
+    private boolean updateElo(String winner, String loser, boolean isWin) {
+        return Storage.get().users().recordBattleResult(winner, loser, isWin, netTransfers());
+    }
+
+    /**
+     * Cards that changed owner over the whole battle. A card that went back and forth is not
+     * transferred at all.
+     */
+    List<CardTransfer> netTransfers() {
+        List<CardTransfer> transfers = new ArrayList<>();
+        for (Card card : player1.wonCards()) {
+            transfers.add(new CardTransfer(card.getId(), player2.getUsername(), player1.getUsername()));
+        }
+        for (Card card : player2.wonCards()) {
+            transfers.add(new CardTransfer(card.getId(), player1.getUsername(), player2.getUsername()));
+        }
+        return transfers;
+    }
+
+    /**
+     * A card that changes owner as the result of a battle.
+     */
+    public static class CardTransfer {
+        private final String cardId;
+        private final String fromUser;
+        private final String toUser;
+
+        public CardTransfer(String cardId, String fromUser, String toUser) {
+            this.cardId = cardId;
+            this.fromUser = fromUser;
+            this.toUser = toUser;
+        }
+
+        public String getCardId() {
+            return cardId;
+        }
+
+        public String getFromUser() {
+            return fromUser;
+        }
+
+        public String getToUser() {
+            return toUser;
         }
-        UserDatabase.incrementGamesPlayed(winner);
-        UserDatabase.incrementGamesPlayed(loser);
     }
 }
@@ -3,27 +3,62 @@ package at.technikum_wien;
 import java.io.IOException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class BattleHandler {
     private static final BlockingQueue<Player> queue = new LinkedBlockingQueue<>();
+    // ReentrantLock instead of synchronized so virtual threads never pin their carrier here
+    private static final ReentrantLock queueLock = new ReentrantLock();
+    private static final AtomicInteger activeBattles = new AtomicInteger();
+    private static volatile ThreadFactory battleThreads = Thread.ofPlatform().name("battle-", 0).factory();
+
+    /**
+     * Sets the factory used to start battle threads, e.g. a virtual thread factory.
+     */
+    public static void setThreadFactory(ThreadFactory threadFactory) {
+        battleThreads = threadFactory;
+    }
 
     public static void enqueuePlayer(Player player) {
-        synchronized (queue) {
+        Player player1;
+        Player player2;
+        queueLock.lock();
+        try {
             queue.add(player);
-            if (queue.size() >= 2) {
-                Player player1 = queue.poll();
-                Player player2 = queue.poll();
-                if (player1 != null && player2 != null) {
-                    Battle battle = new Battle(player1, player2);
-                    new Thread(() -> {
-                        try {
-                            battle.start();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }).start();
-                }
+            if (queue.size() < 2) {
+                return;
             }
+            player1 = queue.poll();
+            player2 = queue.poll();
+        } finally {
+            queueLock.unlock();
+        }
+
+        if (player1 != null && player2 != null) {
+            Battle battle = new Battle(player1, player2);
+            battleThreads.newThread(() -> {
+                activeBattles.incrementAndGet();
+                try {
+                    battle.start();
+                } catch (IOException e) {
+                    AsyncLog.error("BattleHandler.enqueuePlayer", e);
+                } finally {
+                    activeBattles.decrementAndGet();
+                }
+            }).start();
         }
     }
+
+    /**
+     * Number of players waiting for an opponent.
+     */
+    public static int queueDepth() {
+        return queue.size();
+    }
+
+    public static int activeBattles() {
+        return activeBattles.get();
+    }
 }
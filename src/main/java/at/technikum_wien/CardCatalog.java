@@ -0,0 +1,122 @@
+package at.technikum_wien;
+
+import at.technikum_wien.cards.Card;
+import at.technikum_wien.cards.MonsterCard;
+import at.technikum_wien.cards.SpellCard;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide catalog of all cards, keyed by card id. Cards never change once
+ * {@link PackageDatabase#createPackage} has inserted them, so every card is built once and the
+ * same instance is shared by all stacks, decks and trades. Stack and deck queries only read card
+ * ids and resolve them here; cards created by another process are loaded lazily on first use.
+ */
+public class CardCatalog {
+    private static final String SELECT_CARDS = "SELECT id, name, damage, type, element FROM cards WHERE id = ANY(?)";
+
+    private static final Map<String, Card> CARDS = new ConcurrentHashMap<>();
+
+    /**
+     * Adds newly created cards (after their transaction has been committed).
+     */
+    public static void register(List<Card> cards) {
+        for (Card card : cards) {
+            // Ids not written the way PostgreSQL returns them are loaded on first use instead
+            if (normalize(card.getId()).equals(card.getId())) {
+                CARDS.putIfAbsent(card.getId(), card);
+            }
+        }
+    }
+
+    /**
+     * Returns the card with this id, loading it from the database if it is not in the catalog yet.
+     *
+     * @return the card, or null if it does not exist
+     */
+    public static Card get(String cardId) throws SQLException {
+        String id = normalize(cardId);
+        Card card = CARDS.get(id);
+        if (card == null) {
+            try (Connection conn = Database.getConnection()) {
+                load(conn, List.of(id));
+            }
+            card = CARDS.get(id);
+        }
+        return card;
+    }
+
+    /**
+     * Resolves card ids (as read from the database) to cards, in the same order. Ids missing from
+     * the catalog are loaded with a single query.
+     */
+    public static List<Card> resolve(Connection conn, List<String> cardIds) throws SQLException {
+        List<String> missing = null;
+        for (String id : cardIds) {
+            if (!CARDS.containsKey(id)) {
+                if (missing == null) {
+                    missing = new ArrayList<>();
+                }
+                missing.add(id);
+            }
+        }
+        if (missing != null) {
+            load(conn, missing);
+        }
+        List<Card> cards = new ArrayList<>(cardIds.size());
+        for (String id : cardIds) {
+            Card card = CARDS.get(id);
+            if (card != null) {
+                cards.add(card);
+            }
+        }
+        return cards;
+    }
+
+    public static int size() {
+        return CARDS.size();
+    }
+
+    static void clear() {
+        CARDS.clear();
+    }
+
+    private static void load(Connection conn, List<String> cardIds) throws SQLException {
+        UUID[] ids = new UUID[cardIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.fromString(cardIds.get(i));
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(SELECT_CARDS)) {
+            stmt.setArray(1, conn.createArrayOf("uuid", ids));
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                Card card = fromRow(rs.getString("id"), rs.getString("name"), rs.getDouble("damage"),
+                        rs.getString("type"), rs.getString("element"));
+                CARDS.putIfAbsent(card.getId(), card);
+            }
+        }
+    }
+
+    static Card fromRow(String id, String name, double damage, String type, String element) {
+        if ("Monster".equalsIgnoreCase(type)) {
+            return new MonsterCard(id, name, damage, element);
+        } else {
+            return new SpellCard(id, name, damage, element);
+        }
+    }
+
+    /**
+     * Ids as PostgreSQL returns them (lower case), so ids from requests and from queries match.
+     */
+    private static String normalize(String cardId) {
+        return UUID.fromString(cardId).toString();
+    }
+}
@@ -2,177 +2,411 @@ package at.technikum_wien;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import at.technikum_wien.cards.Card;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
 public class ClientHandler implements Runnable {
     private final Socket clientSocket;
+    private final OutputStream responseOutput;
+    private final HttpRequestParser parser =
+            new HttpRequestParser(ServerConfig.MAX_HEADER_BYTES, ServerConfig.MAX_BODY_BYTES);
+    // Bytes read from the socket: [bufferStart, bufferEnd) has not been handled yet
+    private ByteBuffer buffer;
+    private int bufferStart;
+    private int bufferEnd;
+    // Writes the responses; also tracks whether the connection may be reused
+    private HttpResponse response;
+
+    /**
+     * Handler of one route; gets the ClientHandler of the connection the request arrived on.
+     */
+    @FunctionalInterface
+    interface RouteHandler {
+        void handle(ClientHandler handler, HttpRequest request, Router.Match<RouteHandler> route,
+                    HttpResponse response) throws IOException;
+    }
+
+    /**
+     * Keyset page of a listing: entries with an id greater than {@code after}, at most {@code limit}.
+     */
+    static final class Page {
+        private final UUID after;
+        private final int limit;
+
+        private Page(UUID after, int limit) {
+            this.after = after;
+            this.limit = limit;
+        }
+
+        /**
+         * @return the requested page, or null if neither parameter is given (stream the whole listing)
+         * @throws IllegalArgumentException if a parameter is malformed or the limit is out of range
+         */
+        static Page parse(String after, String limit) {
+            if (after == null && limit == null) {
+                return null;
+            }
+            UUID afterId = (after == null || after.isEmpty()) ? Storage.FIRST_KEY : UUID.fromString(after);
+            int size = (limit == null) ? ServerConfig.PAGE_DEFAULT_LIMIT : Integer.parseInt(limit);
+            if (size < 1 || size > ServerConfig.PAGE_MAX_LIMIT) {
+                throw new IllegalArgumentException("limit out of range: " + size);
+            }
+            return new Page(afterId, size);
+        }
+
+        UUID after() {
+            return after;
+        }
+
+        int limit() {
+            return limit;
+        }
+    }
+
+    /**
+     * A listing streamed row by row into a {@link HttpResponse.JsonArrayStream}.
+     */
+    @FunctionalInterface
+    private interface StreamedListing {
+        boolean stream(Database.RowConsumer<Object> consumer) throws IOException;
+    }
+
+    // Users, cards, decks, packages and trades; PostgreSQL or in memory, see -Dmctg.storage
+    private static final Storage STORAGE = Storage.get();
+
+    // Replaced by Main once the server mode is known (it can also be given as argument)
+    private static volatile AdmissionController admission = AdmissionController.forServerMode(ServerConfig.SERVER_MODE);
+
+    // ------------------- Routing Table ------------------- //
+    private static final Router<RouteHandler> ROUTES = new Router<RouteHandler>()
+            .add("GET", "/", (h, req, route, res) -> h.sendResponse(res, "Hello, World!", 200))
+            // Register user
+            .add("POST", "/users", (h, req, route, res) ->
+                    h.handleUserRegistration(req.bodyAsString(), res))
+            // Login user
+            .add("POST", "/sessions", (h, req, route, res) ->
+                    h.handleUserLogin(req.bodyAsString(), res))
+            // Logout user
+            .add("DELETE", "/sessions", (h, req, route, res) ->
+                    h.handleUserLogout(req.header("Authorization"), res))
+            // Create package (admin only)
+            .add("POST", "/packages", (h, req, route, res) ->
+                    h.handlePackageCreation(req.bodyAsString(), req.header("Authorization"), res))
+            // Create many packages at once (admin only), JSON array or NDJSON
+            .add("POST", "/packages/bulk", (h, req, route, res) ->
+                    h.handleBulkPackageCreation(req.body(), req.header("Content-Type"),
+                            req.header("Authorization"), res))
+            // Acquire (buy) package
+            .add("POST", "/transactions/packages", (h, req, route, res) ->
+                    h.handlePackagePurchase(req.header("Authorization"), res))
+            // Show all user cards (streamed, or one page with ?after=&limit=)
+            .add("GET", "/cards", (h, req, route, res) ->
+                    h.handleGetUserCards(req.queryParam("after"), req.queryParam("limit"),
+                            req.header("Authorization"), res))
+            // Show user deck
+            .add("GET", "/deck", (h, req, route, res) ->
+                    h.handleGetDeck(req.header("Authorization"), res))
+            // Configure deck (PUT new card IDs)
+            .add("PUT", "/deck", (h, req, route, res) ->
+                    h.handleSetDeck(req.bodyAsString(), req.header("Authorization"), res))
+            // Get user profile by username
+            .add("GET", "/users/{username}", (h, req, route, res) ->
+                    h.handleGetUser(route.param("username"), req.header("Authorization"), res))
+            // Update user data (bio, image)
+            .add("PUT", "/users/{username}", (h, req, route, res) ->
+                    h.handleUpdateUser(route.param("username"), req.bodyAsString(),
+                            req.header("Authorization"), res))
+            // Delete user
+            .add("DELETE", "/users/{username}", (h, req, route, res) ->
+                    h.handleDeleteUser(route.param("username"), req.header("Authorization"), res))
+            // Set booster card
+            .add("PUT", "/users/{username}/booster", (h, req, route, res) ->
+                    h.handleSetBoosterCard(route.param("username"), req.bodyAsString(),
+                            req.header("Authorization"), res))
+            // Optional route to set user coin balance
+            .add("PUT", "/users/{username}/coins", (h, req, route, res) ->
+                    h.handleUpdateUserCoins(route.param("username"), req.bodyAsString(),
+                            req.header("Authorization"), res))
+            // Start battle
+            .add("POST", "/battles", (h, req, route, res) ->
+                    h.handleBattleRequest(req.header("Authorization"), res))
+            // Show scoreboard
+            .add("GET", "/scoreboard", (h, req, route, res) ->
+                    h.handleGetScoreboard(req.queryParam("offset"), req.queryParam("limit"),
+                            req.header("Authorization"), res))
+            // Rank of one user
+            .add("GET", "/scoreboard/rank/{username}", (h, req, route, res) ->
+                    h.handleGetScoreboardRank(route.param("username"), req.header("Authorization"), res))
+            // Prometheus metrics
+            .add("GET", "/metrics", (h, req, route, res) -> h.handleGetMetrics(res))
+            // Show stats for current user
+            .add("GET", "/stats", (h, req, route, res) ->
+                    h.handleGetUserStats(req.header("Authorization"), res))
+            // Create new trading deal
+            .add("POST", "/tradings", (h, req, route, res) ->
+                    h.handleCreateTradingDeal(req.bodyAsString(), req.header("Authorization"), res))
+            // Retrieve all trading deals (streamed, or one page with ?after=&limit=)
+            .add("GET", "/tradings", (h, req, route, res) ->
+                    h.handleGetTradingDeals(req.queryParam("after"), req.queryParam("limit"),
+                            req.header("Authorization"), res))
+            // Open deals the caller's tradeable cards can satisfy
+            .add("GET", "/tradings/matches", (h, req, route, res) ->
+                    h.handleGetTradingMatches(req.header("Authorization"), res))
+            // Accept a specific trading deal
+            .add("POST", "/tradings/{dealId}", (h, req, route, res) ->
+                    h.handleAcceptTradingDeal(route.param("dealId"), req.bodyAsString(),
+                            req.header("Authorization"), res));
 
     public ClientHandler(Socket socket) {
         this.clientSocket = socket;
+        this.responseOutput = null;
+    }
+
+    /**
+     * Handles requests that have already been read from the network (used by {@link NioServer}).
+     * Responses are written to the given output stream instead of a socket.
+     */
+    ClientHandler(OutputStream responseOutput) {
+        this.clientSocket = null;
+        this.responseOutput = responseOutput;
     }
 
     @Override
     public void run() {
-        InputStream input = null;
         OutputStream output = null;
-        BufferedReader reader = null;
-        BufferedWriter writer = null;
 
         try {
-            input = clientSocket.getInputStream();
-            output = clientSocket.getOutputStream();
-            reader = new BufferedReader(new InputStreamReader(input));
-            writer = new BufferedWriter(new OutputStreamWriter(output));
-
-            String requestLine = reader.readLine();
-            System.out.println("Request Line: " + requestLine);
-
-            // Read and parse HTTP headers
-            Map<String, String> headers = new HashMap<>();
-            String headerLine;
-            while ((headerLine = reader.readLine()) != null && !headerLine.isEmpty()) {
-                System.out.println("Header: " + headerLine);
-                String[] headerParts = headerLine.split(": ", 2);
-                if (headerParts.length == 2) {
-                    headers.put(headerParts[0], headerParts[1]);
+            InputStream input = clientSocket.getInputStream();
+            // Idle timeout between two requests on a persistent connection
+            clientSocket.setSoTimeout(ServerConfig.KEEP_ALIVE_TIMEOUT_MS);
+            output = new BufferedOutputStream(clientSocket.getOutputStream());
+            response = new HttpResponse(output);
+            buffer = ByteBuffer.allocate(4096);
+
+            // Requests on one connection (including pipelined ones) are handled strictly in order
+            HttpRequest request = new HttpRequest();
+            int handledRequests = 0;
+            boolean connectionOpen = true;
+            while (connectionOpen && readHead(input, request)) {
+                handledRequests++;
+                boolean allowKeepAlive = handledRequests < ServerConfig.MAX_KEEP_ALIVE_REQUESTS;
+                Router.Match<RouteHandler> route = route(request);
+                if (route == null) {
+                    // Unknown route: answer before reading the body
+                    connectionOpen = rejectUnknownRoute(request, allowKeepAlive);
+                } else if (readBody(input, request)) {
+                    connectionOpen = handleRequest(request, route, allowKeepAlive);
+                } else {
+                    break;
                 }
-            }
-
-            // Read body if Content-Length is set
-            String body = "";
-            if (headers.containsKey("Content-Length")) {
-                int contentLength = Integer.parseInt(headers.get("Content-Length"));
-                char[] bodyChars = new char[contentLength];
-                int read = reader.read(bodyChars, 0, contentLength);
-                if (read != -1) {
-                    body = new String(bodyChars, 0, read);
+                bufferStart = request.start() + request.length();
+                if (bufferStart == bufferEnd) {
+                    bufferStart = 0;
+                    bufferEnd = 0;
                 }
             }
+        } catch (HttpRequestParser.ParseException e) {
+            response.setKeepAlive(false);
+            try {
+                sendResponse(response, e.getMessage(), e.getStatusCode());
+            } catch (IOException ignored) {
+                // Client is gone
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle connection, simply close it
+        } catch (IOException e) {
+            AsyncLog.error("ClientHandler.run", e);
+        } finally {
+            closeQuietly(output);
+            closeQuietly(clientSocket);
+        }
+    }
 
-            ObjectMapper objectMapper = new ObjectMapper();
+    /**
+     * Looks up the route for a parsed request head.
+     *
+     * @return the route, or null if there is none
+     */
+    static Router.Match<RouteHandler> route(HttpRequest request) {
+        return ROUTES.match(request.method(), request.path());
+    }
 
-            boolean keepConnectionOpen = false;
+    /**
+     * Handles one request that was parsed and routed by the caller.
+     *
+     * @param allowKeepAlive false if the connection has to be closed after this request
+     */
+    void handle(HttpRequest request, Router.Match<RouteHandler> route, boolean allowKeepAlive) throws IOException {
+        response = new HttpResponse(responseOutput);
+        if (route == null) {
+            rejectUnknownRoute(request, allowKeepAlive);
+        } else {
+            handleRequest(request, route, allowKeepAlive);
+        }
+    }
 
-            // Handle the request line
-            if (requestLine != null && !requestLine.isEmpty()) {
-                String[] requestParts = requestLine.split(" ");
-                if (requestParts.length < 3) {
-                    sendResponse(writer, "Bad Request", 400);
-                } else {
-                    String method = requestParts[0];
-                    String path = requestParts[1];
-
-                    // ------------------- Routing Logic ------------------- //
-                    if (method.equals("GET") && path.equals("/")) {
-                        sendResponse(writer, "Hello, World!", 200);
-
-                    } else if (method.equals("POST") && path.equals("/users")) {
-                        // Register user
-                        handleUserRegistration(body, writer, objectMapper);
-
-                    } else if (method.equals("POST") && path.equals("/sessions")) {
-                        // Login user
-                        handleUserLogin(body, writer, objectMapper);
-
-                    } else if (method.equals("POST") && path.equals("/packages")) {
-                        // Create package (admin only)
-                        handlePackageCreation(body, headers.get("Authorization"), writer, objectMapper);
-
-                    } else if (method.equals("POST") && path.equals("/transactions/packages")) {
-                        // Acquire (buy) package
-                        handlePackagePurchase(headers.get("Authorization"), writer, objectMapper);
-
-                    } else if (method.equals("GET") && path.equals("/cards")) {
-                        // Show all user cards
-                        handleGetUserCards(headers.get("Authorization"), writer, objectMapper);
-
-                    } else if (method.equals("GET") && path.equals("/deck")) {
-                        // Show user deck
-                        handleGetDeck(headers.get("Authorization"), writer, objectMapper);
-
-                    } else if (method.equals("PUT") && path.equals("/deck")) {
-                        // Configure deck (PUT new card IDs)
-                        handleSetDeck(body, headers.get("Authorization"), writer, objectMapper);
-
-                    } else if (method.equals("GET") && path.matches("/users/[^/]+")) {
-                        // Get user profile by username
-                        String username = path.substring("/users/".length());
-                        handleGetUser(username, writer, objectMapper, headers);
-
-                    } else if (method.equals("PUT") && path.matches("/users/[^/]+$")) {
-                        // Update user data (bio, image)
-                        String username = path.substring("/users/".length());
-                        handleUpdateUser(username, body, headers.get("Authorization"), writer, objectMapper);
-
-                    } else if (method.equals("PUT") && path.matches("/users/[^/]+/booster")) {
-                        // Set booster card
-                        String userPart = path.substring("/users/".length());
-                        String username = userPart.substring(0, userPart.indexOf("/booster"));
-                        handleSetBoosterCard(username, body, headers.get("Authorization"), writer, objectMapper);
-
-                    } else if (method.equals("POST") && path.equals("/battles")) {
-                        // Start battle
-                        keepConnectionOpen = true;
-                        handleBattleRequest(headers.get("Authorization"), writer, objectMapper);
-
-                    } else if (method.equals("GET") && path.equals("/scoreboard")) {
-                        // Show scoreboard
-                        handleGetScoreboard(headers.get("Authorization"), writer, objectMapper);
-
-                    } else if (method.equals("GET") && path.equals("/stats")) {
-                        // Show stats for current user
-                        handleGetUserStats(headers.get("Authorization"), writer, objectMapper);
-
-                    } else if (method.equals("POST") && path.equals("/tradings")) {
-                        // Create new trading deal
-                        handleCreateTradingDeal(body, headers.get("Authorization"), writer, objectMapper);
-
-                    } else if (method.equals("GET") && path.equals("/tradings")) {
-                        // Retrieve all trading deals
-                        handleGetTradingDeals(headers.get("Authorization"), writer, objectMapper);
-
-                    } else if (method.equals("POST") && path.matches("/tradings/[^/]+")) {
-                        // Accept a specific trading deal
-                        String dealId = path.substring("/tradings/".length());
-                        handleAcceptTradingDeal(dealId, body, headers.get("Authorization"), writer, objectMapper);
-
-                    }
-                    // ------------ NEW: DELETE user ------------
-                    else if (method.equals("DELETE") && path.matches("/users/[^/]+$")) {
-                        String username = path.substring("/users/".length());
-                        handleDeleteUser(username, headers.get("Authorization"), writer, objectMapper);
-
-                    }
-                    // ---------- NEW: Update user coins ----------
-                    else if (method.equals("PUT") && path.matches("/users/[^/]+/coins")) {
-                        // Optional route to set user coin balance
-                        String userPart = path.substring("/users/".length());
-                        String username = userPart.substring(0, userPart.indexOf("/coins"));
-                        handleUpdateUserCoins(username, body, headers.get("Authorization"), writer, objectMapper);
-
-                    } else {
-                        // Route not found
-                        sendResponse(writer, "Not Found", 404);
-                    }
-                }
+    /**
+     * Whether the connection may be reused after the last handled request.
+     */
+    boolean isKeepAlive() {
+        return response.isKeepAlive();
+    }
+
+    /**
+     * Reads from the socket until the head of the next request is in {@link #buffer}.
+     *
+     * @return false if the client closed the connection
+     */
+    private boolean readHead(InputStream input, HttpRequest request) throws IOException {
+        while (!parser.parseHead(buffer, bufferStart, bufferEnd, request)) {
+            if (!fill(input, request)) {
+                return false;
             }
+        }
+        return true;
+    }
 
-            if (!keepConnectionOpen) {
-                if (reader != null) reader.close();
-                if (writer != null) writer.close();
-                if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
+    /**
+     * Reads from the socket until the body of the current request is complete.
+     *
+     * @return false if the client closed the connection
+     */
+    private boolean readBody(InputStream input, HttpRequest request) throws IOException {
+        while (!HttpRequestParser.isComplete(request, bufferEnd)) {
+            if (!fill(input, request)) {
+                return false;
             }
+            if (request.buffer() != buffer || request.origin() != bufferStart) {
+                // The bytes were moved, so the head has to be located again
+                parser.parseHead(buffer, bufferStart, bufferEnd, request);
+            }
+        }
+        return true;
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Reads more bytes from the socket, making room in the buffer first if it is full.
+     *
+     * @return false if the client closed the connection
+     */
+    private boolean fill(InputStream input, HttpRequest request) throws IOException {
+        if (bufferEnd == buffer.capacity()) {
+            int pending = bufferEnd - bufferStart;
+            int needed = request.isHeadComplete() ? request.start() - bufferStart + request.length()
+                    : (bufferStart > 0 ? pending + 1 : buffer.capacity() * 2);
+            makeRoom(Math.max(needed, pending + 1));
+        }
+        int read = input.read(buffer.array(), bufferEnd, buffer.capacity() - bufferEnd);
+        if (read == -1) {
+            return false;
+        }
+        bufferEnd += read;
+        return true;
+    }
+
+    /**
+     * Moves the unhandled bytes to the front of the buffer, growing it if they need more space.
+     */
+    private void makeRoom(int capacity) {
+        byte[] target = (capacity > buffer.capacity()) ? new byte[capacity] : buffer.array();
+        System.arraycopy(buffer.array(), bufferStart, target, 0, bufferEnd - bufferStart);
+        bufferEnd -= bufferStart;
+        bufferStart = 0;
+        if (target != buffer.array()) {
+            buffer = ByteBuffer.wrap(target);
+        }
+    }
+
+    /**
+     * Handles one complete request.
+     *
+     * @param allowKeepAlive false if the connection has to be closed after this request
+     * @return true if the connection stays open for another request
+     */
+    private boolean handleRequest(HttpRequest request, Router.Match<RouteHandler> route,
+                                  boolean allowKeepAlive) throws IOException {
+        long start = System.nanoTime();
+        StorageTime.reset();
+        response.setKeepAlive(allowKeepAlive && isKeepAliveRequested(request.version(), request.header("Connection")));
+        response.setAcceptEncoding(request.header("Accept-Encoding"));
+
+        AdmissionController.Budget budget = "/battles".equals(route.template())
+                ? admission.battles() : admission.requests();
+        if (!budget.tryAcquire()) {
+            // Overloaded: closing the connection also frees its thread in blocking mode
+            response.setKeepAlive(false);
+            response.sendServiceUnavailable(ServerConfig.RETRY_AFTER_SECONDS);
+            recordRequest(request, route.template(), start);
+            return false;
+        }
+        try {
+            route.handler().handle(this, request, route, response);
+        } finally {
+            budget.release();
+        }
+        recordRequest(request, route.template(), start);
+        return response.isKeepAlive();
+    }
+
+    private void recordRequest(HttpRequest request, String routeTemplate, long start) {
+        long latency = System.nanoTime() - start;
+        Metrics.recordRequest(request.method(), routeTemplate, response.status(), response.bodyBytes(), latency);
+        AsyncLog.access(request.method(), routeTemplate, response.status(), response.bodyBytes(),
+                latency, StorageTime.nanos());
+    }
+
+    /**
+     * Limits for concurrently executed requests, shared by all connections.
+     */
+    static AdmissionController admission() {
+        return admission;
+    }
+
+    /**
+     * Sets the limits for concurrently executed requests; call before the server accepts connections.
+     */
+    static void setAdmission(AdmissionController admissionController) {
+        admission = admissionController;
+    }
+
+    /**
+     * Answers a request without route with 404. The body is never read, so the connection can
+     * only be reused if there is none.
+     */
+    private boolean rejectUnknownRoute(HttpRequest request, boolean allowKeepAlive) throws IOException {
+        response.setKeepAlive(allowKeepAlive && request.contentLength() == 0
+                && isKeepAliveRequested(request.version(), request.header("Connection")));
+        response.setAcceptEncoding(null);
+        long start = System.nanoTime();
+        StorageTime.reset();
+        sendResponse(response, "Not Found", 404);
+        // The path itself is not recorded, so unknown URLs cannot flood log and metrics with distinct values
+        recordRequest(request, "<unmatched>", start);
+        return response.isKeepAlive();
+    }
+
+    /**
+     * HTTP/1.1 connections are persistent unless the client sends "Connection: close",
+     * HTTP/1.0 connections only if the client explicitly asks for keep-alive.
+     */
+    static boolean isKeepAliveRequested(String httpVersion, String connectionHeader) {
+        if (connectionHeader != null) {
+            if (connectionHeader.trim().equalsIgnoreCase("close")) {
+                return false;
+            }
+            if (connectionHeader.trim().equalsIgnoreCase("keep-alive")) {
+                return true;
+            }
         }
+        return "HTTP/1.1".equals(httpVersion);
     }
 
     // handleUserRegistration, handleUserLogin, handlePackageCreation,
@@ -181,372 +415,505 @@ public class ClientHandler implements Runnable {
     // handleGetScoreboard, handleGetUserStats, handleCreateTradingDeal,
     // handleGetTradingDeals, handleAcceptTradingDeal, etc.
 
-    private void handleUserRegistration(String body, BufferedWriter writer, ObjectMapper objectMapper) throws IOException {
+    private void handleUserRegistration(String body, HttpResponse response) throws IOException {
         try {
-            Map<String, String> userData = objectMapper.readValue(body, new TypeReference<>() {});
+            Map<String, String> userData = JsonCodec.STRING_MAP_READER.readValue(body);
             String username = userData.get("Username");
             String password = userData.get("Password");
 
             if (username == null || password == null || username.isEmpty() || password.isEmpty()) {
-                sendResponse(writer, "Bad Request", 400);
+                sendResponse(response, "Bad Request", 400);
                 return;
             }
 
-            boolean userCreated = UserDatabase.createUser(username, password);
+            boolean userCreated = STORAGE.users().createUser(username, password);
             if (userCreated) {
-                sendResponse(writer, "Created", 201);
+                sendResponse(response, "Created", 201);
             } else {
-                sendResponse(writer, "Conflict", 409);
+                sendResponse(response, "Conflict", 409);
             }
         } catch (JsonProcessingException e) {
-            sendResponse(writer, "Bad Request", 400);
+            sendResponse(response, "Bad Request", 400);
         }
     }
 
-    private void handleUserLogin(String body, BufferedWriter writer, ObjectMapper objectMapper) throws IOException {
+    private void handleUserLogin(String body, HttpResponse response) throws IOException {
         try {
-            Map<String, String> credentials = objectMapper.readValue(body, new TypeReference<>() {});
+            Map<String, String> credentials = JsonCodec.STRING_MAP_READER.readValue(body);
             String username = credentials.get("Username");
             String password = credentials.get("Password");
 
             if (username == null || password == null || username.isEmpty() || password.isEmpty()) {
-                sendResponse(writer, "Bad Request", 400);
+                sendResponse(response, "Bad Request", 400);
                 return;
             }
 
-            if (UserDatabase.authenticateUser(username, password)) {
+            if (STORAGE.users().authenticateUser(username, password)) {
                 String token = username + "-mtcgToken";
-                boolean tokenUpdated = UserDatabase.updateToken(username, token);
+                boolean tokenUpdated = STORAGE.users().updateToken(username, token);
                 if (tokenUpdated) {
-                    Map<String, String> response = new HashMap<>();
-                    response.put("token", token);
-                    String jsonResponse = objectMapper.writeValueAsString(response);
-                    sendJsonResponse(writer, jsonResponse, 200);
+                    Map<String, String> tokenResponse = new HashMap<>();
+                    tokenResponse.put("token", token);
+                    sendJsonResponse(response, JsonCodec.STRING_MAP_WRITER, tokenResponse, 200);
                 } else {
-                    sendResponse(writer, "Internal Server Error", 500);
+                    sendResponse(response, "Internal Server Error", 500);
                 }
             } else {
-                sendResponse(writer, "Unauthorized", 401);
+                sendResponse(response, "Unauthorized", 401);
             }
         } catch (JsonProcessingException e) {
-            sendResponse(writer, "Bad Request", 400);
+            sendResponse(response, "Bad Request", 400);
+        }
+    }
+
+    /**
+     * Logout: the token is removed, so it can no longer be used (not even from the token cache).
+     */
+    private void handleUserLogout(String authHeader, HttpResponse response) throws IOException {
+        String username = STORAGE.users().getUsernameByToken(getTokenFromHeader(authHeader));
+        if (username == null) {
+            sendResponse(response, "Unauthorized", 401);
+            return;
+        }
+        if (STORAGE.users().updateToken(username, null)) {
+            sendResponse(response, "Logged out.", 200);
+        } else {
+            sendResponse(response, "Internal Server Error", 500);
         }
     }
 
     private void handlePackageCreation(String body, String authHeader,
-                                       BufferedWriter writer, ObjectMapper objectMapper) throws IOException {
+                                       HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
         if (token == null || !isAdmin(token)) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
         try {
-            List<Card> cards = objectMapper.readValue(body, new TypeReference<>() {});
-            boolean packageCreated = PackageDatabase.createPackage(cards);
+            List<Card> cards = JsonCodec.CARD_LIST_READER.readValue(body);
+            boolean packageCreated = STORAGE.packages().createPackage(cards);
             if (packageCreated) {
-                sendResponse(writer, "Package Created", 201);
+                sendResponse(response, "Package Created", 201);
             } else {
-                sendResponse(writer, "Internal Server Error", 500);
+                sendResponse(response, "Internal Server Error", 500);
             }
         } catch (JsonProcessingException e) {
-            sendResponse(writer, "Bad Request", 400);
+            sendResponse(response, "Bad Request", 400);
         }
     }
 
-    private void handlePackagePurchase(String authHeader, BufferedWriter writer,
-                                       ObjectMapper objectMapper) throws IOException {
+    /**
+     * Bulk import: either a JSON array of packages or NDJSON (one package per line, Content-Type
+     * application/x-ndjson). Every package is validated before anything is written; the packages
+     * are then written in chunks of one transaction each and the result of every chunk is returned.
+     */
+    private void handleBulkPackageCreation(byte[] body, String contentType, String authHeader,
+                                           HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String username = UserDatabase.getUsernameByToken(token);
+        if (token == null || !isAdmin(token)) {
+            sendResponse(response, "Unauthorized", 401);
+            return;
+        }
+
+        List<List<Card>> packages;
+        try {
+            if (contentType != null && contentType.startsWith("application/x-ndjson")) {
+                packages = JsonCodec.readNdjson(JsonCodec.CARD_LIST_READER, body);
+            } else {
+                packages = JsonCodec.PACKAGE_LIST_READER.readValue(body);
+            }
+        } catch (JsonProcessingException e) {
+            sendResponse(response, "Bad Request", 400);
+            return;
+        }
+        if (packages == null || packages.isEmpty()) {
+            sendResponse(response, "Bad Request", 400);
+            return;
+        }
+        for (List<Card> cards : packages) {
+            if (!isValidPackage(cards)) {
+                sendResponse(response, "Bad Request", 400);
+                return;
+            }
+        }
+
+        List<PackageDatabase.ChunkResult> results =
+                STORAGE.packages().createPackages(packages, ServerConfig.PACKAGE_BULK_CHUNK_SIZE);
+        boolean allCreated = results.stream().allMatch(PackageDatabase.ChunkResult::isCreated);
+        sendJsonResponse(response, JsonCodec.CHUNK_RESULT_LIST_WRITER, results, allCreated ? 201 : 500);
+    }
+
+    private static boolean isValidPackage(List<Card> cards) {
+        if (cards == null || cards.size() != PackageDatabase.PACKAGE_SIZE) {
+            return false;
+        }
+        for (Card card : cards) {
+            if (card == null || card.getId() == null) {
+                return false;
+            }
+            try {
+                UUID.fromString(card.getId());
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void handlePackagePurchase(String authHeader, HttpResponse response) throws IOException {
+        String token = getTokenFromHeader(authHeader);
+        String username = STORAGE.users().getUsernameByToken(token);
         if (username == null) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
-        boolean success = PackageDatabase.purchasePackage(username);
+        boolean success = STORAGE.packages().purchasePackage(username);
         if (success) {
-            sendResponse(writer, "Package Purchased", 200);
+            sendResponse(response, "Package Purchased", 200);
         } else {
-            sendResponse(writer, "Conflict", 409);
+            sendResponse(response, "Conflict", 409);
         }
     }
 
-    private void handleGetUserCards(String authHeader, BufferedWriter writer,
-                                    ObjectMapper objectMapper) throws IOException {
+    private void handleGetUserCards(String afterParam, String limitParam, String authHeader,
+                                    HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String username = UserDatabase.getUsernameByToken(token);
+        String username = STORAGE.users().getUsernameByToken(token);
         if (username == null) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
-        List<Card> cards = UserDatabase.getUserCards(username);
+        Page page;
+        try {
+            page = Page.parse(afterParam, limitParam);
+        } catch (IllegalArgumentException e) {
+            sendResponse(response, "Bad Request", 400);
+            return;
+        }
+        if (page == null) {
+            sendStreamedListing(response, consumer -> STORAGE.cards().streamUserCards(username, consumer));
+            return;
+        }
+
+        List<Card> cards = STORAGE.cards().getUserCards(username, page.after(), page.limit());
         if (cards != null) {
-            String jsonResponse = objectMapper.writeValueAsString(cards);
-            sendJsonResponse(writer, jsonResponse, 200);
+            sendJsonResponse(response, JsonCodec.CARD_LIST_WRITER, cards, 200);
         } else {
-            sendResponse(writer, "Internal Server Error", 500);
+            sendResponse(response, "Internal Server Error", 500);
         }
     }
 
-    private void handleGetDeck(String authHeader, BufferedWriter writer,
-                               ObjectMapper objectMapper) throws IOException {
+    private void handleGetDeck(String authHeader, HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String username = UserDatabase.getUsernameByToken(token);
+        String username = STORAGE.users().getUsernameByToken(token);
         if (username == null) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
-        List<Card> deck = UserDatabase.getUserDeck(username);
+        List<Card> deck = STORAGE.decks().getUserDeck(username);
         if (deck != null) {
-            String jsonResponse = objectMapper.writeValueAsString(deck);
-            sendJsonResponse(writer, jsonResponse, 200);
+            sendJsonResponse(response, JsonCodec.CARD_LIST_WRITER, deck, 200);
         } else {
-            sendResponse(writer, "Internal Server Error", 500);
+            sendResponse(response, "Internal Server Error", 500);
         }
     }
 
-    private void handleSetDeck(String body, String authHeader, BufferedWriter writer,
-                               ObjectMapper objectMapper) throws IOException {
+    private void handleSetDeck(String body, String authHeader, HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String username = UserDatabase.getUsernameByToken(token);
+        String username = STORAGE.users().getUsernameByToken(token);
         if (username == null) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
         try {
-            List<String> cardIds = objectMapper.readValue(body, new TypeReference<>() {});
-            boolean deckSet = UserDatabase.setUserDeck(username, cardIds);
+            List<String> cardIds = JsonCodec.STRING_LIST_READER.readValue(body);
+            boolean deckSet = STORAGE.decks().setUserDeck(username, cardIds);
             if (deckSet) {
-                sendResponse(writer, "Deck Set", 200);
+                sendResponse(response, "Deck Set", 200);
             } else {
-                sendResponse(writer, "Conflict", 409);
+                sendResponse(response, "Conflict", 409);
             }
         } catch (JsonProcessingException e) {
-            sendResponse(writer, "Bad Request", 400);
+            sendResponse(response, "Bad Request", 400);
         }
     }
 
-    private void handleGetUser(String username, BufferedWriter writer, ObjectMapper objectMapper,
-                               Map<String, String> headers) throws IOException {
-        String authHeader = headers.get("Authorization");
+    private void handleGetUser(String username, String authHeader, HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String requester = UserDatabase.getUsernameByToken(token);
+        String requester = STORAGE.users().getUsernameByToken(token);
 
         if (requester == null || (!requester.equals(username) && !isAdmin(token))) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
-        User user = UserDatabase.getUser(username);
+        User user = STORAGE.users().getUser(username);
         if (user != null) {
-            String jsonResponse = objectMapper.writeValueAsString(user);
-            sendJsonResponse(writer, jsonResponse, 200);
+            sendJsonResponse(response, JsonCodec.USER_WRITER, user, 200);
         } else {
-            sendResponse(writer, "Not Found", 404);
+            sendResponse(response, "Not Found", 404);
         }
     }
 
     private void handleUpdateUser(String username, String body, String authHeader,
-                                  BufferedWriter writer, ObjectMapper objectMapper) throws IOException {
+                                  HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String requester = UserDatabase.getUsernameByToken(token);
+        String requester = STORAGE.users().getUsernameByToken(token);
         if (requester == null || (!requester.equals(username) && !isAdmin(token))) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
         try {
-            Map<String, String> userData = objectMapper.readValue(body, new TypeReference<>() {});
+            Map<String, String> userData = JsonCodec.STRING_MAP_READER.readValue(body);
             String newBio = userData.getOrDefault("Bio", "");
             String newImage = userData.getOrDefault("Image", "");
 
-            boolean updated = UserDatabase.updateUserProfile(username, newBio, newImage);
+            boolean updated = STORAGE.users().updateUserProfile(username, newBio, newImage);
             if (updated) {
-                sendResponse(writer, "Profile updated successfully", 200);
+                sendResponse(response, "Profile updated successfully", 200);
             } else {
-                sendResponse(writer, "Not Found", 404);
+                sendResponse(response, "Not Found", 404);
             }
         } catch (JsonProcessingException e) {
-            sendResponse(writer, "Bad Request", 400);
+            sendResponse(response, "Bad Request", 400);
         }
     }
 
     private void handleSetBoosterCard(String username, String body, String authHeader,
-                                      BufferedWriter writer, ObjectMapper objectMapper) throws IOException {
+                                      HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String requester = UserDatabase.getUsernameByToken(token);
+        String requester = STORAGE.users().getUsernameByToken(token);
 
         if (requester == null || (!requester.equals(username) && !isAdmin(token))) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
         try {
-            Map<String, String> requestData = objectMapper.readValue(body, new TypeReference<>() {});
+            Map<String, String> requestData = JsonCodec.STRING_MAP_READER.readValue(body);
             String boosterCardId = requestData.get("CardId");
 
             // Check if user owns this card
-            if (!UserDatabase.isCardOwnedByUser(username, boosterCardId)) {
-                sendResponse(writer, "Forbidden: You don't own this card.", 403);
+            if (!STORAGE.cards().isCardOwnedByUser(username, boosterCardId)) {
+                sendResponse(response, "Forbidden: You don't own this card.", 403);
                 return;
             }
 
-            boolean updated = UserDatabase.updateUserBoosterCard(username, boosterCardId);
+            boolean updated = STORAGE.users().updateUserBoosterCard(username, boosterCardId);
             if (updated) {
-                sendResponse(writer, "Booster card set successfully", 200);
+                sendResponse(response, "Booster card set successfully", 200);
             } else {
-                sendResponse(writer, "Not Found", 404);
+                sendResponse(response, "Not Found", 404);
             }
         } catch (JsonProcessingException e) {
-            sendResponse(writer, "Bad Request", 400);
+            sendResponse(response, "Bad Request", 400);
         }
     }
 
-    private final Object battleLock = new Object();
-
-    private void handleBattleRequest(String authHeader, BufferedWriter writer,
-                                     ObjectMapper objectMapper) throws IOException {
+    private void handleBattleRequest(String authHeader, HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String username = UserDatabase.getUsernameByToken(token);
+        String username = STORAGE.users().getUsernameByToken(token);
         if (username == null) {
-            sendResponse(writer, "Unauthorized", 401);
-            writer.close();
-            if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
-        List<Card> deck = UserDatabase.getUserDeck(username);
-        if (deck == null || deck.size() != 4) {
-            sendResponse(writer, "Deck not configured properly. Ensure you have exactly 4 cards in your deck.", 400);
-            writer.close();
-            if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
+        List<Card> deck = STORAGE.decks().getUserDeck(username);
+        if (deck == null || deck.size() != ServerConfig.DECK_SIZE) {
+            sendResponse(response, "Deck not configured properly. Ensure you have exactly "
+                    + ServerConfig.DECK_SIZE + " cards in your deck.", 400);
             return;
         }
 
-        User user = UserDatabase.getUser(username);
+        // The battle result is written by the battle thread, which always closes the connection afterwards
+        response.setKeepAlive(false);
+
+        User user = STORAGE.users().getUser(username);
         String boosterCardId = (user != null) ? user.getBoosterCardId() : null;
 
-        Player player = new Player(username, deck, writer, battleLock, boosterCardId);
+        Player player = new Player(username, deck, response, boosterCardId);
         BattleHandler.enqueuePlayer(player);
 
-        synchronized (battleLock) {
-            try {
-                battleLock.wait();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        try {
+            player.awaitBattleFinished();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-
-        if (writer != null) writer.close();
-        if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
     }
 
-    private void handleGetScoreboard(String authHeader, BufferedWriter writer,
-                                     ObjectMapper objectMapper) throws IOException {
+    /**
+     * Scoreboard page from the in-memory leaderboard; without offset/limit the whole scoreboard.
+     */
+    private void handleGetScoreboard(String offsetParam, String limitParam, String authHeader,
+                                     HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String username = UserDatabase.getUsernameByToken(token);
+        String username = STORAGE.users().getUsernameByToken(token);
         if (username == null) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
+            return;
+        }
+
+        int offset;
+        int limit;
+        try {
+            offset = (offsetParam != null) ? Integer.parseInt(offsetParam) : 0;
+            limit = (limitParam != null) ? Integer.parseInt(limitParam) : Integer.MAX_VALUE;
+        } catch (NumberFormatException e) {
+            sendResponse(response, "Bad Request", 400);
+            return;
+        }
+        if (offset < 0 || limit < 0) {
+            sendResponse(response, "Bad Request", 400);
             return;
         }
 
-        List<User> users = UserDatabase.getAllUsersSortedByElo();
-        String jsonResponse = objectMapper.writeValueAsString(users);
-        sendJsonResponse(writer, jsonResponse, 200);
+        List<Leaderboard.Entry> entries = STORAGE.users().leaderboard().page(offset, limit);
+        sendJsonResponse(response, JsonCodec.SCOREBOARD_WRITER, entries, 200);
     }
 
-    private void handleGetUserStats(String authHeader, BufferedWriter writer,
-                                    ObjectMapper objectMapper) throws IOException {
+    private void handleGetScoreboardRank(String username, String authHeader, HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String username = UserDatabase.getUsernameByToken(token);
+        if (STORAGE.users().getUsernameByToken(token) == null) {
+            sendResponse(response, "Unauthorized", 401);
+            return;
+        }
+
+        Leaderboard.Entry entry = STORAGE.users().leaderboard().entry(username);
+        if (entry != null) {
+            sendJsonResponse(response, JsonCodec.SCOREBOARD_ENTRY_WRITER, entry, 200);
+        } else {
+            sendResponse(response, "Not Found", 404);
+        }
+    }
+
+    private void handleGetMetrics(HttpResponse response) throws IOException {
+        StringBuilder metrics = new StringBuilder(4096);
+        Metrics.writePrometheus(metrics);
+        response.sendText(200, "text/plain; version=0.0.4", metrics.toString());
+    }
+
+    private void handleGetUserStats(String authHeader, HttpResponse response) throws IOException {
+        String token = getTokenFromHeader(authHeader);
+        String username = STORAGE.users().getUsernameByToken(token);
         if (username == null) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
-        User user = UserDatabase.getUser(username);
+        User user = STORAGE.users().getUser(username);
         if (user != null) {
-            String jsonResponse = objectMapper.writeValueAsString(user);
-            sendJsonResponse(writer, jsonResponse, 200);
+            sendJsonResponse(response, JsonCodec.USER_WRITER, user, 200);
         } else {
-            sendResponse(writer, "User not found", 404);
+            sendResponse(response, "User not found", 404);
         }
     }
 
-    private void handleCreateTradingDeal(String body, String authHeader, BufferedWriter writer,
-                                         ObjectMapper objectMapper) throws IOException {
+    private void handleCreateTradingDeal(String body, String authHeader, HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String username = UserDatabase.getUsernameByToken(token);
+        String username = STORAGE.users().getUsernameByToken(token);
         if (username == null) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
         try {
-            TradingDeal deal = objectMapper.readValue(body, TradingDeal.class);
+            TradingDeal deal = JsonCodec.TRADING_DEAL_READER.readValue(body);
             deal.setOwner(username);
 
-            if (!UserDatabase.isCardOwnedByUser(username, deal.getCardToTrade())
-                    || UserDatabase.isCardInDeck(username, deal.getCardToTrade())) {
-                sendResponse(writer, "Forbidden: You don't own this card or it's in your deck.", 403);
+            if (!STORAGE.cards().isCardOwnedByUser(username, deal.getCardToTrade())
+                    || STORAGE.decks().isCardInDeck(username, deal.getCardToTrade())) {
+                sendResponse(response, "Forbidden: You don't own this card or it's in your deck.", 403);
                 return;
             }
 
-            boolean created = TradingDatabase.createTradingDeal(deal);
+            boolean created = STORAGE.trades().createTradingDeal(deal);
             if (created) {
-                sendResponse(writer, "Trading deal created successfully.", 201);
+                sendResponse(response, "Trading deal created successfully.", 201);
             } else {
-                sendResponse(writer, "Conflict: Could not create trading deal.", 409);
+                sendResponse(response, "Conflict: Could not create trading deal.", 409);
             }
         } catch (JsonProcessingException e) {
-            sendResponse(writer, "Bad Request", 400);
+            sendResponse(response, "Bad Request", 400);
+        }
+    }
+
+    private void handleGetTradingDeals(String afterParam, String limitParam, String authHeader,
+                                       HttpResponse response) throws IOException {
+        String token = getTokenFromHeader(authHeader);
+        String username = STORAGE.users().getUsernameByToken(token);
+        if (username == null) {
+            sendResponse(response, "Unauthorized", 401);
+            return;
+        }
+
+        Page page;
+        try {
+            page = Page.parse(afterParam, limitParam);
+        } catch (IllegalArgumentException e) {
+            sendResponse(response, "Bad Request", 400);
+            return;
+        }
+        if (page == null) {
+            sendStreamedListing(response, STORAGE.trades()::streamTradingDeals);
+            return;
+        }
+
+        List<TradingDeal> deals = STORAGE.trades().getTradingDeals(page.after(), page.limit());
+        if (deals != null) {
+            sendJsonResponse(response, JsonCodec.TRADING_DEAL_LIST_WRITER, deals, 200);
+        } else {
+            sendResponse(response, "Internal Server Error", 500);
         }
     }
 
-    private void handleGetTradingDeals(String authHeader, BufferedWriter writer,
-                                       ObjectMapper objectMapper) throws IOException {
+    /**
+     * Deals of other users that one of the caller's cards (outside the deck) satisfies, each with
+     * the card that would be offered.
+     */
+    private void handleGetTradingMatches(String authHeader, HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String username = UserDatabase.getUsernameByToken(token);
+        String username = STORAGE.users().getUsernameByToken(token);
         if (username == null) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
-        List<TradingDeal> deals = TradingDatabase.getAllTradingDeals();
-        String jsonResponse = objectMapper.writeValueAsString(deals);
-        sendJsonResponse(writer, jsonResponse, 200);
+        List<TradeIndex.Match> matches = STORAGE.trades().findMatches(username);
+        if (matches != null) {
+            sendJsonResponse(response, JsonCodec.TRADE_MATCH_LIST_WRITER, matches, 200);
+        } else {
+            sendResponse(response, "Internal Server Error", 500);
+        }
     }
 
     private void handleAcceptTradingDeal(String dealId, String body, String authHeader,
-                                         BufferedWriter writer, ObjectMapper objectMapper) throws IOException {
+                                         HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String buyer = UserDatabase.getUsernameByToken(token);
+        String buyer = STORAGE.users().getUsernameByToken(token);
         if (buyer == null) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
         try {
-            Map<String, String> requestData = objectMapper.readValue(body, new TypeReference<>() {});
+            Map<String, String> requestData = JsonCodec.STRING_MAP_READER.readValue(body);
             String offeredCardId = requestData.get("cardId");
 
-            if (!UserDatabase.isCardOwnedByUser(buyer, offeredCardId)
-                    || UserDatabase.isCardInDeck(buyer, offeredCardId)) {
-                sendResponse(writer, "Forbidden: You don't own this card or it's in your deck.", 403);
-                return;
-            }
-
-            boolean success = TradingDatabase.acceptTradingDeal(dealId, buyer, offeredCardId);
-            if (success) {
-                sendResponse(writer, "Trading deal accepted successfully.", 200);
-            } else {
-                sendResponse(writer, "Not Found or Conflict: Could not accept trading deal.", 409);
+            // Ownership, deck and requirements are all checked inside the trade transaction
+            switch (STORAGE.trades().acceptTradingDeal(dealId, buyer, offeredCardId)) {
+                case ACCEPTED -> sendResponse(response, "Trading deal accepted successfully.", 200);
+                case FORBIDDEN -> sendResponse(response, "Forbidden: You don't own this card or it's in your deck.", 403);
+                case ERROR -> sendResponse(response, "Internal Server Error", 500);
+                default -> sendResponse(response, "Not Found or Conflict: Could not accept trading deal.", 409);
             }
         } catch (JsonProcessingException e) {
-            sendResponse(writer, "Bad Request", 400);
+            sendResponse(response, "Bad Request", 400);
         }
     }
 
@@ -555,26 +922,26 @@ public class ClientHandler implements Runnable {
      * Delete a user (only by themselves or an admin).
      */
     private void handleDeleteUser(String username, String authHeader,
-                                  BufferedWriter writer, ObjectMapper objectMapper) throws IOException {
+                                  HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String requestor = UserDatabase.getUsernameByToken(token);
+        String requestor = STORAGE.users().getUsernameByToken(token);
 
         if (requestor == null) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
         // Allow only the same user or an admin to delete the account
         if (!requestor.equals(username) && !isAdmin(token)) {
-            sendResponse(writer, "Forbidden", 403);
+            sendResponse(response, "Forbidden", 403);
             return;
         }
 
-        boolean deleted = UserDatabase.deleteUser(username);
+        boolean deleted = STORAGE.users().deleteUser(username);
         if (deleted) {
-            sendResponse(writer, "User deleted successfully.", 200);
+            sendResponse(response, "User deleted successfully.", 200);
         } else {
-            sendResponse(writer, "User not found or deletion failed.", 404);
+            sendResponse(response, "User not found or deletion failed.", 404);
         }
     }
 
@@ -582,39 +949,39 @@ public class ClientHandler implements Runnable {
      * Update user coins (optional).
      */
     private void handleUpdateUserCoins(String username, String body, String authHeader,
-                                       BufferedWriter writer, ObjectMapper objectMapper) throws IOException {
+                                       HttpResponse response) throws IOException {
         String token = getTokenFromHeader(authHeader);
-        String requestor = UserDatabase.getUsernameByToken(token);
+        String requestor = STORAGE.users().getUsernameByToken(token);
 
         if (requestor == null) {
-            sendResponse(writer, "Unauthorized", 401);
+            sendResponse(response, "Unauthorized", 401);
             return;
         }
 
         // Allow if user is themselves OR an admin
         if (!requestor.equals(username) && !isAdmin(token)) {
-            sendResponse(writer, "Forbidden", 403);
+            sendResponse(response, "Forbidden", 403);
             return;
         }
 
         try {
             // Expecting JSON: {"coins": 999}
-            Map<String, Integer> coinData = objectMapper.readValue(body, new TypeReference<>() {});
+            Map<String, Integer> coinData = JsonCodec.INT_MAP_READER.readValue(body);
             Integer newCoinValue = coinData.get("coins");
             if (newCoinValue == null) {
-                sendResponse(writer, "Bad Request", 400);
+                sendResponse(response, "Bad Request", 400);
                 return;
             }
 
-            boolean updated = UserDatabase.updateUserCoins(username, newCoinValue);
+            boolean updated = STORAGE.users().updateUserCoins(username, newCoinValue);
             if (updated) {
-                sendResponse(writer, "Coins updated successfully.", 200);
+                sendResponse(response, "Coins updated successfully.", 200);
             } else {
-                sendResponse(writer, "User not found or update failed.", 404);
+                sendResponse(response, "User not found or update failed.", 404);
             }
 
         } catch (JsonProcessingException e) {
-            sendResponse(writer, "Bad Request", 400);
+            sendResponse(response, "Bad Request", 400);
         }
     }
 
@@ -628,40 +995,42 @@ public class ClientHandler implements Runnable {
     }
 
     private boolean isAdmin(String token) {
-        return "admin-mtcgToken".equals(token);
-    }
-
-    private void sendResponse(BufferedWriter writer, String body, int statusCode) throws IOException {
-        String response = "HTTP/1.1 " + statusCode + " " + getReasonPhrase(statusCode) + "\r\n" +
-                "Content-Type: text/plain\r\n" +
-                "Content-Length: " + body.getBytes("UTF-8").length + "\r\n" +
-                "\r\n" +
-                body;
-        writer.write(response);
-        writer.flush();
-    }
-
-    private void sendJsonResponse(BufferedWriter writer, String jsonBody, int statusCode) throws IOException {
-        String response = "HTTP/1.1 " + statusCode + " " + getReasonPhrase(statusCode) + "\r\n" +
-                "Content-Type: application/json\r\n" +
-                "Content-Length: " + jsonBody.getBytes("UTF-8").length + "\r\n" +
-                "\r\n" +
-                jsonBody;
-        writer.write(response);
-        writer.flush();
-    }
-
-    private String getReasonPhrase(int statusCode) {
-        return switch (statusCode) {
-            case 200 -> "OK";
-            case 201 -> "Created";
-            case 400 -> "Bad Request";
-            case 401 -> "Unauthorized";
-            case 403 -> "Forbidden";
-            case 404 -> "Not Found";
-            case 409 -> "Conflict";
-            case 500 -> "Internal Server Error";
-            default -> "";
-        };
+        Principal principal = STORAGE.users().getPrincipalByToken(token);
+        return principal != null && principal.isAdmin();
+    }
+
+    private void sendResponse(HttpResponse response, String body, int statusCode) throws IOException {
+        response.sendText(statusCode, body);
+    }
+
+    private void sendJsonResponse(HttpResponse response, ObjectWriter jsonWriter, Object value,
+                                  int statusCode) throws IOException {
+        response.sendJson(statusCode, jsonWriter, value);
+    }
+
+    /**
+     * Streams a listing as a chunked JSON array. A database error before the first row still
+     * becomes a 500; after that the body is cut off and the connection closed.
+     */
+    private void sendStreamedListing(HttpResponse response, StreamedListing listing) throws IOException {
+        HttpResponse.JsonArrayStream stream = response.streamJsonArray(200, JsonCodec.STREAM_ELEMENT_WRITER);
+        if (listing.stream(stream::write)) {
+            stream.finish();
+        } else if (!stream.isStarted()) {
+            sendResponse(response, "Internal Server Error", 500);
+        } else {
+            stream.abort();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Connection is going away anyway
+        }
     }
 }
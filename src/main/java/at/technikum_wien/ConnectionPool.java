@@ -0,0 +1,339 @@
+package at.technikum_wien;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of physical JDBC connections. {@link #getConnection()} hands out a proxy whose
+ * {@code close()} returns the connection to the pool instead of closing it, so callers keep using
+ * try-with-resources exactly as with {@link DriverManager}. A returned connection is rolled back if
+ * a transaction was left open and switched back to auto-commit, so transaction handling in the
+ * DB classes behaves as with a fresh connection.
+ *
+ * <ul>
+ *     <li>at most {@code maxSize} connections are borrowed at the same time; further callers wait up
+ *     to the acquire timeout and then get an {@link SQLTransientConnectionException}</li>
+ *     <li>connections that were idle for a while are validated before they are handed out</li>
+ *     <li>every physical connection keeps a {@link StatementCache} of up to {@code statementCacheSize}
+ *     prepared statements (0 disables it)</li>
+ *     <li>a housekeeping thread closes connections idle longer than the idle timeout (keeping
+ *     {@code minSize}), refills to {@code minSize} and reports connections borrowed longer than the
+ *     leak threshold</li>
+ * </ul>
+ */
+public class ConnectionPool {
+    private static final long HOUSEKEEPING_INTERVAL_MS = 5000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final long idleTimeoutMs;
+    private final long validateAfterIdleMs;
+    private final long leakThresholdMs;
+    private final int statementCacheSize;
+
+    // One permit per connection that may be borrowed
+    private final Semaphore permits;
+    // Most recently returned connection first, so hot connections stay hot and others can expire
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<Handle> borrowed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger physicalConnections = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private volatile boolean closed;
+
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+                          long acquireTimeoutMs, long idleTimeoutMs, long validateAfterIdleMs, long leakThresholdMs,
+                          int statementCacheSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = Math.min(minSize, maxSize);
+        this.maxSize = maxSize;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.validateAfterIdleMs = validateAfterIdleMs;
+        this.leakThresholdMs = leakThresholdMs;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Starts the housekeeping thread, which also opens the first {@code minSize} connections.
+     */
+    public void start() {
+        Thread housekeeper = new Thread(() -> {
+            while (!closed) {
+                housekeeping();
+                try {
+                    Thread.sleep(HOUSEKEEPING_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "db-pool-housekeeper");
+        housekeeper.setDaemon(true);
+        housekeeper.start();
+    }
+
+    /**
+     * Borrows a connection; closing it returns it to the pool.
+     *
+     * @throws SQLTransientConnectionException if no connection became available within the acquire timeout
+     * @throws SQLException                    if a new connection could not be opened
+     */
+    public Connection getConnection() throws SQLException {
+        acquirePermit();
+        try {
+            PooledConnection connection = takeIdle();
+            if (connection == null) {
+                connection = open();
+            }
+            Handle handle = new Handle(connection);
+            borrowed.add(handle);
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, handle);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void acquirePermit() throws SQLException {
+        if (permits.tryAcquire()) {
+            return;
+        }
+        waiting.incrementAndGet();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException(
+                        "No database connection available within " + acquireTimeoutMs + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a database connection", e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Takes the most recently used idle connection that is still valid.
+     */
+    private PooledConnection takeIdle() {
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - connection.lastUsed < validateAfterIdleMs || isValid(connection)) {
+                return connection;
+            }
+            discard(connection);
+        }
+        return null;
+    }
+
+    private boolean isValid(PooledConnection connection) {
+        try {
+            return connection.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection physical = DriverManager.getConnection(url, user, password);
+        physicalConnections.incrementAndGet();
+        return new PooledConnection(physical,
+                (statementCacheSize > 0) ? new StatementCache(physical, statementCacheSize) : null);
+    }
+
+    /**
+     * Called when a borrowed connection is closed by its user.
+     */
+    private void release(Handle handle) {
+        borrowed.remove(handle);
+        PooledConnection connection = handle.connection;
+        try {
+            if (closed || connection.physical.isClosed()) {
+                discard(connection);
+            } else {
+                if (!connection.physical.getAutoCommit()) {
+                    // Never hand an open transaction to the next user
+                    connection.physical.rollback();
+                    connection.physical.setAutoCommit(true);
+                }
+                if (connection.statements != null) {
+                    connection.statements.releaseAll();
+                }
+                connection.lastUsed = System.currentTimeMillis();
+                idle.addFirst(connection);
+            }
+        } catch (SQLException e) {
+            discard(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(PooledConnection connection) {
+        physicalConnections.decrementAndGet();
+        try {
+            connection.physical.close();
+        } catch (SQLException e) {
+            // Broken anyway
+        }
+    }
+
+    void housekeeping() {
+        long now = System.currentTimeMillis();
+
+        // Idle eviction, oldest connections are at the end of the deque
+        Iterator<PooledConnection> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext() && physicalConnections.get() > minSize) {
+            PooledConnection connection = oldestFirst.next();
+            if (now - connection.lastUsed > idleTimeoutMs && idle.remove(connection)) {
+                discard(connection);
+            }
+        }
+
+        // Keep minSize connections open; a permit makes sure the pool never exceeds maxSize
+        while (!closed && physicalConnections.get() < minSize && permits.tryAcquire()) {
+            try {
+                PooledConnection connection = open();
+                connection.lastUsed = now;
+                idle.addLast(connection);
+            } catch (SQLException e) {
+                // Database not reachable yet, try again next round
+                break;
+            } finally {
+                permits.release();
+            }
+        }
+
+        if (leakThresholdMs > 0) {
+            for (Handle handle : borrowed) {
+                if (!handle.leakReported && now - handle.borrowedAt > leakThresholdMs) {
+                    handle.leakReported = true;
+                    SQLException leak = new SQLException("Connection borrowed by " + handle.borrower.getName()
+                            + " for " + (now - handle.borrowedAt) + " ms without being closed; borrower is at:");
+                    leak.setStackTrace(handle.borrower.getStackTrace());
+                    AsyncLog.error("ConnectionPool", leak);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections; borrowed ones are closed when they are returned.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            discard(connection);
+        }
+    }
+
+    // ------------------ Stats ------------------ //
+
+    public int active() {
+        return borrowed.size();
+    }
+
+    public int idle() {
+        return idle.size();
+    }
+
+    public int waiting() {
+        return waiting.get();
+    }
+
+    public int total() {
+        return physicalConnections.get();
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * A physical connection owned by the pool.
+     */
+    private static class PooledConnection {
+        private final Connection physical;
+        private final StatementCache statements;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        PooledConnection(Connection physical, StatementCache statements) {
+            this.physical = physical;
+            this.statements = statements;
+        }
+    }
+
+    /**
+     * One borrow of a pooled connection. After close() the handle is dead, even if the physical
+     * connection has already been given to someone else.
+     */
+    private class Handle implements InvocationHandler {
+        private final PooledConnection connection;
+        private final long borrowedAt = System.currentTimeMillis();
+        private final long borrowedAtNanos = System.nanoTime();
+        private final Thread borrower = Thread.currentThread();
+        private volatile boolean leakReported;
+        private boolean returned;
+
+        Handle(PooledConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        StorageTime.add(System.nanoTime() - borrowedAtNanos);
+                        release(this);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + connection.physical;
+                default:
+                    break;
+            }
+            if (returned) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            if (connection.statements != null && args != null && args.length == 1
+                    && method.getName().equals("prepareStatement")) {
+                return connection.statements.prepare((String) args[0]);
+            }
+            try {
+                return method.invoke(connection.physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
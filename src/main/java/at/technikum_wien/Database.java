@@ -1,7 +1,7 @@
 package at.technikum_wien;
 
+import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 
@@ -10,23 +10,57 @@ public class Database {
     private static final String URL = "jdbc:postgresql://localhost:5432/mctg";
     private static final String USER = "mctg_user1";
     private static final String PASSWORD = "";
+    // Gecachte Statements werden ab der ersten Ausführung serverseitig vorbereitet;
+    // JDBC-Batches von INSERTs werden zu mehrzeiligen INSERTs zusammengefasst
+    private static final String URL_OPTIONS = "?prepareThreshold=1&reWriteBatchedInserts=true";
 
     static {
         try {
             // PostgreSQL JDBC-Treiber laden
             Class.forName("org.postgresql.Driver");
         } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            AsyncLog.error("Database", e);
         }
     }
 
+    private static final ConnectionPool POOL = new ConnectionPool(URL + URL_OPTIONS, USER, PASSWORD,
+            ServerConfig.DB_POOL_MIN_SIZE, ServerConfig.DB_POOL_MAX_SIZE, ServerConfig.DB_ACQUIRE_TIMEOUT_MS,
+            ServerConfig.DB_IDLE_TIMEOUT_MS, ServerConfig.DB_VALIDATE_AFTER_IDLE_MS, ServerConfig.DB_LEAK_THRESHOLD_MS,
+            ServerConfig.DB_STATEMENT_CACHE_SIZE);
+
+    static {
+        POOL.start();
+    }
+
     /**
-     * Stellt eine Verbindung zur Datenbank her und gibt das Connection-Objekt zurück.
+     * Leiht eine Verbindung aus dem Connection-Pool aus. {@code close()} gibt sie an den Pool zurück;
+     * die Zeit vom Anfordern bis zum Schließen wird dem aufrufenden Thread als DB-Zeit
+     * ({@link StorageTime}) angerechnet.
      *
      * @return Connection zur Datenbank
-     * @throws SQLException Wenn die Verbindung fehlschlägt
+     * @throws SQLException Wenn keine Verbindung verfügbar ist oder die Verbindung fehlschlägt
      */
     public static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(URL, USER, PASSWORD);
+        long start = System.nanoTime();
+        try {
+            return POOL.getConnection();
+        } finally {
+            StorageTime.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Auslastung des Connection-Pools (aktive, freie und wartende Verbindungen).
+     */
+    public static ConnectionPool pool() {
+        return POOL;
+    }
+
+    /**
+     * Empfängt die Zeilen einer gestreamten Abfrage einzeln, z.B. um sie direkt in die Antwort zu schreiben.
+     */
+    @FunctionalInterface
+    public interface RowConsumer<T> {
+        void accept(T row) throws IOException;
     }
 }
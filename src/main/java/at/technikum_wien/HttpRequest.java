@@ -0,0 +1,289 @@
+package at.technikum_wien;
+
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A parsed HTTP request that is a view onto the bytes it was parsed from. Method, target, version
+ * and headers are stored as offsets into the backing buffer; Strings are only created for the parts
+ * a handler actually asks for. Instances are filled by {@link HttpRequestParser} and can be reused
+ * for the next request on the same connection.
+ */
+public class HttpRequest {
+    static final int MAX_HEADERS = 64;
+
+    private ByteBuffer buffer;
+    // Offset passed to the parser; start can move past leading empty lines
+    private int origin;
+    private int start;
+    private int methodStart;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int pathEnd;
+    private int versionStart;
+    private int versionEnd;
+    // nameStart, nameEnd, valueStart, valueEnd for every header
+    private final int[] headerOffsets = new int[MAX_HEADERS * 4];
+    private int headerCount;
+    private int bodyStart;
+    private int contentLength;
+    private boolean headComplete;
+    // Where the search for the end of the head continues after a partial read
+    private int scanPosition;
+    private String path;
+
+    // ------------------ Filled by HttpRequestParser ------------------ //
+
+    void reset(ByteBuffer buffer, int start) {
+        this.buffer = buffer;
+        this.origin = start;
+        this.start = start;
+        this.headerCount = 0;
+        this.contentLength = 0;
+        this.headComplete = false;
+        this.scanPosition = start;
+        this.path = null;
+    }
+
+    void setRequestLine(int methodStart, int methodEnd, int targetStart, int targetEnd, int pathEnd,
+                        int versionStart, int versionEnd) {
+        this.methodStart = methodStart;
+        this.methodEnd = methodEnd;
+        this.targetStart = targetStart;
+        this.targetEnd = targetEnd;
+        this.pathEnd = pathEnd;
+        this.versionStart = versionStart;
+        this.versionEnd = versionEnd;
+    }
+
+    boolean addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (headerCount == MAX_HEADERS) {
+            return false;
+        }
+        int i = headerCount * 4;
+        headerOffsets[i] = nameStart;
+        headerOffsets[i + 1] = nameEnd;
+        headerOffsets[i + 2] = valueStart;
+        headerOffsets[i + 3] = valueEnd;
+        headerCount++;
+        return true;
+    }
+
+    void completeHead(int bodyStart, int contentLength) {
+        this.bodyStart = bodyStart;
+        this.contentLength = contentLength;
+        this.headComplete = true;
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    int origin() {
+        return origin;
+    }
+
+    int start() {
+        return start;
+    }
+
+    void setStart(int start) {
+        this.start = start;
+        this.scanPosition = Math.max(scanPosition, start);
+    }
+
+    int scanPosition() {
+        return scanPosition;
+    }
+
+    void setScanPosition(int scanPosition) {
+        this.scanPosition = scanPosition;
+    }
+
+    boolean isHeadComplete() {
+        return headComplete;
+    }
+
+    // ------------------ Accessors ------------------ //
+
+    /**
+     * Total size of the request (head and body) in bytes.
+     */
+    public int length() {
+        return bodyStart - start + contentLength;
+    }
+
+    /**
+     * Returns the method as a shared constant for the common methods, so no String is created.
+     */
+    public String method() {
+        if (matches(methodStart, methodEnd, "GET")) return "GET";
+        if (matches(methodStart, methodEnd, "POST")) return "POST";
+        if (matches(methodStart, methodEnd, "PUT")) return "PUT";
+        if (matches(methodStart, methodEnd, "DELETE")) return "DELETE";
+        if (matches(methodStart, methodEnd, "HEAD")) return "HEAD";
+        if (matches(methodStart, methodEnd, "OPTIONS")) return "OPTIONS";
+        return ascii(methodStart, methodEnd);
+    }
+
+    /**
+     * The request target without the query string.
+     */
+    public String path() {
+        if (path == null) {
+            path = ascii(targetStart, pathEnd);
+        }
+        return path;
+    }
+
+    /**
+     * The query string without the leading '?', or null if there is none.
+     */
+    public String query() {
+        return (pathEnd < targetEnd) ? ascii(pathEnd + 1, targetEnd) : null;
+    }
+
+    /**
+     * The URL-decoded value of a query parameter ("" if it has no value), or null if it is missing
+     * or malformed.
+     */
+    public String queryParam(String name) {
+        String query = query();
+        if (query == null) {
+            return null;
+        }
+        try {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                String key = URLDecoder.decode((equals < 0) ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+                if (key.equals(name)) {
+                    return (equals < 0) ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Broken %-escape
+        }
+        return null;
+    }
+
+    public String version() {
+        if (matches(versionStart, versionEnd, "HTTP/1.1")) return "HTTP/1.1";
+        if (matches(versionStart, versionEnd, "HTTP/1.0")) return "HTTP/1.0";
+        return ascii(versionStart, versionEnd);
+    }
+
+    public int headerCount() {
+        return headerCount;
+    }
+
+    /**
+     * Returns the value of the first header with the given (case-insensitive) name, or null.
+     */
+    public String header(String name) {
+        int index = indexOfHeader(name);
+        if (index < 0) {
+            return null;
+        }
+        return ascii(headerOffsets[index + 2], headerOffsets[index + 3]);
+    }
+
+    /**
+     * Compares a header value case-insensitively without creating a String.
+     */
+    public boolean headerEqualsIgnoreCase(String name, String value) {
+        int index = indexOfHeader(name);
+        return index >= 0 && matchesIgnoreCase(headerOffsets[index + 2], headerOffsets[index + 3], value);
+    }
+
+    public int contentLength() {
+        return contentLength;
+    }
+
+    public byte[] body() {
+        byte[] body = new byte[contentLength];
+        buffer.get(bodyStart, body);
+        return body;
+    }
+
+    /**
+     * Decodes the body as UTF-8 using its length in bytes.
+     */
+    public String bodyAsString() {
+        if (contentLength == 0) {
+            return "";
+        }
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + bodyStart, contentLength, StandardCharsets.UTF_8);
+        }
+        return new String(body(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies the bytes of this request into a buffer of its own, so the original buffer can be reused.
+     */
+    public HttpRequest copy() {
+        int length = length();
+        byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+
+        int shift = -start;
+        HttpRequest copy = new HttpRequest();
+        copy.reset(ByteBuffer.wrap(bytes), 0);
+        copy.setRequestLine(methodStart + shift, methodEnd + shift, targetStart + shift, targetEnd + shift,
+                pathEnd + shift, versionStart + shift, versionEnd + shift);
+        for (int i = 0; i < headerCount * 4; i++) {
+            copy.headerOffsets[i] = headerOffsets[i] + shift;
+        }
+        copy.headerCount = headerCount;
+        copy.completeHead(bodyStart + shift, contentLength);
+        return copy;
+    }
+
+    private int indexOfHeader(String name) {
+        for (int i = 0; i < headerCount * 4; i += 4) {
+            if (matchesIgnoreCase(headerOffsets[i], headerOffsets[i + 1], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int from, int to, String value) {
+        if (to - from != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (buffer.get(from + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesIgnoreCase(int from, int to, String value) {
+        if (to - from != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (toLowerCase(buffer.get(from + i)) != toLowerCase((byte) value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private String ascii(int from, int to) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, to - from, StandardCharsets.ISO_8859_1);
+        }
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,191 @@
+package at.technikum_wien;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Parses HTTP/1.x requests directly from a {@link ByteBuffer}. The parser does not copy or decode
+ * anything: it records offsets in a reusable {@link HttpRequest}. Bodies are framed by their
+ * Content-Length in bytes.
+ */
+public class HttpRequestParser {
+    private final int maxHeaderBytes;
+    private final int maxBodyBytes;
+
+    public HttpRequestParser(int maxHeaderBytes, int maxBodyBytes) {
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Tries to parse the request head (request line and headers) from {@code buffer[start, end)}.
+     * Can be called again with more data after it returned false; {@code request} keeps track of
+     * how far the bytes have already been searched.
+     *
+     * @return true if the head is complete, false if more bytes are needed
+     * @throws ParseException if the request is malformed or exceeds the configured limits
+     */
+    public boolean parseHead(ByteBuffer buffer, int start, int end, HttpRequest request) throws ParseException {
+        if (request.buffer() != buffer || request.origin() != start || request.isHeadComplete()) {
+            request.reset(buffer, start);
+        }
+
+        // Empty lines in front of a request are ignored (RFC 9112, section 2.2)
+        int requestStart = request.start();
+        while (requestStart + 1 < end && buffer.get(requestStart) == '\r' && buffer.get(requestStart + 1) == '\n') {
+            requestStart += 2;
+        }
+        request.setStart(requestStart);
+
+        int headEnd = indexOfHeadEnd(buffer, Math.max(requestStart, request.scanPosition() - 3), end);
+        if (headEnd < 0) {
+            if (end - requestStart > maxHeaderBytes) {
+                throw new ParseException(431, "Request Header Fields Too Large");
+            }
+            request.setScanPosition(end);
+            return false;
+        }
+        if (headEnd - requestStart > maxHeaderBytes) {
+            throw new ParseException(431, "Request Header Fields Too Large");
+        }
+
+        int lineEnd = parseRequestLine(buffer, requestStart, headEnd, request);
+        int contentLength = parseHeaders(buffer, lineEnd + 2, headEnd - 2, request);
+        request.completeHead(headEnd, contentLength);
+        return true;
+    }
+
+    /**
+     * Whether the complete body of a parsed request is available in {@code buffer[.., end)}.
+     */
+    public static boolean isComplete(HttpRequest request, int end) {
+        return request.isHeadComplete() && end - request.start() >= request.length();
+    }
+
+    private int parseRequestLine(ByteBuffer buffer, int from, int headEnd, HttpRequest request) throws ParseException {
+        int lineEnd = indexOf(buffer, from, headEnd, (byte) '\r');
+        int methodEnd = indexOf(buffer, from, lineEnd, (byte) ' ');
+        if (methodEnd <= from) {
+            throw new ParseException(400, "Bad Request");
+        }
+        int targetStart = methodEnd + 1;
+        int targetEnd = indexOf(buffer, targetStart, lineEnd, (byte) ' ');
+        if (targetEnd <= targetStart || targetEnd + 1 >= lineEnd) {
+            throw new ParseException(400, "Bad Request");
+        }
+        int queryStart = indexOf(buffer, targetStart, targetEnd, (byte) '?');
+        int pathEnd = (queryStart < 0) ? targetEnd : queryStart;
+        request.setRequestLine(from, methodEnd, targetStart, targetEnd, pathEnd, targetEnd + 1, lineEnd);
+        return lineEnd;
+    }
+
+    /**
+     * Records all headers between {@code from} and {@code to} and returns the Content-Length.
+     */
+    private int parseHeaders(ByteBuffer buffer, int from, int to, HttpRequest request) throws ParseException {
+        int contentLength = 0;
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = indexOf(buffer, lineStart, to, (byte) '\r');
+            if (lineEnd < 0) {
+                lineEnd = to;
+            }
+            int colon = indexOf(buffer, lineStart, lineEnd, (byte) ':');
+            if (colon <= lineStart) {
+                throw new ParseException(400, "Bad Request");
+            }
+            int valueStart = colon + 1;
+            while (valueStart < lineEnd && isWhitespace(buffer.get(valueStart))) {
+                valueStart++;
+            }
+            int valueEnd = lineEnd;
+            while (valueEnd > valueStart && isWhitespace(buffer.get(valueEnd - 1))) {
+                valueEnd--;
+            }
+            if (!request.addHeader(lineStart, colon, valueStart, valueEnd)) {
+                throw new ParseException(431, "Request Header Fields Too Large");
+            }
+            if (isContentLength(buffer, lineStart, colon)) {
+                contentLength = parseNonNegativeInt(buffer, valueStart, valueEnd);
+                if (contentLength > maxBodyBytes) {
+                    throw new ParseException(413, "Payload Too Large");
+                }
+            }
+            lineStart = lineEnd + 2;
+        }
+        return contentLength;
+    }
+
+    private static boolean isContentLength(ByteBuffer buffer, int from, int to) {
+        String name = "content-length";
+        if (to - from != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            byte b = buffer.get(from + i);
+            if (b != name.charAt(i) && b + ('a' - 'A') != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseNonNegativeInt(ByteBuffer buffer, int from, int to) throws ParseException {
+        if (from == to || to - from > 9) {
+            throw new ParseException(400, "Bad Request");
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                throw new ParseException(400, "Bad Request");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Returns the index directly after the blank line terminating the head, or -1.
+     */
+    static int indexOfHeadEnd(ByteBuffer buffer, int from, int to) {
+        for (int i = from + 3; i < to; i++) {
+            if (buffer.get(i) == '\n' && buffer.get(i - 1) == '\r'
+                    && buffer.get(i - 2) == '\n' && buffer.get(i - 3) == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * A request that cannot be handled; carries the status code to answer with.
+     */
+    public static class ParseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        public ParseException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package at.technikum_wien;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes HTTP responses to a connection. Bodies are serialized straight into a pooled
+ * {@link ResponseBuffer} (shared by all threads), so the Content-Length is known without building the body as a String,
+ * and are then written to the output in one piece. Bodies of at least
+ * {@link ServerConfig#COMPRESSION_MIN_BYTES} are compressed if the client accepts gzip or deflate.
+ *
+ * <p>Listings of unknown size can instead be streamed with {@link #streamJsonArray}: elements are
+ * serialized while they are read and sent with chunked transfer encoding, so the body is never
+ * held in memory as a whole.
+ */
+public class HttpResponse {
+    // Buffers that grew beyond this size (e.g. a huge card list) are not kept for the next response
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    static final ResponseBuffer.Pool BODY_BUFFERS =
+            new ResponseBuffer.Pool(ServerConfig.RESPONSE_BUFFER_POOL_SIZE, 2048, MAX_RETAINED_CAPACITY);
+    static final ResponseBuffer.Pool HEAD_BUFFERS =
+            new ResponseBuffer.Pool(ServerConfig.RESPONSE_BUFFER_POOL_SIZE, 256, 4096);
+
+    private final OutputStream output;
+    private boolean keepAlive;
+    private String acceptEncoding;
+    // Status and body size of the last response, for the access log
+    private int status;
+    private int bodyBytes;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    public HttpResponse(OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Whether the response announces that the connection stays open.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    /**
+     * Size of the last body as sent, i.e. after compression.
+     */
+    public int bodyBytes() {
+        return bodyBytes;
+    }
+
+    /**
+     * The Accept-Encoding header of the current request (null if there is none).
+     */
+    public void setAcceptEncoding(String acceptEncoding) {
+        this.acceptEncoding = acceptEncoding;
+    }
+
+    public void sendText(int statusCode, String text) throws IOException {
+        sendText(statusCode, "text/plain", text, 0);
+    }
+
+    public void sendText(int statusCode, String contentType, String text) throws IOException {
+        sendText(statusCode, contentType, text, 0);
+    }
+
+    /**
+     * Rejects the request with 503 and tells the client when to try again.
+     */
+    public void sendServiceUnavailable(int retryAfterSeconds) throws IOException {
+        sendText(503, "text/plain", "Service Unavailable", retryAfterSeconds);
+    }
+
+    /**
+     * Serializes the value with the given (shared) writer directly into the body buffer.
+     */
+    public void sendJson(int statusCode, ObjectWriter writer, Object value) throws IOException {
+        ResponseBuffer body = BODY_BUFFERS.acquire();
+        try {
+            writer.writeValue(body, value);
+            send(statusCode, "application/json", body, 0);
+        } finally {
+            BODY_BUFFERS.release(body);
+        }
+    }
+
+    private void sendText(int statusCode, String contentType, String text, int retryAfterSeconds) throws IOException {
+        ResponseBuffer body = BODY_BUFFERS.acquire();
+        try {
+            body.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+            send(statusCode, contentType, body, retryAfterSeconds);
+        } finally {
+            BODY_BUFFERS.release(body);
+        }
+    }
+
+    private void send(int statusCode, String contentType, ResponseBuffer body,
+                      int retryAfterSeconds) throws IOException {
+        // Small bodies are not worth the CPU time and often grow when compressed
+        boolean compressible = body.size() >= ServerConfig.COMPRESSION_MIN_BYTES;
+        String encoding = compressible ? ResponseCompressor.negotiate(acceptEncoding) : null;
+        ResponseCompressor compressor = (encoding == null) ? null : ResponseCompressor.acquire();
+        ResponseBuffer head = HEAD_BUFFERS.acquire();
+        try {
+            ResponseBuffer content = (compressor == null) ? body : compressor.compress(encoding, body);
+            writeHead(head, statusCode, contentType, retryAfterSeconds, compressible, encoding);
+            head.writeAscii("\r\nContent-Length: ");
+            head.writeInt(content.size());
+            head.writeAscii("\r\n\r\n");
+            output.write(head.array(), 0, head.size());
+            output.write(content.array(), 0, content.size());
+            output.flush();
+            status = statusCode;
+            bodyBytes = content.size();
+        } finally {
+            HEAD_BUFFERS.release(head);
+            if (compressor != null) {
+                compressor.release();
+            }
+        }
+    }
+
+    /**
+     * Status line and all headers except the framing (Content-Length or Transfer-Encoding).
+     */
+    private void writeHead(ResponseBuffer head, int statusCode, String contentType, int retryAfterSeconds,
+                           boolean compressible, String encoding) {
+        head.writeAscii("HTTP/1.1 ");
+        head.writeInt(statusCode);
+        head.write(' ');
+        head.writeAscii(reasonPhrase(statusCode));
+        head.writeAscii("\r\nContent-Type: ");
+        head.writeAscii(contentType);
+        head.writeAscii("\r\nConnection: ");
+        head.writeAscii(keepAlive ? "keep-alive" : "close");
+        if (retryAfterSeconds > 0) {
+            head.writeAscii("\r\nRetry-After: ");
+            head.writeInt(retryAfterSeconds);
+        }
+        if (compressible) {
+            head.writeAscii("\r\nVary: Accept-Encoding");
+        }
+        if (encoding != null) {
+            head.writeAscii("\r\nContent-Encoding: ");
+            head.writeAscii(encoding);
+        }
+    }
+
+    /**
+     * Starts a JSON array that is sent in chunks while its elements are written. Nothing is sent
+     * before the first element (or {@link JsonArrayStream#finish()}), so a caller that fails before
+     * that can still answer with an ordinary error response.
+     *
+     * @param elementWriter writer for single elements; must not flush after every value, otherwise
+     *                      every element becomes its own chunk
+     */
+    public JsonArrayStream streamJsonArray(int statusCode, ObjectWriter elementWriter) {
+        return new JsonArrayStream(statusCode, elementWriter);
+    }
+
+    /**
+     * A JSON array body sent with chunked transfer encoding. Streamed bodies are not compressed.
+     */
+    public class JsonArrayStream {
+        private final int statusCode;
+        private final ObjectWriter elementWriter;
+        private JsonGenerator generator;
+
+        private JsonArrayStream(int statusCode, ObjectWriter elementWriter) {
+            this.statusCode = statusCode;
+            this.elementWriter = elementWriter;
+        }
+
+        /**
+         * Whether the head has been sent, i.e. the status can no longer change.
+         */
+        public boolean isStarted() {
+            return generator != null;
+        }
+
+        public void write(Object element) throws IOException {
+            start();
+            elementWriter.writeValue(generator, element);
+        }
+
+        /**
+         * Closes the array and ends the chunked body.
+         */
+        public void finish() throws IOException {
+            start();
+            generator.writeEndArray();
+            generator.close();
+            output.write(LAST_CHUNK);
+            output.flush();
+        }
+
+        /**
+         * Gives up on a started body: the last chunk is never sent, so the client sees an incomplete
+         * response, and the connection is closed afterwards.
+         */
+        public void abort() throws IOException {
+            keepAlive = false;
+            if (generator != null) {
+                output.flush();
+            }
+        }
+
+        private void start() throws IOException {
+            if (generator != null) {
+                return;
+            }
+            ResponseBuffer head = HEAD_BUFFERS.acquire();
+            try {
+                writeHead(head, statusCode, "application/json", 0, false, null);
+                head.writeAscii("\r\nTransfer-Encoding: chunked\r\n\r\n");
+                output.write(head.array(), 0, head.size());
+            } finally {
+                HEAD_BUFFERS.release(head);
+            }
+            status = statusCode;
+            bodyBytes = 0;
+            generator = elementWriter.getFactory().createGenerator(new ChunkedOutput());
+            generator.writeStartArray();
+        }
+    }
+
+    /**
+     * Frames every write as one chunk; the JSON generator only writes when its buffer is full.
+     */
+    private class ChunkedOutput extends OutputStream {
+        // Chunk size line, reused for every chunk of this body
+        private final ResponseBuffer size = new ResponseBuffer(16);
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                // An empty chunk would end the body
+                return;
+            }
+            size.reset();
+            size.writeAscii(Integer.toHexString(length));
+            size.write(CRLF, 0, CRLF.length);
+            output.write(size.array(), 0, size.size());
+            output.write(bytes, offset, length);
+            output.write(CRLF);
+            bodyBytes += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+        @Override
+        public void close() {
+            // The last chunk is written by JsonArrayStream.finish()
+        }
+    }
+
+    public static String reasonPhrase(int statusCode) {
+        return switch (statusCode) {
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 400 -> "Bad Request";
+            case 401 -> "Unauthorized";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 409 -> "Conflict";
+            case 413 -> "Payload Too Large";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 503 -> "Service Unavailable";
+            default -> "";
+        };
+    }
+}
@@ -0,0 +1,623 @@
+package at.technikum_wien;
+
+import at.technikum_wien.cards.Card;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link Storage} that keeps everything in memory, for tests, demos and benchmarks without
+ * PostgreSQL; all data is lost when the process ends.
+ *
+ * <ul>
+ *     <li>state lives in concurrent maps, so reads (stack, deck, deals, token lookup) take no lock</li>
+ *     <li>every change to a user's account, stack or deck happens under that user's lock; locks are
+ *     striped ({@link ServerConfig#MEMORY_LOCK_STRIPES}) and an operation on two users (trade,
+ *     battle result) takes both stripes in index order, so it cannot deadlock</li>
+ *     <li>card and deal ids are kept in the canonical lower-case form, whose string order equals
+ *     PostgreSQL's uuid order, so keyset pages come out as with {@link JdbcStorage}</li>
+ * </ul>
+ */
+public class InMemoryStorage implements Storage, Storage.UserRepository, Storage.CardRepository,
+        Storage.DeckRepository, Storage.PackageRepository, Storage.TradeRepository {
+
+    private final Map<String, Account> users = new ConcurrentHashMap<>();
+    private final Map<String, String> tokens = new ConcurrentHashMap<>();
+    private final Map<String, Card> cards = new ConcurrentHashMap<>();
+    // Owner of every card that has been bought
+    private final Map<String, String> owners = new ConcurrentHashMap<>();
+    private final Map<String, NavigableSet<String>> stacks = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> decks = new ConcurrentHashMap<>();
+    // Unsold packages, oldest first
+    private final Queue<List<String>> packages = new ConcurrentLinkedQueue<>();
+    private final ConcurrentSkipListMap<String, TradingDeal> deals = new ConcurrentSkipListMap<>();
+    private final TradeIndex openDeals = new TradeIndex();
+    private final Leaderboard leaderboard = new Leaderboard();
+    private final ReentrantLock[] stripes;
+    // Card ids must be unique across packages
+    private final ReentrantLock packageLock = new ReentrantLock();
+
+    public InMemoryStorage() {
+        this(ServerConfig.MEMORY_LOCK_STRIPES);
+    }
+
+    public InMemoryStorage(int lockStripes) {
+        stripes = new ReentrantLock[Math.max(1, lockStripes)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public void writeMetrics(StringBuilder out) {
+        Metrics.gauge(out, "mctg_memory_users", "Registered users.", users.size());
+        Metrics.gauge(out, "mctg_memory_sessions", "Users with a login token.", tokens.size());
+        Metrics.gauge(out, "mctg_memory_cards", "Cards in packages or stacks.", cards.size());
+        Metrics.gauge(out, "mctg_memory_unsold_packages", "Packages not bought yet.", packages.size());
+        Metrics.gauge(out, "mctg_memory_trading_deals", "Open trading deals.", deals.size());
+    }
+
+    @Override
+    public UserRepository users() {
+        return this;
+    }
+
+    @Override
+    public CardRepository cards() {
+        return this;
+    }
+
+    @Override
+    public DeckRepository decks() {
+        return this;
+    }
+
+    @Override
+    public PackageRepository packages() {
+        return this;
+    }
+
+    @Override
+    public TradeRepository trades() {
+        return this;
+    }
+
+    // ------------------ Users ------------------ //
+
+    @Override
+    public boolean createUser(String username, String password) {
+        if (users.putIfAbsent(username, new Account(password)) != null) {
+            return false;
+        }
+        leaderboard.put(username, Account.INITIAL_ELO, 0);
+        return true;
+    }
+
+    @Override
+    public boolean deleteUser(String username) {
+        lock(username, username);
+        try {
+            Account account = users.remove(username);
+            if (account == null) {
+                return false;
+            }
+            if (account.token != null) {
+                tokens.remove(account.token, username);
+            }
+            NavigableSet<String> stack = stacks.remove(username);
+            if (stack != null) {
+                for (String cardId : stack) {
+                    owners.remove(cardId, username);
+                }
+            }
+            decks.remove(username);
+            deals.values().removeIf(deal -> username.equals(deal.getOwner()));
+            openDeals.removeOwner(username);
+            leaderboard.remove(username);
+            return true;
+        } finally {
+            unlock(username, username);
+        }
+    }
+
+    @Override
+    public boolean authenticateUser(String username, String password) {
+        Account account = users.get(username);
+        return account != null && password.equals(account.password);
+    }
+
+    @Override
+    public boolean updateToken(String username, String token) {
+        lock(username, username);
+        try {
+            Account account = users.get(username);
+            if (account == null) {
+                return false;
+            }
+            if (account.token != null) {
+                tokens.remove(account.token, username);
+            }
+            account.token = token;
+            if (token != null) {
+                tokens.put(token, username);
+            }
+            return true;
+        } finally {
+            unlock(username, username);
+        }
+    }
+
+    @Override
+    public Principal getPrincipalByToken(String token) {
+        String username = (token != null) ? tokens.get(token) : null;
+        return (username != null) ? new Principal(username, UserDatabase.ADMIN_USERNAME.equals(username)) : null;
+    }
+
+    @Override
+    public User getUser(String username) {
+        lock(username, username);
+        try {
+            Account account = users.get(username);
+            if (account == null) {
+                return null;
+            }
+            return new User(username, account.coins, account.elo, account.bio, account.image,
+                    account.gamesPlayed, account.boosterCardId);
+        } finally {
+            unlock(username, username);
+        }
+    }
+
+    @Override
+    public boolean updateUserProfile(String username, String bio, String image) {
+        lock(username, username);
+        try {
+            Account account = users.get(username);
+            if (account == null) {
+                return false;
+            }
+            account.bio = bio;
+            account.image = image;
+            return true;
+        } finally {
+            unlock(username, username);
+        }
+    }
+
+    @Override
+    public boolean updateUserCoins(String username, int coins) {
+        lock(username, username);
+        try {
+            Account account = users.get(username);
+            if (account == null) {
+                return false;
+            }
+            account.coins = coins;
+            return true;
+        } finally {
+            unlock(username, username);
+        }
+    }
+
+    @Override
+    public boolean updateUserBoosterCard(String username, String boosterCardId) {
+        String cardId;
+        try {
+            cardId = (boosterCardId != null) ? canonical(boosterCardId) : null;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        lock(username, username);
+        try {
+            Account account = users.get(username);
+            if (account == null) {
+                return false;
+            }
+            account.boosterCardId = cardId;
+            return true;
+        } finally {
+            unlock(username, username);
+        }
+    }
+
+    @Override
+    public boolean recordBattleResult(String winner, String loser, boolean isWin, List<Battle.CardTransfer> transfers) {
+        lock(winner, loser);
+        try {
+            // A card that left its owner during the battle (e.g. traded) voids the whole result
+            for (Battle.CardTransfer transfer : transfers) {
+                if (!transfer.getFromUser().equals(owners.get(canonical(transfer.getCardId())))) {
+                    return false;
+                }
+            }
+            for (Battle.CardTransfer transfer : transfers) {
+                move(canonical(transfer.getCardId()), transfer.getFromUser(), transfer.getToUser());
+            }
+            applyBattle(winner, isWin ? 3 : 0);
+            applyBattle(loser, isWin ? -5 : 0);
+            return true;
+        } finally {
+            unlock(winner, loser);
+        }
+    }
+
+    private void applyBattle(String username, int eloDelta) {
+        Account account = users.get(username);
+        if (account != null) {
+            account.elo = Math.max(0, account.elo + eloDelta);
+            account.gamesPlayed++;
+            leaderboard.put(username, account.elo, account.gamesPlayed);
+        }
+    }
+
+    @Override
+    public Leaderboard leaderboard() {
+        return leaderboard;
+    }
+
+    // ------------------ Cards and decks ------------------ //
+
+    @Override
+    public List<Card> getUserCards(String username) {
+        return resolve(stackOf(username));
+    }
+
+    @Override
+    public List<Card> getUserCards(String username, UUID afterId, int limit) {
+        List<Card> page = new ArrayList<>(Math.min(limit, 256));
+        for (String cardId : stackOf(username).tailSet(afterId.toString(), false)) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.add(cards.get(cardId));
+        }
+        return page;
+    }
+
+    @Override
+    public boolean streamUserCards(String username, Database.RowConsumer<? super Card> consumer) throws IOException {
+        for (String cardId : stackOf(username)) {
+            consumer.accept(cards.get(cardId));
+        }
+        return true;
+    }
+
+    @Override
+    public List<Card> getTradeableCards(String username) {
+        List<String> deck = decks.getOrDefault(username, List.of());
+        List<Card> tradeable = new ArrayList<>();
+        for (String cardId : stackOf(username)) {
+            if (!deck.contains(cardId)) {
+                tradeable.add(cards.get(cardId));
+            }
+        }
+        return tradeable;
+    }
+
+    @Override
+    public boolean isCardOwnedByUser(String username, String cardId) {
+        try {
+            return username.equals(owners.get(canonical(cardId)));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public List<Card> getUserDeck(String username) {
+        return resolve(decks.getOrDefault(username, List.of()));
+    }
+
+    @Override
+    public boolean setUserDeck(String username, List<String> cardIds) {
+        UUID[] ids = Storage.DeckRepository.parseDeck(cardIds, ServerConfig.DECK_SIZE);
+        if (ids == null) {
+            return false;
+        }
+        List<String> deck = new ArrayList<>(ids.length);
+        for (UUID id : ids) {
+            deck.add(id.toString());
+        }
+        lock(username, username);
+        try {
+            for (String cardId : deck) {
+                if (!username.equals(owners.get(cardId))) {
+                    return false;
+                }
+            }
+            decks.put(username, List.copyOf(deck));
+            return true;
+        } finally {
+            unlock(username, username);
+        }
+    }
+
+    @Override
+    public boolean isCardInDeck(String username, String cardId) {
+        try {
+            return decks.getOrDefault(username, List.of()).contains(canonical(cardId));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private NavigableSet<String> stackOf(String username) {
+        NavigableSet<String> stack = stacks.get(username);
+        return (stack != null) ? stack : new ConcurrentSkipListSet<>();
+    }
+
+    private List<Card> resolve(Iterable<String> cardIds) {
+        List<Card> resolved = new ArrayList<>();
+        for (String cardId : cardIds) {
+            resolved.add(cards.get(cardId));
+        }
+        return resolved;
+    }
+
+    /**
+     * Moves a card between two stacks; the caller holds the locks of both users.
+     */
+    private void move(String cardId, String from, String to) {
+        owners.put(cardId, to);
+        NavigableSet<String> fromStack = stacks.get(from);
+        if (fromStack != null) {
+            fromStack.remove(cardId);
+        }
+        stacks.computeIfAbsent(to, k -> new ConcurrentSkipListSet<>()).add(cardId);
+    }
+
+    // ------------------ Packages ------------------ //
+
+    @Override
+    public boolean createPackage(List<Card> cards) {
+        return cards.size() == PackageDatabase.PACKAGE_SIZE && addPackages(List.of(cards)) == null;
+    }
+
+    @Override
+    public List<PackageDatabase.ChunkResult> createPackages(List<List<Card>> packages, int chunkSize) {
+        List<PackageDatabase.ChunkResult> results = new ArrayList<>();
+        for (int from = 0; from < packages.size(); from += chunkSize) {
+            List<List<Card>> chunk = packages.subList(from, Math.min(from + chunkSize, packages.size()));
+            PackageDatabase.ChunkResult result = new PackageDatabase.ChunkResult(results.size(), from, chunk.size());
+            result.error = addPackages(chunk);
+            result.created = (result.error == null);
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Adds packages all or nothing.
+     *
+     * @return null on success, otherwise why nothing was added
+     */
+    private String addPackages(List<List<Card>> newPackages) {
+        List<List<Card>> normalized = new ArrayList<>(newPackages.size());
+        Set<String> ids = new HashSet<>();
+        for (List<Card> cardsOfPackage : newPackages) {
+            List<Card> packageCards = new ArrayList<>(cardsOfPackage.size());
+            for (Card card : cardsOfPackage) {
+                String id;
+                try {
+                    id = canonical(card.getId());
+                } catch (IllegalArgumentException | NullPointerException e) {
+                    return "Invalid card id: " + card.getId();
+                }
+                if (!ids.add(id)) {
+                    return "Duplicate card id: " + id;
+                }
+                packageCards.add(id.equals(card.getId()) ? card : CardCatalog.fromRow(id, card.getName(),
+                        card.getDamage(), card.getType(), PackageDatabase.elementOf(card)));
+            }
+            normalized.add(packageCards);
+        }
+
+        packageLock.lock();
+        try {
+            for (String id : ids) {
+                if (cards.containsKey(id)) {
+                    return "Duplicate card id: " + id;
+                }
+            }
+            for (List<Card> packageCards : normalized) {
+                List<String> cardIds = new ArrayList<>(packageCards.size());
+                for (Card card : packageCards) {
+                    cards.put(card.getId(), card);
+                    cardIds.add(card.getId());
+                }
+                packages.add(List.copyOf(cardIds));
+            }
+            return null;
+        } finally {
+            packageLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean purchasePackage(String username) {
+        lock(username, username);
+        try {
+            Account account = users.get(username);
+            if (account == null || account.coins < PackageDatabase.PACKAGE_PRICE) {
+                return false;
+            }
+            List<String> cardIds = packages.poll();
+            if (cardIds == null) {
+                return false;
+            }
+            account.coins -= PackageDatabase.PACKAGE_PRICE;
+            NavigableSet<String> stack = stacks.computeIfAbsent(username, k -> new ConcurrentSkipListSet<>());
+            for (String cardId : cardIds) {
+                owners.put(cardId, username);
+                stack.add(cardId);
+            }
+            return true;
+        } finally {
+            unlock(username, username);
+        }
+    }
+
+    // ------------------ Trades ------------------ //
+
+    @Override
+    public boolean createTradingDeal(TradingDeal deal) {
+        try {
+            deal.setId(canonical(deal.getId()));
+            deal.setCardToTrade(canonical(deal.getCardToTrade()));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return false;
+        }
+        String owner = deal.getOwner();
+        lock(owner, owner);
+        try {
+            // As the foreign keys in the database: the owner and the card must exist
+            if (!users.containsKey(owner) || !cards.containsKey(deal.getCardToTrade())
+                    || deals.putIfAbsent(deal.getId(), deal) != null) {
+                return false;
+            }
+            openDeals.add(deal);
+            return true;
+        } finally {
+            unlock(owner, owner);
+        }
+    }
+
+    @Override
+    public List<TradingDeal> getTradingDeals(UUID afterId, int limit) {
+        List<TradingDeal> page = new ArrayList<>(Math.min(limit, 256));
+        for (TradingDeal deal : deals.tailMap(afterId.toString(), false).values()) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.add(deal);
+        }
+        return page;
+    }
+
+    @Override
+    public boolean streamTradingDeals(Database.RowConsumer<? super TradingDeal> consumer) throws IOException {
+        for (TradingDeal deal : deals.values()) {
+            consumer.accept(deal);
+        }
+        return true;
+    }
+
+    /**
+     * Locks the owner of the deal and the buyer, then checks and swaps as {@link TradingDatabase} does.
+     * A second buyer waits for the owner's lock and then no longer finds the deal.
+     */
+    @Override
+    public TradingDatabase.TradeResult acceptTradingDeal(String dealId, String buyer, String offeredCardId) {
+        String dealKey;
+        String offeredKey;
+        try {
+            offeredKey = canonical(offeredCardId);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            // Not a card the buyer could own
+            return TradingDatabase.TradeResult.FORBIDDEN;
+        }
+        try {
+            dealKey = canonical(dealId);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return TradingDatabase.TradeResult.NOT_FOUND;
+        }
+        TradingDeal deal = deals.get(dealKey);
+        if (deal == null) {
+            return TradingDatabase.TradeResult.NOT_FOUND;
+        }
+        String owner = deal.getOwner();
+        lock(owner, buyer);
+        try {
+            if (deals.get(dealKey) != deal) {
+                return TradingDatabase.TradeResult.NOT_FOUND;
+            }
+            if (buyer.equals(owner) || !buyer.equals(owners.get(offeredKey))
+                    || decks.getOrDefault(buyer, List.of()).contains(offeredKey)) {
+                return TradingDatabase.TradeResult.FORBIDDEN;
+            }
+            if (!TradingDatabase.meetsRequirements(deal, cards.get(offeredKey))) {
+                return TradingDatabase.TradeResult.REQUIREMENTS_NOT_MET;
+            }
+            // The owner no longer has the card: the deal is no longer valid
+            if (!owner.equals(owners.get(deal.getCardToTrade()))) {
+                return TradingDatabase.TradeResult.NOT_FOUND;
+            }
+            move(deal.getCardToTrade(), owner, buyer);
+            move(offeredKey, buyer, owner);
+            deals.remove(dealKey);
+            openDeals.remove(dealKey);
+            return TradingDatabase.TradeResult.ACCEPTED;
+        } finally {
+            unlock(owner, buyer);
+        }
+    }
+
+    @Override
+    public List<TradeIndex.Match> findMatches(String username) {
+        return openDeals.matches(username, getTradeableCards(username));
+    }
+
+    // ------------------ Locking ------------------ //
+
+    private int stripe(String username) {
+        return Math.floorMod(username.hashCode(), stripes.length);
+    }
+
+    /**
+     * Locks the stripes of both users, lower index first; pass the same user twice for one.
+     */
+    private void lock(String first, String second) {
+        int a = stripe(first);
+        int b = stripe(second);
+        stripes[Math.min(a, b)].lock();
+        if (a != b) {
+            stripes[Math.max(a, b)].lock();
+        }
+    }
+
+    private void unlock(String first, String second) {
+        int a = stripe(first);
+        int b = stripe(second);
+        if (a != b) {
+            stripes[Math.max(a, b)].unlock();
+        }
+        stripes[Math.min(a, b)].unlock();
+    }
+
+    private static String canonical(String id) {
+        return UUID.fromString(id).toString();
+    }
+
+    /**
+     * Everything stored per user apart from cards; fields are guarded by the user's stripe.
+     */
+    private static class Account {
+        private static final int INITIAL_COINS = 20;
+        private static final int INITIAL_ELO = 100;
+
+        private final String password;
+        private String token;
+        private int coins = INITIAL_COINS;
+        private int elo = INITIAL_ELO;
+        private int gamesPlayed;
+        private String bio;
+        private String image;
+        private String boosterCardId;
+
+        Account(String password) {
+            this.password = password;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package at.technikum_wien;
+
+import at.technikum_wien.cards.Card;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link Storage} on PostgreSQL: delegates to {@link UserDatabase}, {@link PackageDatabase} and
+ * {@link TradingDatabase}, which keep their connection pool, caches and indexes.
+ */
+public class JdbcStorage implements Storage, Storage.UserRepository, Storage.CardRepository,
+        Storage.DeckRepository, Storage.PackageRepository, Storage.TradeRepository {
+
+    /**
+     * Migrates the schema (and checks the hot-path indexes) if configured, then loads the
+     * leaderboard and the open deals; if loading fails here it is retried on first use.
+     */
+    @Override
+    public void start() throws SQLException {
+        if (ServerConfig.DB_MIGRATE) {
+            SchemaManager.migrate(ServerConfig.DB_VERIFY_INDEXES);
+        }
+        UserDatabase.loadLeaderboard();
+        TradingDatabase.loadOpenDeals();
+    }
+
+    @Override
+    public void writeMetrics(StringBuilder out) {
+        ConnectionPool pool = Database.pool();
+        Metrics.gauge(out, "mctg_db_pool_active", "Borrowed database connections.", pool.active());
+        Metrics.gauge(out, "mctg_db_pool_idle", "Idle database connections.", pool.idle());
+        Metrics.gauge(out, "mctg_db_pool_waiting", "Threads waiting for a database connection.", pool.waiting());
+        Metrics.gauge(out, "mctg_db_pool_total", "Open physical database connections.", pool.total());
+        out.append("# HELP mctg_db_statement_cache_total Prepared statement cache lookups by result.\n");
+        out.append("# TYPE mctg_db_statement_cache_total counter\n");
+        out.append("mctg_db_statement_cache_total{result=\"hit\"} ").append(StatementCache.hits()).append('\n');
+        out.append("mctg_db_statement_cache_total{result=\"miss\"} ").append(StatementCache.misses()).append('\n');
+        out.append("mctg_db_statement_cache_evictions_total ").append(StatementCache.evictions()).append('\n');
+
+        Metrics.gauge(out, "mctg_card_catalog_size", "Cards held in the shared card catalog.", CardCatalog.size());
+        TokenCache tokens = UserDatabase.tokenCache();
+        Metrics.gauge(out, "mctg_token_cache_size", "Cached login tokens.", tokens.size());
+        out.append("# HELP mctg_token_cache_total Token cache lookups by result.\n");
+        out.append("# TYPE mctg_token_cache_total counter\n");
+        out.append("mctg_token_cache_total{result=\"hit\"} ").append(tokens.hits()).append('\n');
+        out.append("mctg_token_cache_total{result=\"miss\"} ").append(tokens.misses()).append('\n');
+    }
+
+    @Override
+    public UserRepository users() {
+        return this;
+    }
+
+    @Override
+    public CardRepository cards() {
+        return this;
+    }
+
+    @Override
+    public DeckRepository decks() {
+        return this;
+    }
+
+    @Override
+    public PackageRepository packages() {
+        return this;
+    }
+
+    @Override
+    public TradeRepository trades() {
+        return this;
+    }
+
+    // ------------------ Users ------------------ //
+
+    @Override
+    public boolean createUser(String username, String password) {
+        return UserDatabase.createUser(username, password);
+    }
+
+    @Override
+    public boolean deleteUser(String username) {
+        return UserDatabase.deleteUser(username);
+    }
+
+    @Override
+    public boolean authenticateUser(String username, String password) {
+        return UserDatabase.authenticateUser(username, password);
+    }
+
+    @Override
+    public boolean updateToken(String username, String token) {
+        return UserDatabase.updateToken(username, token);
+    }
+
+    @Override
+    public Principal getPrincipalByToken(String token) {
+        return UserDatabase.getPrincipalByToken(token);
+    }
+
+    @Override
+    public User getUser(String username) {
+        return UserDatabase.getUser(username);
+    }
+
+    @Override
+    public boolean updateUserProfile(String username, String bio, String image) {
+        return UserDatabase.updateUserProfile(username, bio, image);
+    }
+
+    @Override
+    public boolean updateUserCoins(String username, int coins) {
+        return UserDatabase.updateUserCoins(username, coins);
+    }
+
+    @Override
+    public boolean updateUserBoosterCard(String username, String boosterCardId) {
+        return UserDatabase.updateUserBoosterCard(username, boosterCardId);
+    }
+
+    @Override
+    public boolean recordBattleResult(String winner, String loser, boolean isWin, List<Battle.CardTransfer> transfers) {
+        return UserDatabase.recordBattleResult(winner, loser, isWin, transfers);
+    }
+
+    @Override
+    public Leaderboard leaderboard() {
+        return UserDatabase.leaderboard();
+    }
+
+    // ------------------ Cards and decks ------------------ //
+
+    @Override
+    public List<Card> getUserCards(String username) {
+        return UserDatabase.getUserCards(username);
+    }
+
+    @Override
+    public List<Card> getUserCards(String username, UUID afterId, int limit) {
+        return UserDatabase.getUserCards(username, afterId, limit);
+    }
+
+    @Override
+    public boolean streamUserCards(String username, Database.RowConsumer<? super Card> consumer) throws IOException {
+        return UserDatabase.streamUserCards(username, consumer);
+    }
+
+    @Override
+    public List<Card> getTradeableCards(String username) {
+        return UserDatabase.getTradeableCards(username);
+    }
+
+    @Override
+    public boolean isCardOwnedByUser(String username, String cardId) {
+        return UserDatabase.isCardOwnedByUser(username, cardId);
+    }
+
+    @Override
+    public List<Card> getUserDeck(String username) {
+        return UserDatabase.getUserDeck(username);
+    }
+
+    @Override
+    public boolean setUserDeck(String username, List<String> cardIds) {
+        return UserDatabase.setUserDeck(username, cardIds);
+    }
+
+    @Override
+    public boolean isCardInDeck(String username, String cardId) {
+        return UserDatabase.isCardInDeck(username, cardId);
+    }
+
+    // ------------------ Packages ------------------ //
+
+    @Override
+    public boolean createPackage(List<Card> cards) {
+        return PackageDatabase.createPackage(cards);
+    }
+
+    @Override
+    public List<PackageDatabase.ChunkResult> createPackages(List<List<Card>> packages, int chunkSize) {
+        return PackageDatabase.createPackages(packages, chunkSize);
+    }
+
+    @Override
+    public boolean purchasePackage(String username) {
+        return PackageDatabase.purchasePackage(username);
+    }
+
+    // ------------------ Trades ------------------ //
+
+    @Override
+    public boolean createTradingDeal(TradingDeal deal) {
+        return TradingDatabase.createTradingDeal(deal);
+    }
+
+    @Override
+    public List<TradingDeal> getTradingDeals(UUID afterId, int limit) {
+        return TradingDatabase.getTradingDeals(afterId, limit);
+    }
+
+    @Override
+    public boolean streamTradingDeals(Database.RowConsumer<? super TradingDeal> consumer) throws IOException {
+        return TradingDatabase.streamTradingDeals(consumer);
+    }
+
+    @Override
+    public TradingDatabase.TradeResult acceptTradingDeal(String dealId, String buyer, String offeredCardId) {
+        return TradingDatabase.acceptTradingDeal(dealId, buyer, offeredCardId);
+    }
+
+    @Override
+    public List<TradeIndex.Match> findMatches(String username) {
+        return TradingDatabase.findMatches(username);
+    }
+}
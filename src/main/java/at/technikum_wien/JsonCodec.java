@@ -0,0 +1,59 @@
+package at.technikum_wien;
+
+import at.technikum_wien.cards.Card;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pre-built Jackson readers and writers for all request and response types. ObjectReader and
+ * ObjectWriter are immutable and thread-safe, so they are created once and shared by all requests
+ * instead of building a new ObjectMapper (and its serializer caches) every time.
+ */
+public class JsonCodec {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // ------------------ Readers (request bodies) ------------------ //
+    public static final ObjectReader STRING_MAP_READER = MAPPER.readerFor(new TypeReference<Map<String, String>>() {});
+    public static final ObjectReader INT_MAP_READER = MAPPER.readerFor(new TypeReference<Map<String, Integer>>() {});
+    public static final ObjectReader STRING_LIST_READER = MAPPER.readerFor(new TypeReference<List<String>>() {});
+    public static final ObjectReader CARD_LIST_READER = MAPPER.readerFor(new TypeReference<List<Card>>() {});
+    public static final ObjectReader PACKAGE_LIST_READER = MAPPER.readerFor(new TypeReference<List<List<Card>>>() {});
+    public static final ObjectReader TRADING_DEAL_READER = MAPPER.readerFor(TradingDeal.class);
+
+    // ------------------ Writers (response bodies) ------------------ //
+    public static final ObjectWriter STRING_MAP_WRITER = MAPPER.writerFor(new TypeReference<Map<String, String>>() {});
+    // Not bound to List<Card>: that would add the @JsonTypeInfo id on top of the "type" property
+    // every card already serializes, so cards are written by their runtime type as before
+    public static final ObjectWriter CARD_LIST_WRITER = MAPPER.writer();
+    public static final ObjectWriter USER_WRITER = MAPPER.writerFor(User.class);
+    public static final ObjectWriter USER_LIST_WRITER = MAPPER.writerFor(new TypeReference<List<User>>() {});
+    public static final ObjectWriter SCOREBOARD_WRITER = MAPPER.writerFor(new TypeReference<List<Leaderboard.Entry>>() {});
+    public static final ObjectWriter SCOREBOARD_ENTRY_WRITER = MAPPER.writerFor(Leaderboard.Entry.class);
+    public static final ObjectWriter CHUNK_RESULT_LIST_WRITER =
+            MAPPER.writerFor(new TypeReference<List<PackageDatabase.ChunkResult>>() {});
+    // Elements of a streamed array; flushing after every element would send each one as its own chunk
+    public static final ObjectWriter STREAM_ELEMENT_WRITER = MAPPER.writer()
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    public static final ObjectWriter TRADING_DEAL_LIST_WRITER = MAPPER.writerFor(new TypeReference<List<TradingDeal>>() {});
+    public static final ObjectWriter TRADE_MATCH_LIST_WRITER = MAPPER.writerFor(new TypeReference<List<TradeIndex.Match>>() {});
+
+    /**
+     * Reads newline-delimited JSON (one value per line). Goes through an explicit parser because
+     * {@code readValues(byte[])} would take a leading array as a wrapper around all values.
+     */
+    public static <T> List<T> readNdjson(ObjectReader reader, byte[] body) throws IOException {
+        try (JsonParser parser = MAPPER.getFactory().createParser(body);
+             MappingIterator<T> values = reader.readValues(parser)) {
+            return values.readAll();
+        }
+    }
+}
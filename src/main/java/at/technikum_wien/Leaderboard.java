@@ -0,0 +1,295 @@
+package at.technikum_wien;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Scoreboard kept in memory, ordered by ELO (highest first) and then by username. Users are kept
+ * in an indexed skip list: every forward link also stores how many users it skips, so the rank of
+ * a user and the user at a given rank are both found in O(log n), and a page of the scoreboard
+ * costs O(log n + limit) instead of sorting the whole users table.
+ *
+ * <p>Reads share a read lock; updates (a few per battle) take the write lock.
+ */
+public class Leaderboard {
+    private static final int MAX_LEVEL = 32;
+
+    private final Node head = new Node(null, 0, 0, MAX_LEVEL);
+    private final Map<String, Node> byUsername = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int level = 1;
+    private int size;
+
+    /**
+     * Replaces the whole scoreboard (e.g. after loading it from the database).
+     */
+    public void reset(List<Entry> users) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < MAX_LEVEL; i++) {
+                head.next[i] = null;
+                head.span[i] = 0;
+            }
+            byUsername.clear();
+            level = 1;
+            size = 0;
+            for (Entry user : users) {
+                insert(user.username, user.elo, user.gamesPlayed);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a user or replaces their ELO and games played.
+     */
+    public void put(String username, int elo, int gamesPlayed) {
+        lock.writeLock().lock();
+        try {
+            Node existing = byUsername.get(username);
+            if (existing != null) {
+                delete(existing);
+            }
+            insert(username, elo, gamesPlayed);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies an ELO change (never below 0) and additional games played; unknown users are ignored.
+     */
+    public void adjust(String username, int eloDelta, int gamesPlayed) {
+        lock.writeLock().lock();
+        try {
+            Node node = byUsername.get(username);
+            if (node != null) {
+                delete(node);
+                insert(username, Math.max(0, node.elo + eloDelta), node.gamesPlayed + gamesPlayed);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String username) {
+        lock.writeLock().lock();
+        try {
+            Node node = byUsername.get(username);
+            if (node != null) {
+                delete(node);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The scoreboard entry of a user including their rank (1 = best), or null if unknown.
+     */
+    public Entry entry(String username) {
+        lock.readLock().lock();
+        try {
+            Node target = byUsername.get(username);
+            if (target == null) {
+                return null;
+            }
+            int rank = 0;
+            Node x = head;
+            for (int i = level - 1; i >= 0; i--) {
+                while (x.next[i] != null && compare(x.next[i], target.elo, target.username) <= 0) {
+                    rank += x.span[i];
+                    x = x.next[i];
+                }
+                if (x == target) {
+                    break;
+                }
+            }
+            return new Entry(rank, target.username, target.elo, target.gamesPlayed);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Up to {@code limit} entries starting after the first {@code offset} ones.
+     */
+    public List<Entry> page(int offset, int limit) {
+        lock.readLock().lock();
+        try {
+            List<Entry> entries = new ArrayList<>(Math.max(0, Math.min(limit, size - offset)));
+            if (offset >= size || limit <= 0) {
+                return entries;
+            }
+            int rank = offset + 1;
+            Node x = nodeAt(rank);
+            while (x != null && entries.size() < limit) {
+                entries.add(new Entry(rank++, x.username, x.elo, x.gamesPlayed));
+                x = x.next[0];
+            }
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Node nodeAt(int rank) {
+        int traversed = 0;
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && traversed + x.span[i] <= rank) {
+                traversed += x.span[i];
+                x = x.next[i];
+            }
+            if (traversed == rank) {
+                return x;
+            }
+        }
+        return null;
+    }
+
+    private void insert(String username, int elo, int gamesPlayed) {
+        Node[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = (i == level - 1) ? 0 : rank[i + 1];
+            while (x.next[i] != null && compare(x.next[i], elo, username) < 0) {
+                rank[i] += x.span[i];
+                x = x.next[i];
+            }
+            update[i] = x;
+        }
+
+        int nodeLevel = randomLevel();
+        if (nodeLevel > level) {
+            for (int i = level; i < nodeLevel; i++) {
+                rank[i] = 0;
+                update[i] = head;
+                head.span[i] = size;
+            }
+            level = nodeLevel;
+        }
+
+        Node node = new Node(username, elo, gamesPlayed, nodeLevel);
+        for (int i = 0; i < nodeLevel; i++) {
+            node.next[i] = update[i].next[i];
+            update[i].next[i] = node;
+            // update[i] now skips to the new node; the new node takes over the rest of the old span
+            node.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = (rank[0] - rank[i]) + 1;
+        }
+        for (int i = nodeLevel; i < level; i++) {
+            update[i].span[i]++;
+        }
+        byUsername.put(username, node);
+        size++;
+    }
+
+    private void delete(Node node) {
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && compare(x.next[i], node.elo, node.username) < 0) {
+                x = x.next[i];
+            }
+            update[i] = x;
+        }
+        for (int i = 0; i < level; i++) {
+            if (update[i].next[i] == node) {
+                update[i].span[i] += node.span[i] - 1;
+                update[i].next[i] = node.next[i];
+            } else {
+                update[i].span[i]--;
+            }
+        }
+        while (level > 1 && head.next[level - 1] == null) {
+            level--;
+        }
+        byUsername.remove(node.username);
+        size--;
+    }
+
+    /**
+     * Negative if {@code node} comes before the given user: higher ELO first, then by username.
+     */
+    private static int compare(Node node, int elo, String username) {
+        if (node.elo != elo) {
+            return (node.elo > elo) ? -1 : 1;
+        }
+        return node.username.compareTo(username);
+    }
+
+    private static int randomLevel() {
+        // Each level with probability 1/4, as in Redis' sorted sets
+        int nodeLevel = 1;
+        while (nodeLevel < MAX_LEVEL && (ThreadLocalRandom.current().nextInt() & 3) == 0) {
+            nodeLevel++;
+        }
+        return nodeLevel;
+    }
+
+    private static class Node {
+        private final String username;
+        private final int elo;
+        private final int gamesPlayed;
+        private final Node[] next;
+        // Number of level-0 steps the link at the same index skips
+        private final int[] span;
+
+        Node(String username, int elo, int gamesPlayed, int level) {
+            this.username = username;
+            this.elo = elo;
+            this.gamesPlayed = gamesPlayed;
+            this.next = new Node[level];
+            this.span = new int[level];
+        }
+    }
+
+    /**
+     * One row of the scoreboard; only the fields the scoreboard shows.
+     */
+    public static class Entry {
+        private final int rank;
+        private final String username;
+        private final int elo;
+        private final int gamesPlayed;
+
+        public Entry(int rank, String username, int elo, int gamesPlayed) {
+            this.rank = rank;
+            this.username = username;
+            this.elo = elo;
+            this.gamesPlayed = gamesPlayed;
+        }
+
+        public int getRank() {
+            return rank;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public int getElo() {
+            return elo;
+        }
+
+        public int getGamesPlayed() {
+            return gamesPlayed;
+        }
+    }
+}
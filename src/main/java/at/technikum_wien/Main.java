@@ -3,24 +3,52 @@ package at.technikum_wien;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadFactory;
 
 
 public class Main {
     public static void main(String[] args) {
 
-        int port = 10001;
+        int port = ServerConfig.PORT;
+        // Server mode can be given as first argument or via -Dmctg.server
+        String mode = (args.length > 0) ? args[0] : ServerConfig.SERVER_MODE;
 
+        // Schema migrieren, Rangliste und offene Angebote laden; ohne bereiten Speicher nicht starten
+        try {
+            Storage.get().start();
+        } catch (SQLException | IllegalStateException e) {
+            System.err.println("Speicher nicht bereit: " + e.getMessage());
+            System.exit(1);
+        }
+
+        // The battle budget depends on what a waiting battle ties up in this mode
+        ClientHandler.setAdmission(AdmissionController.forServerMode(mode));
+
+        try {
+            if ("nio".equalsIgnoreCase(mode)) {
+                new NioServer(port, ServerConfig.NIO_WORKERS, ServerConfig.NIO_QUEUE_SIZE).start();
+            } else if ("virtual".equalsIgnoreCase(mode)) {
+                // Every connection and every battle runs on its own virtual thread
+                BattleHandler.setThreadFactory(Thread.ofVirtual().name("battle-", 0).factory());
+                runBlockingServer(port, Thread.ofVirtual().name("client-", 0).factory());
+            } else {
+                runBlockingServer(port, Thread::new);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void runBlockingServer(int port, ThreadFactory threadFactory) throws IOException {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             System.out.println("Server gestartet und hört auf Port " + port);
 
             while (true) {
                 Socket clientSocket = serverSocket.accept(); // Wartet auf eingehende Verbindungen
                 // Für jede Verbindung einen neuen Thread starten
-                new Thread(new ClientHandler(clientSocket)).start();
+                threadFactory.newThread(new ClientHandler(clientSocket)).start();
             }
-
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 }
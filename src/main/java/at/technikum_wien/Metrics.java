@@ -0,0 +1,206 @@
+package at.technikum_wien;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process metrics: request, status and byte counters plus a latency histogram per route.
+ * Counters are {@link LongAdder}s (striped, so concurrent requests do not contend on one cache
+ * line) and histograms have a fixed number of buckets, so recording a request allocates nothing
+ * once the route has been seen. {@link #writePrometheus(StringBuilder)} renders everything in the
+ * Prometheus text format for {@code GET /metrics}.
+ */
+public class Metrics {
+    private static final LongAdder REQUESTS = new LongAdder();
+    private static final LongAdder RESPONSE_BYTES = new LongAdder();
+    // Index = status code - 100
+    private static final LongAdder[] STATUS_CODES = new LongAdder[500];
+    // method -> route template -> metrics
+    private static final Map<String, Map<String, RouteMetrics>> ROUTES = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < STATUS_CODES.length; i++) {
+            STATUS_CODES[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one handled request.
+     */
+    public static void recordRequest(String method, String routeTemplate, int status, long bytes, long latencyNanos) {
+        REQUESTS.increment();
+        RESPONSE_BYTES.add(bytes);
+        if (status >= 100 && status < 600) {
+            STATUS_CODES[status - 100].increment();
+        }
+        route(method, routeTemplate).record(latencyNanos);
+    }
+
+    private static RouteMetrics route(String method, String routeTemplate) {
+        Map<String, RouteMetrics> routes = ROUTES.get(method);
+        if (routes == null) {
+            routes = ROUTES.computeIfAbsent(method, m -> new ConcurrentHashMap<>());
+        }
+        RouteMetrics metrics = routes.get(routeTemplate);
+        if (metrics == null) {
+            metrics = routes.computeIfAbsent(routeTemplate, t -> new RouteMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * Appends all metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    public static void writePrometheus(StringBuilder out) {
+        out.append("# HELP mctg_requests_total Handled HTTP requests.\n");
+        out.append("# TYPE mctg_requests_total counter\n");
+        out.append("mctg_requests_total ").append(REQUESTS.sum()).append('\n');
+
+        out.append("# HELP mctg_response_bytes_total Response body bytes sent (after compression).\n");
+        out.append("# TYPE mctg_response_bytes_total counter\n");
+        out.append("mctg_response_bytes_total ").append(RESPONSE_BYTES.sum()).append('\n');
+
+        out.append("# HELP mctg_responses_total Responses by status code.\n");
+        out.append("# TYPE mctg_responses_total counter\n");
+        for (int i = 0; i < STATUS_CODES.length; i++) {
+            long count = STATUS_CODES[i].sum();
+            if (count > 0) {
+                out.append("mctg_responses_total{status=\"").append(i + 100).append("\"} ").append(count).append('\n');
+            }
+        }
+
+        out.append("# HELP mctg_request_duration_seconds Request latency by route.\n");
+        out.append("# TYPE mctg_request_duration_seconds histogram\n");
+        ROUTES.forEach((method, routes) -> routes.forEach((template, metrics) -> {
+            String labels = "method=\"" + method + "\",route=\"" + escape(template) + "\"";
+            metrics.latency.writePrometheus(out, "mctg_request_duration_seconds", labels);
+        }));
+
+        gauge(out, "mctg_battle_queue_depth", "Players waiting for an opponent.", BattleHandler.queueDepth());
+        gauge(out, "mctg_battles_active", "Battles currently being fought.", BattleHandler.activeBattles());
+
+        // Pool and caches of the database, or the sizes of the in-memory storage
+        Storage.get().writeMetrics(out);
+
+        AdmissionController admission = ClientHandler.admission();
+        gauge(out, "mctg_requests_in_flight", "Requests holding an admission slot.", admission.requests().inFlight());
+        gauge(out, "mctg_battle_requests_in_flight", "Battle requests holding an admission slot.",
+                admission.battles().inFlight());
+        out.append("# HELP mctg_requests_rejected_total Requests rejected with 503 by admission control.\n");
+        out.append("# TYPE mctg_requests_rejected_total counter\n");
+        out.append("mctg_requests_rejected_total{budget=\"requests\"} ").append(admission.requests().rejected()).append('\n');
+        out.append("mctg_requests_rejected_total{budget=\"battles\"} ").append(admission.battles().rejected()).append('\n');
+
+        out.append("# HELP mctg_log_dropped_total Log records dropped because the buffer was full.\n");
+        out.append("# TYPE mctg_log_dropped_total counter\n");
+        out.append("mctg_log_dropped_total ").append(AsyncLog.droppedRecords()).append('\n');
+    }
+
+    static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static class RouteMetrics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        void record(long latencyNanos) {
+            latency.record(latencyNanos);
+        }
+    }
+
+    /**
+     * Log-linear histogram of durations in microseconds: every power of two is split into
+     * {@value #SUB_BUCKETS} linear sub-buckets, which bounds the relative error to 12.5% over the
+     * whole range from 1µs to about a minute with a fixed array of counters.
+     */
+    public static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // 2^26 µs ≈ 67 s; slower requests end up in the last bucket
+        private static final int MAX_EXPONENT = 26;
+        static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumMicros = new LongAdder();
+
+        public void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets.incrementAndGet(bucketIndex(micros));
+            count.increment();
+            sumMicros.add(micros);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        static int bucketIndex(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            int index = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+            return Math.min(index, BUCKET_COUNT - 1);
+        }
+
+        /**
+         * Exclusive upper bound of a bucket in microseconds.
+         */
+        static long bucketUpperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index + 1;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return (SUB_BUCKETS + index % SUB_BUCKETS) * width + width;
+        }
+
+        /**
+         * Value (in microseconds) below which the given fraction of recorded durations lies,
+         * accurate to the width of its bucket.
+         */
+        public long percentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                total += buckets.get(i);
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return bucketUpperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Writes the histogram with one cumulative bucket per power of two, so every scrape uses
+         * the same bucket boundaries.
+         */
+        void writePrometheus(StringBuilder out, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                cumulative += buckets.get(i);
+                if (i % SUB_BUCKETS == SUB_BUCKETS - 1) {
+                    out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                            .append(bucketUpperBound(i) / 1_000_000.0).append("\"} ").append(cumulative).append('\n');
+                }
+            }
+            out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum{").append(labels).append("} ").append(sumMicros.sum() / 1_000_000.0).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package at.technikum_wien;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selector based server. A single event-loop thread accepts connections and reads requests
+ * without blocking; complete requests are handed to a bounded worker pool which runs the
+ * normal {@link ClientHandler} routing. Responses are written back by the event loop, after which
+ * persistent connections continue with the next (possibly already pipelined) request.
+ */
+public class NioServer {
+    private static final byte[] SERVICE_UNAVAILABLE = response(503, "Service Unavailable");
+    private static final byte[] NOT_FOUND = response(404, "Not Found");
+
+    private static final long IDLE_CHECK_INTERVAL_MS = 1000;
+
+    private final int port;
+    private final ThreadPoolExecutor workers;
+    private final HttpRequestParser parser =
+            new HttpRequestParser(ServerConfig.MAX_HEADER_BYTES, ServerConfig.MAX_BODY_BYTES);
+    private final Queue<Connection> pendingResponses = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private long lastIdleCheck;
+
+    public NioServer(int port, int workerCount, int queueSize) {
+        this.port = port;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize));
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Server (nio, " + workers.getMaximumPoolSize() + " workers) hört auf Port " + port);
+
+            while (true) {
+                selector.select(IDLE_CHECK_INTERVAL_MS);
+                flushPendingResponses();
+                closeIdleConnections();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(serverChannel);
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(key));
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        int read = channel.read(connection.ensureCapacity());
+        if (read == -1) {
+            close(key);
+            return;
+        }
+        connection.lastActivity = System.currentTimeMillis();
+        dispatchNextRequest(connection);
+    }
+
+    /**
+     * Dispatches the next complete request in the read buffer, if there is one. Only one request per
+     * connection is in flight at a time, so pipelined requests are answered in order.
+     */
+    private void dispatchNextRequest(Connection connection) {
+        ByteBuffer buffer = connection.readBuffer;
+        HttpRequest request = connection.request;
+        try {
+            if (!parser.parseHead(buffer, 0, buffer.position(), request)) {
+                return;
+            }
+        } catch (HttpRequestParser.ParseException e) {
+            reject(connection, response(e.getStatusCode(), e.getMessage()));
+            return;
+        }
+
+        Router.Match<ClientHandler.RouteHandler> route = ClientHandler.route(request);
+        if (route == null && request.contentLength() > 0) {
+            // Unknown route: reject without waiting for the body
+            reject(connection, NOT_FOUND);
+            return;
+        }
+
+        int requestEnd = request.start() + request.length();
+        if (buffer.position() < requestEnd) {
+            connection.reserve(requestEnd);
+            return;
+        }
+
+        // Stop reading until the response has been written
+        connection.key.interestOps(0);
+        connection.inFlight = true;
+        HttpRequest complete = request.copy();
+        connection.discard(requestEnd);
+        connection.handledRequests++;
+        // As in the blocking loop: the last allowed request gets "Connection: close"
+        dispatch(connection, complete, route, connection.handledRequests < ServerConfig.MAX_KEEP_ALIVE_REQUESTS);
+    }
+
+    private void dispatch(Connection connection, HttpRequest request, Router.Match<ClientHandler.RouteHandler> route,
+                          boolean allowKeepAlive) {
+        try {
+            workers.execute(() -> {
+                ResponseBuffer responseOutput = new ResponseBuffer(1024);
+                ClientHandler handler = new ClientHandler(responseOutput);
+                try {
+                    handler.handle(request, route, allowKeepAlive);
+                } catch (IOException e) {
+                    AsyncLog.error("NioServer.dispatch", e);
+                }
+                respond(connection, responseOutput.asByteBuffer(), !handler.isKeepAlive());
+            });
+        } catch (RejectedExecutionException e) {
+            reject(connection, SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private void reject(Connection connection, byte[] response) {
+        connection.key.interestOps(0);
+        connection.inFlight = true;
+        connection.response = ByteBuffer.wrap(response);
+        connection.closeAfterResponse = true;
+        writeOrRegister(connection);
+    }
+
+    /**
+     * Called by worker threads: hands the response over to the event loop.
+     */
+    private void respond(Connection connection, ByteBuffer response, boolean closeAfterResponse) {
+        connection.response = response;
+        connection.closeAfterResponse = closeAfterResponse || !response.hasRemaining();
+        pendingResponses.add(connection);
+        selector.wakeup();
+    }
+
+    private void flushPendingResponses() {
+        Connection connection;
+        while ((connection = pendingResponses.poll()) != null) {
+            if (connection.key.isValid()) {
+                writeOrRegister(connection);
+            }
+        }
+    }
+
+    private void writeOrRegister(Connection connection) {
+        try {
+            if (!writeResponse(connection)) {
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            close(connection.key);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        writeResponse((Connection) key.attachment());
+    }
+
+    /**
+     * Writes as much of the pending response as the socket accepts.
+     *
+     * @return false if bytes are left and the connection has to wait for OP_WRITE
+     */
+    private boolean writeResponse(Connection connection) throws IOException {
+        SocketChannel channel = (SocketChannel) connection.key.channel();
+        channel.write(connection.response);
+        if (connection.response.hasRemaining()) {
+            return false;
+        }
+
+        if (connection.closeAfterResponse) {
+            close(connection.key);
+            return true;
+        }
+        // Keep-alive: continue with an already buffered (pipelined) request or wait for the next one
+        connection.response = null;
+        connection.inFlight = false;
+        connection.lastActivity = System.currentTimeMillis();
+        connection.key.interestOps(SelectionKey.OP_READ);
+        dispatchNextRequest(connection);
+        return true;
+    }
+
+    /**
+     * Closes persistent connections that have been idle longer than the keep-alive timeout.
+     */
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck < IDLE_CHECK_INTERVAL_MS) {
+            return;
+        }
+        lastIdleCheck = now;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection connection && !connection.inFlight
+                    && now - connection.lastActivity > ServerConfig.KEEP_ALIVE_TIMEOUT_MS) {
+                close(key);
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            AsyncLog.error("NioServer.close", e);
+        }
+    }
+
+    private static byte[] response(int statusCode, String body) {
+        return ("HTTP/1.1 " + statusCode + " " + body + "\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "Content-Length: " + body.length() + "\r\n" +
+                "Connection: close\r\n" +
+                "\r\n" +
+                body).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Per-connection state, only touched by the event loop (except {@link #response} and
+     * {@link #closeAfterResponse}, which are published through {@link #pendingResponses}).
+     */
+    private static class Connection {
+        private final SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        private final HttpRequest request = new HttpRequest();
+        private volatile ByteBuffer response;
+        private volatile boolean closeAfterResponse;
+        private boolean inFlight;
+        private int handledRequests;
+        private long lastActivity = System.currentTimeMillis();
+
+        Connection(SelectionKey key) {
+            this.key = key;
+        }
+
+        ByteBuffer ensureCapacity() {
+            if (!readBuffer.hasRemaining()) {
+                reserve(readBuffer.capacity() * 2);
+            }
+            return readBuffer;
+        }
+
+        void reserve(int capacity) {
+            if (capacity > readBuffer.capacity()) {
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                readBuffer.flip();
+                grown.put(readBuffer);
+                readBuffer = grown;
+            }
+        }
+
+        /**
+         * Removes the first {@code length} bytes from the read buffer.
+         */
+        void discard(int length) {
+            readBuffer.flip();
+            readBuffer.position(length);
+            readBuffer.compact();
+        }
+    }
+}
@@ -8,149 +8,296 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 public class PackageDatabase {
+    // Karten pro Paket
+    public static final int PACKAGE_SIZE = 5;
+    // Preis eines Pakets in Coins
+    static final int PACKAGE_PRICE = 5;
+
+    private static final PackageQueue PACKAGES = new PackageQueue(ServerConfig.PACKAGE_QUEUE_BATCH_SIZE,
+            PackageDatabase::loadUnsoldPackageIds);
 
     public static boolean createPackage(List<Card> cards) {
-        if (cards.size() != 5) {
+        if (cards.size() != PACKAGE_SIZE) {
             return false;
         }
 
-        String insertPackage = "INSERT INTO packages DEFAULT VALUES RETURNING id";
-        String insertCard = "INSERT INTO cards (id, name, damage, type, element) VALUES (?, ?, ?, ?, ?)";
-        String insertPackageCard = "INSERT INTO package_cards (package_id, card_id) VALUES (?, ?)";
-
         try (Connection conn = Database.getConnection()) {
             conn.setAutoCommit(false); // Beginne Transaktion
-
-            try (PreparedStatement packageStmt = conn.prepareStatement(insertPackage);
-                 PreparedStatement cardStmt = conn.prepareStatement(insertCard);
-                 PreparedStatement packageCardStmt = conn.prepareStatement(insertPackageCard)) {
-
-                // Paket erstellen
-                ResultSet rs = packageStmt.executeQuery();
-                if (rs.next()) {
-                    int packageId = rs.getInt(1);
-
-                    // Karten hinzufügen
-                    for (Card card : cards) {
-                        // Karte einfügen
-                        cardStmt.setObject(1, UUID.fromString(card.getId()));
-                        cardStmt.setString(2, card.getName());
-                        cardStmt.setDouble(3, card.getDamage());
-                        cardStmt.setString(4, card.getType());
-                        String elementType = null;
-                        if (card instanceof MonsterCard) {
-                            elementType = ((MonsterCard) card).getElementType();
-                        } else if (card instanceof SpellCard) {
-                            elementType = ((SpellCard) card).getElementType();
-                        }
-                        cardStmt.setString(5, elementType);
-                        cardStmt.executeUpdate();
-
-                        // Beziehung zwischen Paket und Karte erstellen
-                        packageCardStmt.setInt(1, packageId);
-                        packageCardStmt.setObject(2, UUID.fromString(card.getId()));
-                        packageCardStmt.executeUpdate();
-                    }
-
-                    conn.commit(); // Transaktion abschließen
-                    return true;
-                } else {
-                    conn.rollback();
-                    return false;
-                }
+            try {
+                insertPackages(conn, List.of(cards));
+                conn.commit(); // Transaktion abschließen
+                CardCatalog.register(cards);
+                return true;
             } catch (SQLException e) {
                 conn.rollback();
-                e.printStackTrace();
+                AsyncLog.error("PackageDatabase.createPackage", e);
                 return false;
             } finally {
                 conn.setAutoCommit(true);
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("PackageDatabase.createPackage", e);
             return false;
         }
     }
 
+    /**
+     * Legt viele Pakete an (Bulk-Import). Jeweils {@code chunkSize} Pakete werden in einer eigenen
+     * Transaktion geschrieben; schlägt ein Chunk fehl, wird nur dieser zurückgerollt.
+     *
+     * @param packages  Pakete mit je {@value #PACKAGE_SIZE} Karten
+     * @param chunkSize Pakete pro Transaktion
+     * @return Ergebnis pro Chunk, in Reihenfolge
+     */
+    public static List<ChunkResult> createPackages(List<List<Card>> packages, int chunkSize) {
+        List<ChunkResult> results = new ArrayList<>();
+        try (Connection conn = Database.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for (int from = 0; from < packages.size(); from += chunkSize) {
+                    List<List<Card>> chunk = packages.subList(from, Math.min(from + chunkSize, packages.size()));
+                    ChunkResult result = new ChunkResult(results.size(), from, chunk.size());
+                    try {
+                        insertPackages(conn, chunk);
+                        conn.commit();
+                        for (List<Card> cards : chunk) {
+                            CardCatalog.register(cards);
+                        }
+                        result.created = true;
+                    } catch (SQLException e) {
+                        conn.rollback();
+                        AsyncLog.error("PackageDatabase.createPackages", e);
+                        result.error = e.getMessage();
+                    }
+                    results.add(result);
+                }
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            AsyncLog.error("PackageDatabase.createPackages", e);
+            // Chunks ohne Ergebnis wurden nicht geschrieben
+            for (int from = results.size() * chunkSize; from < packages.size(); from += chunkSize) {
+                ChunkResult result = new ChunkResult(results.size(), from, Math.min(chunkSize, packages.size() - from));
+                result.error = e.getMessage();
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Schreibt Pakete mit vier Round-Trips unabhängig von ihrer Anzahl: Paket-IDs aus der Sequenz
+     * holen, dann Pakete, Karten und Paket-Karten-Zuordnungen jeweils als ein JDBC-Batch (der Treiber
+     * fasst sie mit {@code reWriteBatchedInserts} zu mehrzeiligen INSERTs zusammen).
+     * Läuft in der Transaktion des Aufrufers.
+     */
+    private static void insertPackages(Connection conn, List<List<Card>> packages) throws SQLException {
+        String nextPackageIds = "SELECT nextval(pg_get_serial_sequence('packages', 'id')) FROM generate_series(1, ?)";
+        String insertPackage = "INSERT INTO packages (id) VALUES (?)";
+        String insertCard = "INSERT INTO cards (id, name, damage, type, element) VALUES (?, ?, ?, ?, ?)";
+        String insertPackageCard = "INSERT INTO package_cards (package_id, card_id) VALUES (?, ?)";
+
+        try (PreparedStatement idStmt = conn.prepareStatement(nextPackageIds);
+             PreparedStatement packageStmt = conn.prepareStatement(insertPackage);
+             PreparedStatement cardStmt = conn.prepareStatement(insertCard);
+             PreparedStatement packageCardStmt = conn.prepareStatement(insertPackageCard)) {
+
+            // Paket-IDs reservieren
+            idStmt.setInt(1, packages.size());
+            ResultSet rs = idStmt.executeQuery();
+            int[] packageIds = new int[packages.size()];
+            for (int i = 0; i < packageIds.length; i++) {
+                if (!rs.next()) {
+                    throw new SQLException("Sequence returned fewer package ids than requested");
+                }
+                packageIds[i] = rs.getInt(1);
+            }
+
+            for (int i = 0; i < packageIds.length; i++) {
+                packageStmt.setInt(1, packageIds[i]);
+                packageStmt.addBatch();
+
+                for (Card card : packages.get(i)) {
+                    UUID cardId = UUID.fromString(card.getId());
+                    cardStmt.setObject(1, cardId);
+                    cardStmt.setString(2, card.getName());
+                    cardStmt.setDouble(3, card.getDamage());
+                    cardStmt.setString(4, card.getType());
+                    cardStmt.setString(5, elementOf(card));
+                    cardStmt.addBatch();
+
+                    // Beziehung zwischen Paket und Karte erstellen
+                    packageCardStmt.setInt(1, packageIds[i]);
+                    packageCardStmt.setObject(2, cardId);
+                    packageCardStmt.addBatch();
+                }
+            }
+            packageStmt.executeBatch();
+            cardStmt.executeBatch();
+            packageCardStmt.executeBatch();
+        }
+    }
+
+    static String elementOf(Card card) {
+        if (card instanceof MonsterCard) {
+            return ((MonsterCard) card).getElementType();
+        } else if (card instanceof SpellCard) {
+            return ((SpellCard) card).getElementType();
+        }
+        return null;
+    }
+
+    /**
+     * Kauft das nächste unverkaufte Paket für 5 Coins. Die Paket-ID kommt aus der {@link PackageQueue},
+     * die jede ID nur einmal vergibt; Sperre und erneute Prüfung in der Datenbank verhindern zusätzlich
+     * einen Doppelverkauf, falls ein anderer Prozess dasselbe Paket verkauft.
+     *
+     * @return true, wenn ein Paket gekauft wurde; false bei zu wenig Coins oder ohne verfügbares Paket
+     */
     public static boolean purchasePackage(String username) {
-        String getPackage = "SELECT id FROM packages WHERE id NOT IN (SELECT package_id FROM acquired_packages) LIMIT 1";
-        String insertUserCard = "INSERT INTO user_cards (username, card_id) VALUES (?, ?)";
+        String updateCoins = "UPDATE users SET coins = coins - " + PACKAGE_PRICE
+                + " WHERE username = ? AND coins >= " + PACKAGE_PRICE;
+        String insertUserCards = "INSERT INTO user_cards (username, card_id) SELECT ?, card_id FROM package_cards WHERE package_id = ?";
         String insertAcquiredPackage = "INSERT INTO acquired_packages (username, package_id) VALUES (?, ?)";
-        String getCoins = "SELECT coins FROM users WHERE username = ?";
-        String updateCoins = "UPDATE users SET coins = coins - 5 WHERE username = ?";
 
         try (Connection conn = Database.getConnection()) {
             conn.setAutoCommit(false);
+            Integer packageId = null;
 
-            try (PreparedStatement packageStmt = conn.prepareStatement(getPackage);
-                 PreparedStatement userCardStmt = conn.prepareStatement(insertUserCard);
-                 PreparedStatement acquiredPackageStmt = conn.prepareStatement(insertAcquiredPackage);
-                 PreparedStatement coinsStmt = conn.prepareStatement(getCoins);
-                 PreparedStatement updateCoinsStmt = conn.prepareStatement(updateCoins)) {
-
-                // Überprüfen, ob der Benutzer genug Coins hat
-                coinsStmt.setString(1, username);
-                ResultSet coinsRs = coinsStmt.executeQuery();
-                if (coinsRs.next()) {
-                    int coins = coinsRs.getInt("coins");
-                    if (coins < 5) {
-                        conn.rollback();
-                        return false;
-                    }
-                } else {
+            try (PreparedStatement updateCoinsStmt = conn.prepareStatement(updateCoins);
+                 PreparedStatement userCardsStmt = conn.prepareStatement(insertUserCards);
+                 PreparedStatement acquiredPackageStmt = conn.prepareStatement(insertAcquiredPackage)) {
+
+                // Coins abziehen, nur wenn der Benutzer genug hat (sperrt zugleich die Benutzerzeile)
+                updateCoinsStmt.setString(1, username);
+                if (updateCoinsStmt.executeUpdate() != 1) {
                     conn.rollback();
                     return false;
                 }
 
                 // Paket auswählen
-                ResultSet packageRs = packageStmt.executeQuery();
-                if (packageRs.next()) {
-                    int packageId = packageRs.getInt("id");
-
-                    // Karten des Pakets abrufen
-                    String getCards = "SELECT card_id FROM package_cards WHERE package_id = ?";
-                    try (PreparedStatement cardsStmt = conn.prepareStatement(getCards)) {
-                        cardsStmt.setInt(1, packageId);
-                        ResultSet cardsRs = cardsStmt.executeQuery();
-
-                        // Karten dem Benutzer hinzufügen
-                        while (cardsRs.next()) {
-                            UUID cardId = (UUID) cardsRs.getObject("card_id");
-                            userCardStmt.setString(1, username);
-                            userCardStmt.setObject(2, cardId);
-                            userCardStmt.executeUpdate();
-                        }
+                Set<Integer> tried = new HashSet<>();
+                while ((packageId = PACKAGES.claim(conn)) != null && !lockUnsoldPackage(conn, packageId)) {
+                    // Gesperrt oder schon verkauft: nächstes Paket. Liefert die Queue nach einem
+                    // Neubeginn ein schon geprüftes Paket, sind nur noch gesperrte übrig.
+                    if (!tried.add(packageId)) {
+                        packageId = null;
+                        break;
                     }
-
-                    // Paket als erworben markieren
-                    acquiredPackageStmt.setString(1, username);
-                    acquiredPackageStmt.setInt(2, packageId);
-                    acquiredPackageStmt.executeUpdate();
-
-                    // Coins abziehen
-                    updateCoinsStmt.setString(1, username);
-                    updateCoinsStmt.executeUpdate();
-
-                    conn.commit();
-                    return true;
-                } else {
+                }
+                if (packageId == null) {
                     // Keine Pakete verfügbar
                     conn.rollback();
                     return false;
                 }
+
+                // Karten dem Benutzer hinzufügen
+                userCardsStmt.setString(1, username);
+                userCardsStmt.setInt(2, packageId);
+                userCardsStmt.executeUpdate();
+
+                // Paket als erworben markieren
+                acquiredPackageStmt.setString(1, username);
+                acquiredPackageStmt.setInt(2, packageId);
+                acquiredPackageStmt.executeUpdate();
+
+                conn.commit();
+                return true;
             } catch (SQLException e) {
                 conn.rollback();
-                e.printStackTrace();
+                if (packageId != null) {
+                    PACKAGES.giveBack(packageId);
+                }
+                AsyncLog.error("PackageDatabase.purchasePackage", e);
                 return false;
             } finally {
                 conn.setAutoCommit(true);
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("PackageDatabase.purchasePackage", e);
             return false;
         }
     }
+
+    /**
+     * Sperrt das Paket bis zum Ende der Transaktion und prüft danach, ob es noch unverkauft ist.
+     * Die Prüfung läuft als eigenes Statement, sieht also auch Käufe, die vor der Sperre committet wurden.
+     */
+    private static boolean lockUnsoldPackage(Connection conn, int packageId) throws SQLException {
+        String lockPackage = "SELECT id FROM packages WHERE id = ? FOR UPDATE SKIP LOCKED";
+        String checkAcquired = "SELECT 1 FROM acquired_packages WHERE package_id = ?";
+        try (PreparedStatement lockStmt = conn.prepareStatement(lockPackage);
+             PreparedStatement checkStmt = conn.prepareStatement(checkAcquired)) {
+            lockStmt.setInt(1, packageId);
+            if (!lockStmt.executeQuery().next()) {
+                return false;
+            }
+            checkStmt.setInt(1, packageId);
+            return !checkStmt.executeQuery().next();
+        }
+    }
+
+    /**
+     * Lädt die nächsten unverkauften Paket-IDs für die {@link PackageQueue} (Keyset ab {@code afterId}).
+     */
+    private static List<Integer> loadUnsoldPackageIds(Connection conn, int afterId, int limit) throws SQLException {
+        String query = "SELECT p.id FROM packages p WHERE p.id > ? "
+                + "AND NOT EXISTS (SELECT 1 FROM acquired_packages a WHERE a.package_id = p.id) ORDER BY p.id LIMIT ?";
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
+            stmt.setInt(1, afterId);
+            stmt.setInt(2, limit);
+            ResultSet rs = stmt.executeQuery();
+            List<Integer> ids = new ArrayList<>(limit);
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Ergebnis eines Chunks beim Bulk-Import.
+     */
+    public static class ChunkResult {
+        private final int chunk;
+        private final int firstPackage;
+        private final int packages;
+        boolean created;
+        String error;
+
+        ChunkResult(int chunk, int firstPackage, int packages) {
+            this.chunk = chunk;
+            this.firstPackage = firstPackage;
+            this.packages = packages;
+        }
+
+        public int getChunk() {
+            return chunk;
+        }
+
+        // Index des ersten Pakets im Request
+        public int getFirstPackage() {
+            return firstPackage;
+        }
+
+        public int getPackages() {
+            return packages;
+        }
+
+        public boolean isCreated() {
+            return created;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
 }
@@ -0,0 +1,86 @@
+package at.technikum_wien;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ids of unsold packages, prefetched from the database in batches. Within one pass over the ids
+ * every id is handed to exactly one buyer by {@link #claim}, so concurrent purchases do not pick the
+ * same package and do not have to search for an unsold one. Refills continue after the highest id loaded so far
+ * (keyset), so the cost of a refill does not grow with the number of packages already sold.
+ *
+ * <p>Package ids come from a sequence but their transactions commit in any order, so a package can
+ * become visible below the keyset (e.g. a bulk import that commits after a later single package).
+ * When a refill finds nothing after the keyset, it therefore starts over from the lowest unsold id.
+ * Such a rescan may return an id that is still being bought; the purchase locks and re-checks every
+ * package in the database, so it is skipped there.
+ */
+public class PackageQueue {
+
+    /**
+     * Loads up to {@code limit} ids of unsold packages greater than {@code afterId}, ascending.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        List<Integer> load(Connection conn, int afterId, int limit) throws SQLException;
+    }
+
+    private final int batchSize;
+    private final Loader loader;
+    private final ConcurrentLinkedDeque<Integer> ids = new ConcurrentLinkedDeque<>();
+    // Only one thread refills; the others wait for its batch instead of loading the same ids
+    private final ReentrantLock refillLock = new ReentrantLock();
+    private int lastLoadedId;
+
+    public PackageQueue(int batchSize, Loader loader) {
+        this.batchSize = batchSize;
+        this.loader = loader;
+    }
+
+    /**
+     * Takes the next unsold package id, refilling from the database when the queue is empty.
+     *
+     * @return the package id, or null if there are no unsold packages
+     */
+    public Integer claim(Connection conn) throws SQLException {
+        Integer id = ids.pollFirst();
+        if (id != null) {
+            return id;
+        }
+        refillLock.lock();
+        try {
+            id = ids.pollFirst();
+            if (id != null) {
+                return id;
+            }
+            List<Integer> loaded = loader.load(conn, lastLoadedId, batchSize);
+            if (loaded.isEmpty() && lastLoadedId > 0) {
+                // Nothing after the keyset: look for packages that were committed out of order
+                lastLoadedId = 0;
+                loaded = loader.load(conn, lastLoadedId, batchSize);
+            }
+            if (loaded.isEmpty()) {
+                return null;
+            }
+            lastLoadedId = loaded.get(loaded.size() - 1);
+            ids.addAll(loaded.subList(1, loaded.size()));
+            return loaded.get(0);
+        } finally {
+            refillLock.unlock();
+        }
+    }
+
+    /**
+     * Puts back a claimed id whose purchase was rolled back, so it is sold next.
+     */
+    public void giveBack(int id) {
+        ids.addFirst(id);
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
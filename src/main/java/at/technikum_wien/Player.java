@@ -2,34 +2,43 @@ package at.technikum_wien;
 
 import at.technikum_wien.cards.Card;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 public class Player {
     private String username;
     private List<Card> deck;
-    private BufferedWriter writer;
-    private Object battleLock;
+    private HttpResponse response;
     private String boosterCardId;
     private boolean boosterUsed;
+    // Ids of the cards the player brought into the battle
+    private final Set<String> initialCardIds = new HashSet<>();
+    // Released once the battle result has been sent; a latch parks virtual threads without pinning the carrier
+    private final CountDownLatch battleFinished = new CountDownLatch(1);
 
-    public Player(String username, List<Card> deck, BufferedWriter writer, Object battleLock) {
+    public Player(String username, List<Card> deck, HttpResponse response) {
         this.username = username;
         this.deck = new ArrayList<>(deck);
-        this.writer = writer;
-        this.battleLock = battleLock;
+        for (Card card : deck) {
+            initialCardIds.add(card.getId());
+        }
+        this.response = response;
         this.boosterCardId = null;
         this.boosterUsed = false;
     }
 
-    public Player(String username, List<Card> deck, BufferedWriter writer, Object battleLock, String boosterCardId) {
+    public Player(String username, List<Card> deck, HttpResponse response, String boosterCardId) {
         this.username = username;
         this.deck = new ArrayList<>(deck);
-        this.writer = writer;
-        this.battleLock = battleLock;
+        for (Card card : deck) {
+            initialCardIds.add(card.getId());
+        }
+        this.response = response;
         this.boosterCardId = boosterCardId;
         this.boosterUsed = false;
     }
@@ -49,42 +58,53 @@ public class Player {
     }
 
     /**
-     * Adds a card to the player's deck and DB, but only if the player does not already own this card.
+     * Adds a card won in a round to the player's deck. Only in memory; the battle stores the net
+     * transfers once it is over.
      */
     public void addCard(Card card) {
-        if (!UserDatabase.isCardOwnedByUser(username, card.getId())) {
-            UserDatabase.addCardToUser(username, card.getId());
-        }
-        // Ensure the deck list contains the card
         if (!deckContainsCard(card.getId())) {
             deck.add(card);
         }
     }
 
     /**
-     * Removes a card from the player's deck and from the DB.
+     * Removes a card lost in a round from the player's deck (in memory).
      */
     public void removeCard(Card card) {
         deck.remove(card);
-        UserDatabase.removeCardFromUser(username, card.getId());
+    }
+
+    /**
+     * Cards the player holds now but did not bring into the battle.
+     */
+    public List<Card> wonCards() {
+        List<Card> won = new ArrayList<>();
+        for (Card card : deck) {
+            if (!initialCardIds.contains(card.getId())) {
+                won.add(card);
+            }
+        }
+        return won;
     }
 
     public void sendBattleResult(String battleLog) throws IOException {
-        sendResponse(writer, battleLog, 200);
+        // The connection is closed after a battle
+        response.setKeepAlive(false);
+        response.sendText(200, battleLog);
     }
 
-    private void sendResponse(BufferedWriter writer, String body, int statusCode) throws IOException {
-        String response = "HTTP/1.1 " + statusCode + " OK\r\n" +
-                "Content-Type: text/plain\r\n" +
-                "Content-Length: " + body.getBytes("UTF-8").length + "\r\n" +
-                "\r\n" +
-                body;
-        writer.write(response);
-        writer.flush();
+    /**
+     * Signals the waiting request thread that the battle is over.
+     */
+    public void finishBattle() {
+        battleFinished.countDown();
     }
 
-    public Object getBattleLock() {
-        return battleLock;
+    /**
+     * Blocks until {@link #finishBattle()} has been called.
+     */
+    public void awaitBattleFinished() throws InterruptedException {
+        battleFinished.await();
     }
 
     public boolean isBoosterCard(Card card) {
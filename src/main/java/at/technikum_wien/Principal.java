@@ -0,0 +1,22 @@
+package at.technikum_wien;
+
+/**
+ * The user a token belongs to, as far as request handling needs it.
+ */
+public class Principal {
+    private final String username;
+    private final boolean admin;
+
+    public Principal(String username, boolean admin) {
+        this.username = username;
+        this.admin = admin;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public boolean isAdmin() {
+        return admin;
+    }
+}
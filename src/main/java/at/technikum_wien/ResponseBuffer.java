@@ -0,0 +1,97 @@
+package at.technikum_wien;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A reusable byte buffer that gives direct access to its content, so response bodies can be
+ * written to the socket without copying them into a new array first.
+ */
+public class ResponseBuffer extends ByteArrayOutputStream {
+
+    public ResponseBuffer(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+
+    public int capacity() {
+        return buf.length;
+    }
+
+    /**
+     * Wraps the current content without copying it.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    /**
+     * Appends a String that is known to be ASCII (status lines, header names and values).
+     */
+    public void writeAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            write(value.charAt(i));
+        }
+    }
+
+    /**
+     * Appends the decimal digits of a non-negative number.
+     */
+    public void writeInt(int value) {
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            write('0' + (value / divisor) % 10);
+            divisor /= 10;
+        }
+    }
+
+    /**
+     * Bounded set of free buffers shared by all threads, so buffers are reused no matter whether
+     * connections run on pooled platform threads, the nio workers or a virtual thread each. If the
+     * pool is empty a new buffer is created; if it is full a returned buffer is dropped.
+     */
+    public static class Pool {
+        private final ArrayBlockingQueue<ResponseBuffer> free;
+        private final int initialCapacity;
+        private final int maxRetainedCapacity;
+
+        /**
+         * @param maxRetainedCapacity buffers that grew beyond this size (e.g. a huge card list) are
+         *                            not kept for the next response
+         */
+        public Pool(int size, int initialCapacity, int maxRetainedCapacity) {
+            this.free = new ArrayBlockingQueue<>(Math.max(1, size));
+            this.initialCapacity = initialCapacity;
+            this.maxRetainedCapacity = maxRetainedCapacity;
+        }
+
+        /**
+         * An empty buffer; hand it back with {@link #release} when its content has been written.
+         */
+        public ResponseBuffer acquire() {
+            ResponseBuffer buffer = free.poll();
+            if (buffer == null) {
+                return new ResponseBuffer(initialCapacity);
+            }
+            buffer.reset();
+            return buffer;
+        }
+
+        public void release(ResponseBuffer buffer) {
+            if (buffer.capacity() <= maxRetainedCapacity) {
+                free.offer(buffer);
+            }
+        }
+
+        public int available() {
+            return free.size();
+        }
+    }
+}
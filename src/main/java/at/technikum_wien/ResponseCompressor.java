@@ -0,0 +1,159 @@
+package at.technikum_wien;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response bodies with gzip or deflate. Instances are kept in a small pool shared by all
+ * threads, so the Deflaters (and their native memory) are reused for every response instead of
+ * being created per request or per (virtual) thread. Instances that do not fit back into the pool
+ * release their native memory right away.
+ */
+public class ResponseCompressor {
+    private static final ArrayBlockingQueue<ResponseCompressor> POOL =
+            new ArrayBlockingQueue<>(Math.max(1, ServerConfig.COMPRESSOR_POOL_SIZE));
+    // Larger output buffers (from a huge response) are not kept in the pool
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    // Created on first use, most clients only ever negotiate one of the two
+    private Deflater gzipDeflater;
+    private Deflater zlibDeflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] chunk = new byte[8192];
+    private ResponseBuffer output = new ResponseBuffer(4096);
+
+    /**
+     * A compressor from the pool (or a new one if all are in use); hand it back with {@link #release()}.
+     */
+    public static ResponseCompressor acquire() {
+        ResponseCompressor compressor = POOL.poll();
+        return (compressor != null) ? compressor : new ResponseCompressor();
+    }
+
+    /**
+     * Returns this compressor to the pool, or frees its Deflaters if the pool is full. The buffer
+     * returned by {@link #compress} must not be used afterwards.
+     */
+    public void release() {
+        if (output.capacity() > MAX_RETAINED_CAPACITY) {
+            output = new ResponseBuffer(4096);
+        }
+        if (!POOL.offer(this)) {
+            end();
+        }
+    }
+
+    static int pooled() {
+        return POOL.size();
+    }
+
+    /**
+     * Compresses {@code input} with the given encoding ("gzip" or "deflate").
+     *
+     * @return a buffer owned by this compressor, valid until the next call or {@link #release()}
+     */
+    public ResponseBuffer compress(String encoding, ResponseBuffer input) {
+        output.reset();
+        if ("gzip".equals(encoding)) {
+            if (gzipDeflater == null) {
+                // JSON compresses well even on the fastest level, which costs a fraction of the CPU time
+                gzipDeflater = new Deflater(Deflater.BEST_SPEED, true);
+            }
+            output.writeBytes(GZIP_HEADER);
+            deflate(gzipDeflater, input);
+            crc.reset();
+            crc.update(input.array(), 0, input.size());
+            writeIntLittleEndian((int) crc.getValue());
+            writeIntLittleEndian(input.size());
+        } else {
+            // HTTP "deflate" is the zlib format (RFC 9110, section 8.4.1.2)
+            if (zlibDeflater == null) {
+                zlibDeflater = new Deflater(Deflater.BEST_SPEED, false);
+            }
+            deflate(zlibDeflater, input);
+        }
+        return output;
+    }
+
+    private void end() {
+        if (gzipDeflater != null) {
+            gzipDeflater.end();
+        }
+        if (zlibDeflater != null) {
+            zlibDeflater.end();
+        }
+    }
+
+    private void deflate(Deflater deflater, ResponseBuffer input) {
+        deflater.reset();
+        deflater.setInput(input.array(), 0, input.size());
+        deflater.finish();
+        while (!deflater.finished()) {
+            int length = deflater.deflate(chunk);
+            output.write(chunk, 0, length);
+        }
+    }
+
+    private void writeIntLittleEndian(int value) {
+        output.write(value);
+        output.write(value >>> 8);
+        output.write(value >>> 16);
+        output.write(value >>> 24);
+    }
+
+    /**
+     * Picks the content coding for an Accept-Encoding header: gzip before deflate, codings with
+     * {@code q=0} are excluded and {@code *} stands for any coding not listed explicitly.
+     *
+     * @return "gzip", "deflate" or null if the response has to be sent uncompressed
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String coding = part;
+            float quality = 1;
+            int parameters = part.indexOf(';');
+            if (parameters >= 0) {
+                coding = part.substring(0, parameters);
+                quality = parseQuality(part.substring(parameters + 1));
+            }
+            coding = coding.trim();
+            if (coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip")) {
+                gzip = quality;
+            } else if (coding.equalsIgnoreCase("deflate")) {
+                deflate = quality;
+            } else if (coding.equals("*")) {
+                any = quality;
+            }
+        }
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+
+        if (gzip > 0 && gzip >= deflate) {
+            return "gzip";
+        }
+        return (deflate > 0) ? "deflate" : null;
+    }
+
+    private static float parseQuality(String parameters) {
+        String parameter = parameters.trim();
+        if (!parameter.startsWith("q=") && !parameter.startsWith("Q=")) {
+            return 1;
+        }
+        try {
+            return Float.parseFloat(parameter.substring(2).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package at.technikum_wien;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Route table built once at startup: one segment trie per HTTP method. Templates consist of static
+ * segments and parameters in braces, e.g. {@code /users/{username}/booster}. A lookup walks the
+ * path segment by segment without regular expressions or splitting the path; static segments take
+ * precedence over parameters.
+ *
+ * @param <H> handler type
+ */
+public class Router<H> {
+    private final Map<String, Node<H>> methodRoots = new HashMap<>();
+
+    /**
+     * Registers a handler. Not thread-safe; all routes are added before the router is used.
+     */
+    public Router<H> add(String method, String template, H handler) {
+        if (!template.startsWith("/")) {
+            throw new IllegalArgumentException("Route template must start with '/': " + template);
+        }
+        Node<H> node = methodRoots.computeIfAbsent(method, m -> new Node<>(null));
+        List<String> paramNames = new ArrayList<>();
+
+        int position = 1;
+        while (position < template.length()) {
+            int end = template.indexOf('/', position);
+            if (end < 0) {
+                end = template.length();
+            }
+            String segment = template.substring(position, end);
+            if (segment.startsWith("{") && segment.endsWith("}")) {
+                paramNames.add(segment.substring(1, segment.length() - 1));
+                if (node.paramChild == null) {
+                    node.paramChild = new Node<>(null);
+                }
+                node = node.paramChild;
+            } else {
+                node = node.staticChild(segment);
+            }
+            position = end + 1;
+        }
+
+        if (node.route != null) {
+            throw new IllegalArgumentException("Duplicate route: " + method + " " + template);
+        }
+        node.route = new Route<>(handler, template, paramNames.toArray(new String[0]));
+        return this;
+    }
+
+    /**
+     * Finds the route for a request path (without query string).
+     *
+     * @return the match, or null if no route exists
+     */
+    public Match<H> match(String method, String path) {
+        Node<H> root = methodRoots.get(method);
+        if (root == null || path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+        // Start and end offset of every parameter value on the way down
+        int[] paramOffsets = new int[16];
+        Route<H> route = find(root, path, 1, paramOffsets, 0);
+        if (route == null) {
+            return null;
+        }
+
+        String[] values = new String[route.paramNames.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = path.substring(paramOffsets[i * 2], paramOffsets[i * 2 + 1]);
+        }
+        return new Match<>(route, values);
+    }
+
+    private Route<H> find(Node<H> node, String path, int position, int[] paramOffsets, int paramCount) {
+        if (position >= path.length()) {
+            // Only "/" itself ends here; a trailing slash does not match
+            return (path.length() == 1) ? node.route : null;
+        }
+        int end = path.indexOf('/', position);
+        if (end < 0) {
+            end = path.length();
+        }
+        int next = end + 1;
+
+        for (Node<H> child : node.staticChildren) {
+            if (child.segment.length() == end - position
+                    && path.regionMatches(position, child.segment, 0, end - position)) {
+                Route<H> route = (end == path.length()) ? child.route
+                        : find(child, path, next, paramOffsets, paramCount);
+                if (route != null) {
+                    return route;
+                }
+            }
+        }
+
+        if (node.paramChild != null && end > position && paramCount * 2 + 1 < paramOffsets.length) {
+            paramOffsets[paramCount * 2] = position;
+            paramOffsets[paramCount * 2 + 1] = end;
+            return (end == path.length()) ? node.paramChild.route
+                    : find(node.paramChild, path, next, paramOffsets, paramCount + 1);
+        }
+        return null;
+    }
+
+    private static class Node<H> {
+        private final String segment;
+        private final List<Node<H>> staticChildren = new ArrayList<>();
+        private Node<H> paramChild;
+        private Route<H> route;
+
+        Node(String segment) {
+            this.segment = segment;
+        }
+
+        Node<H> staticChild(String segment) {
+            for (Node<H> child : staticChildren) {
+                if (child.segment.equals(segment)) {
+                    return child;
+                }
+            }
+            Node<H> child = new Node<>(segment);
+            staticChildren.add(child);
+            return child;
+        }
+    }
+
+    private static class Route<H> {
+        private final H handler;
+        private final String template;
+        private final String[] paramNames;
+
+        Route(H handler, String template, String[] paramNames) {
+            this.handler = handler;
+            this.template = template;
+            this.paramNames = paramNames;
+        }
+    }
+
+    /**
+     * A matched route together with the extracted path parameters.
+     */
+    public static class Match<H> {
+        private final Route<H> route;
+        private final String[] paramValues;
+
+        Match(Route<H> route, String[] paramValues) {
+            this.route = route;
+            this.paramValues = paramValues;
+        }
+
+        public H handler() {
+            return route.handler;
+        }
+
+        /**
+         * The template the route was registered with, e.g. {@code /users/{username}}.
+         */
+        public String template() {
+            return route.template;
+        }
+
+        public String param(String name) {
+            String[] names = route.paramNames;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return paramValues[i];
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package at.technikum_wien;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Brings the database schema up to date at startup and checks that the hot queries are backed by
+ * indexes.
+ *
+ * <ul>
+ *     <li>migrations are SQL scripts on the classpath under {@value #SCRIPT_DIRECTORY}, named
+ *     {@code V<version>__<description>.sql} and listed in {@link #MIGRATIONS}</li>
+ *     <li>applied versions are recorded in {@code schema_version} together with a checksum; a script
+ *     that was changed after it had been applied stops the startup</li>
+ *     <li>each script runs in its own transaction (DDL is transactional in PostgreSQL), under an
+ *     advisory lock so that two servers starting at the same time do not migrate twice</li>
+ *     <li>{@link #verifyHotQueries} plans every query in {@link #HOT_QUERIES} with sequential scans
+ *     disabled: a plan that still contains a {@code Seq Scan} has no usable index</li>
+ * </ul>
+ */
+public class SchemaManager {
+    static final String SCRIPT_DIRECTORY = "/db/migration/";
+
+    /**
+     * All migrations in the order they are applied. Add new scripts at the end.
+     */
+    static final List<String> MIGRATIONS = List.of(
+            "V1__base_schema.sql",
+            "V2__hot_path_indexes.sql");
+
+    /**
+     * Queries that run on (almost) every request, with sample values in place of the parameters.
+     */
+    static final Map<String, String> HOT_QUERIES = Map.of(
+            "token lookup", "SELECT username FROM users WHERE token = 'x'",
+            "card ownership", "SELECT COUNT(*) FROM user_cards WHERE username = 'x' "
+                    + "AND card_id = '00000000-0000-0000-0000-000000000000'",
+            "stack page", "SELECT card_id FROM user_cards WHERE username = 'x' "
+                    + "AND card_id > '00000000-0000-0000-0000-000000000000' ORDER BY card_id LIMIT 100",
+            "deck", "SELECT card_id FROM decks WHERE username = 'x'",
+            "sold package", "SELECT 1 FROM acquired_packages WHERE package_id = 1",
+            "package cards", "SELECT card_id FROM package_cards WHERE package_id = 1");
+
+    // Arbitrary key of the advisory lock held while migrating
+    private static final long MIGRATION_LOCK_KEY = 0x6d637467L;
+
+    private static final String CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS schema_version ("
+            + "version INTEGER PRIMARY KEY, description TEXT NOT NULL, checksum BIGINT NOT NULL, "
+            + "installed_at TIMESTAMPTZ NOT NULL DEFAULT now())";
+
+    /**
+     * Applies all pending migrations and, if enabled, runs the EXPLAIN self-check.
+     *
+     * @throws SQLException          if a migration fails or the database is not reachable
+     * @throws IllegalStateException if an applied script was modified or a hot query has no index
+     */
+    public static void migrate(boolean verify) throws SQLException {
+        try (Connection conn = Database.getConnection()) {
+            List<Migration> migrations = loadMigrations();
+            int applied = applyPending(conn, migrations);
+            if (applied > 0) {
+                System.out.println("Datenbankschema aktualisiert: " + applied + " Migration(en), Version "
+                        + migrations.get(migrations.size() - 1).version());
+            }
+            if (verify) {
+                List<String> problems = verifyHotQueries(conn);
+                if (!problems.isEmpty()) {
+                    throw new IllegalStateException("Hot queries without index: " + String.join("; ", problems));
+                }
+            }
+        }
+    }
+
+    private static int applyPending(Connection conn, List<Migration> migrations) throws SQLException {
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(CREATE_VERSION_TABLE);
+            conn.commit();
+
+            int applied = 0;
+            for (Migration migration : migrations) {
+                // Taken per script, so the lock is released with every commit
+                stmt.execute("SELECT pg_advisory_xact_lock(" + MIGRATION_LOCK_KEY + ")");
+                Map<Integer, Long> installed = installedVersions(conn);
+                Long checksum = installed.get(migration.version());
+                if (checksum != null) {
+                    if (checksum != migration.checksum()) {
+                        throw new IllegalStateException("Migration " + migration.name()
+                                + " was changed after it had been applied");
+                    }
+                    conn.rollback();
+                    continue;
+                }
+                for (String sql : migration.statements()) {
+                    stmt.execute(sql);
+                }
+                try (PreparedStatement insert = conn.prepareStatement(
+                        "INSERT INTO schema_version (version, description, checksum) VALUES (?, ?, ?)")) {
+                    insert.setInt(1, migration.version());
+                    insert.setString(2, migration.description());
+                    insert.setLong(3, migration.checksum());
+                    insert.executeUpdate();
+                }
+                conn.commit();
+                applied++;
+            }
+            return applied;
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private static Map<Integer, Long> installedVersions(Connection conn) throws SQLException {
+        Map<Integer, Long> versions = new HashMap<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT version, checksum FROM schema_version")) {
+            while (rs.next()) {
+                versions.put(rs.getInt(1), rs.getLong(2));
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Plans every hot query with sequential scans disabled.
+     *
+     * @return one description per query that would still scan a whole table (empty if all are fine)
+     */
+    public static List<String> verifyHotQueries(Connection conn) throws SQLException {
+        List<String> problems = new ArrayList<>();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            // Small tables are scanned sequentially anyway; this only leaves a seq scan if no index fits
+            stmt.execute("SET LOCAL enable_seqscan = off");
+            for (Map.Entry<String, String> query : HOT_QUERIES.entrySet()) {
+                List<String> plan = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery("EXPLAIN " + query.getValue())) {
+                    while (rs.next()) {
+                        plan.add(rs.getString(1));
+                    }
+                }
+                String scan = findSeqScan(plan);
+                if (scan != null) {
+                    problems.add(query.getKey() + " (" + scan + ")");
+                }
+            }
+        } finally {
+            conn.rollback();
+            conn.setAutoCommit(true);
+        }
+        return problems;
+    }
+
+    /**
+     * The first plan node that reads a whole table, e.g. {@code Seq Scan on users}, or null.
+     */
+    static String findSeqScan(List<String> plan) {
+        for (String line : plan) {
+            int start = line.indexOf("Seq Scan on ");
+            if (start >= 0) {
+                int end = line.indexOf("  (", start);
+                return (end > 0) ? line.substring(start, end).trim() : line.substring(start).trim();
+            }
+        }
+        return null;
+    }
+
+    static List<Migration> loadMigrations() {
+        List<Migration> migrations = new ArrayList<>(MIGRATIONS.size());
+        int previous = 0;
+        for (String name : MIGRATIONS) {
+            String sql;
+            try (InputStream in = SchemaManager.class.getResourceAsStream(SCRIPT_DIRECTORY + name)) {
+                if (in == null) {
+                    throw new IllegalStateException("Migration " + name + " is not on the classpath");
+                }
+                sql = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new IllegalStateException("Migration " + name + " could not be read", e);
+            }
+            Migration migration = Migration.parse(name, sql);
+            if (migration.version() <= previous) {
+                throw new IllegalStateException("Migration " + name + " is out of order");
+            }
+            previous = migration.version();
+            migrations.add(migration);
+        }
+        return migrations;
+    }
+
+    /**
+     * Splits a script into statements at semicolons that end a line. Comment lines are dropped;
+     * the scripts contain no function bodies, so this is enough.
+     */
+    static List<String> splitStatements(String sql) {
+        List<String> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (String line : sql.split("\r?\n")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("--")) {
+                continue;
+            }
+            if (current.length() > 0) {
+                current.append('\n');
+            }
+            if (trimmed.endsWith(";")) {
+                current.append(line, 0, line.lastIndexOf(';'));
+                statements.add(current.toString().trim());
+                current.setLength(0);
+            } else {
+                current.append(line);
+            }
+        }
+        if (!current.toString().isBlank()) {
+            statements.add(current.toString().trim());
+        }
+        return statements;
+    }
+
+    /**
+     * One versioned script.
+     */
+    static class Migration {
+        private final String name;
+        private final int version;
+        private final String description;
+        private final long checksum;
+        private final List<String> statements;
+
+        Migration(String name, int version, String description, long checksum, List<String> statements) {
+            this.name = name;
+            this.version = version;
+            this.description = description;
+            this.checksum = checksum;
+            this.statements = statements;
+        }
+
+        /**
+         * Reads version and description from a name like {@code V2__hot_path_indexes.sql}.
+         */
+        static Migration parse(String name, String sql) {
+            int separator = name.indexOf("__");
+            if (!name.startsWith("V") || separator < 2 || !name.endsWith(".sql")) {
+                throw new IllegalStateException("Migration " + name + " does not match V<version>__<description>.sql");
+            }
+            int version;
+            try {
+                version = Integer.parseInt(name.substring(1, separator));
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException("Migration " + name + " has no numeric version", e);
+            }
+            String description = name.substring(separator + 2, name.length() - ".sql".length()).replace('_', ' ');
+            CRC32 crc = new CRC32();
+            // Line endings do not change the checksum, so a checkout on Windows is not a "modified" script
+            crc.update(sql.replace("\r\n", "\n").getBytes(StandardCharsets.UTF_8));
+            return new Migration(name, version, description, crc.getValue(), splitStatements(sql));
+        }
+
+        String name() {
+            return name;
+        }
+
+        int version() {
+            return version;
+        }
+
+        String description() {
+            return description;
+        }
+
+        long checksum() {
+            return checksum;
+        }
+
+        List<String> statements() {
+            return statements;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package at.technikum_wien;
+
+/**
+ * Startup configuration of the server. All values can be overridden with
+ * system properties, e.g. {@code java -Dmctg.server=nio -Dmctg.port=10001 ...}.
+ */
+public class ServerConfig {
+    /** Port the server listens on. */
+    public static final int PORT = Integer.getInteger("mctg.port", 10001);
+
+    /**
+     * Server mode: "blocking" (one platform thread per connection), "virtual" (one virtual thread per
+     * connection and battle) or "nio" (selector + worker pool).
+     */
+    public static final String SERVER_MODE = System.getProperty("mctg.server", "blocking");
+
+    /** Number of worker threads executing requests in nio mode. */
+    public static final int NIO_WORKERS = Integer.getInteger("mctg.nio.workers",
+            Runtime.getRuntime().availableProcessors() * 4);
+
+    /** Maximum number of parsed requests waiting for a worker in nio mode. */
+    public static final int NIO_QUEUE_SIZE = Integer.getInteger("mctg.nio.queue", 1024);
+
+    /** Idle time in milliseconds after which a persistent connection is closed. */
+    public static final int KEEP_ALIVE_TIMEOUT_MS = Integer.getInteger("mctg.http.keepAliveTimeoutMs", 5000);
+
+    /** Maximum number of requests served on one persistent connection. */
+    public static final int MAX_KEEP_ALIVE_REQUESTS = Integer.getInteger("mctg.http.maxKeepAliveRequests", 1000);
+
+    /** Maximum size of request line plus headers in bytes. */
+    public static final int MAX_HEADER_BYTES = Integer.getInteger("mctg.http.maxHeaderBytes", 16 * 1024);
+
+    /** Maximum accepted request body size in bytes. */
+    public static final int MAX_BODY_BYTES = Integer.getInteger("mctg.http.maxBodyBytes", 1024 * 1024);
+
+    /** Minimum body size in bytes for gzip/deflate compression; smaller responses are sent as they are. */
+    public static final int COMPRESSION_MIN_BYTES = Integer.getInteger("mctg.http.compressionMinBytes", 1024);
+
+    /** Idle gzip/deflate compressors kept for reuse; compression is CPU-bound, so one per core is enough. */
+    public static final int COMPRESSOR_POOL_SIZE = Integer.getInteger("mctg.http.compressorPoolSize",
+            Runtime.getRuntime().availableProcessors());
+
+    /** Maximum number of requests (except battles) executed at the same time. */
+    public static final int MAX_IN_FLIGHT_REQUESTS = Integer.getInteger("mctg.admission.maxRequests",
+            Runtime.getRuntime().availableProcessors() * 8);
+
+    /** Free response buffers kept for reuse by all threads; more are only needed with more requests in flight. */
+    public static final int RESPONSE_BUFFER_POOL_SIZE = Integer.getInteger("mctg.http.bufferPoolSize",
+            MAX_IN_FLIGHT_REQUESTS);
+
+    /** Maximum number of battle requests (waiting for an opponent or fighting) at the same time; null if not set. */
+    private static final Integer MAX_IN_FLIGHT_BATTLES = Integer.getInteger("mctg.admission.maxBattles");
+
+    /** Battle budget in blocking mode if none is configured. */
+    static final int DEFAULT_MAX_IN_FLIGHT_BATTLES = 64;
+
+    /** Battle budget in virtual mode if none is configured: a waiting battle only costs a virtual thread. */
+    static final int DEFAULT_MAX_IN_FLIGHT_BATTLES_VIRTUAL = 100_000;
+
+    /**
+     * Battle budget for a server mode. A battle waits for its opponent on the thread that executes
+     * it, so in nio mode it is always kept to half of the {@code nioWorkers}; the other half stays
+     * free for cheap requests like {@code GET /deck}.
+     */
+    public static int maxInFlightBattles(String mode, int nioWorkers) {
+        if ("nio".equalsIgnoreCase(mode)) {
+            int limit = Math.max(1, nioWorkers / 2);
+            return Math.min((MAX_IN_FLIGHT_BATTLES != null) ? MAX_IN_FLIGHT_BATTLES : DEFAULT_MAX_IN_FLIGHT_BATTLES, limit);
+        }
+        if (MAX_IN_FLIGHT_BATTLES != null) {
+            return MAX_IN_FLIGHT_BATTLES;
+        }
+        return "virtual".equalsIgnoreCase(mode) ? DEFAULT_MAX_IN_FLIGHT_BATTLES_VIRTUAL : DEFAULT_MAX_IN_FLIGHT_BATTLES;
+    }
+
+    /** Number of requests per budget that may wait for a free slot before requests are rejected. */
+    public static final int ADMISSION_QUEUE_SIZE = Integer.getInteger("mctg.admission.queue", 32);
+
+    /** How long a request waits for a free slot before it is rejected with 503. */
+    public static final int ADMISSION_QUEUE_TIMEOUT_MS = Integer.getInteger("mctg.admission.queueTimeoutMs", 100);
+
+    /** Value of the Retry-After header of 503 responses, in seconds. */
+    public static final int RETRY_AFTER_SECONDS = Integer.getInteger("mctg.admission.retryAfterSeconds", 1);
+
+    /** Number of records the access/error log buffers before it starts dropping them. */
+    public static final int LOG_BUFFER_SIZE = Integer.getInteger("mctg.log.bufferSize", 8192);
+
+    /** Fraction of successful requests written to the access log (0 to 1); 5xx responses are always logged. */
+    public static final double LOG_SAMPLE_RATE = Double.parseDouble(System.getProperty("mctg.log.sampleRate", "1"));
+
+    /** Where the access/error log goes: {@code stdout}, or {@code none} to discard it (used by the unit tests). */
+    public static final String LOG_OUTPUT = System.getProperty("mctg.log.output", "stdout");
+
+    /** Number of database connections the pool keeps open even when idle. */
+    public static final int DB_POOL_MIN_SIZE = Integer.getInteger("mctg.db.poolMin", 2);
+
+    /** Maximum number of database connections in use at the same time. */
+    public static final int DB_POOL_MAX_SIZE = Integer.getInteger("mctg.db.poolMax", 20);
+
+    /** How long a DB call waits for a free connection before it fails. */
+    public static final int DB_ACQUIRE_TIMEOUT_MS = Integer.getInteger("mctg.db.acquireTimeoutMs", 2000);
+
+    /** Idle connections beyond the minimum are closed after this time. */
+    public static final int DB_IDLE_TIMEOUT_MS = Integer.getInteger("mctg.db.idleTimeoutMs", 300_000);
+
+    /** Connections idle for longer than this are validated before they are handed out (0 = always). */
+    public static final int DB_VALIDATE_AFTER_IDLE_MS = Integer.getInteger("mctg.db.validateAfterIdleMs", 500);
+
+    /** Borrowed connections not returned within this time are logged as leaks (0 = off). */
+    public static final int DB_LEAK_THRESHOLD_MS = Integer.getInteger("mctg.db.leakThresholdMs", 60_000);
+
+    /** Prepared statements cached per database connection (0 = no cache). */
+    public static final int DB_STATEMENT_CACHE_SIZE = Integer.getInteger("mctg.db.statementCacheSize", 64);
+
+    /** Maximum number of login tokens cached in memory (0 = every request looks the token up in the database). */
+    public static final int TOKEN_CACHE_SIZE = Integer.getInteger("mctg.auth.tokenCacheSize", 10_000);
+
+    /** How long a cached token is trusted before it is looked up in the database again. */
+    public static final int TOKEN_CACHE_TTL_MS = Integer.getInteger("mctg.auth.tokenCacheTtlMs", 60_000);
+
+    /** Packages written per transaction by {@code POST /packages/bulk}. */
+    public static final int PACKAGE_BULK_CHUNK_SIZE = Integer.getInteger("mctg.packages.bulkChunkSize", 500);
+
+    /** Unsold package ids loaded into the purchase queue per database query. */
+    public static final int PACKAGE_QUEUE_BATCH_SIZE = Integer.getInteger("mctg.packages.queueBatchSize", 256);
+
+    /** Number of cards a deck must have for {@code PUT /deck} and battles. */
+    public static final int DECK_SIZE = Integer.getInteger("mctg.deck.size", 4);
+
+    /** Pending ELO and games-played changes are written to the database at least this often. */
+    public static final int STATS_FLUSH_INTERVAL_MS = Integer.getInteger("mctg.stats.flushIntervalMs", 200);
+
+    /** Pending changes are written earlier once this many users have some. */
+    public static final int STATS_FLUSH_ENTRIES = Integer.getInteger("mctg.stats.flushEntries", 256);
+
+    /** Page size of {@code GET /cards} and {@code GET /tradings} when {@code after} is given without {@code limit}. */
+    public static final int PAGE_DEFAULT_LIMIT = Integer.getInteger("mctg.pagination.defaultLimit", 100);
+
+    /** Largest {@code limit} accepted for a page. */
+    public static final int PAGE_MAX_LIMIT = Integer.getInteger("mctg.pagination.maxLimit", 1000);
+
+    /** Apply pending schema migrations at startup. */
+    public static final boolean DB_MIGRATE = Boolean.parseBoolean(System.getProperty("mctg.db.migrate", "true"));
+
+    /** Refuse to start if a hot query would need a sequential scan (checked with EXPLAIN after migrating). */
+    public static final boolean DB_VERIFY_INDEXES =
+            Boolean.parseBoolean(System.getProperty("mctg.db.verifyIndexes", "true"));
+
+    /** Rows fetched per round trip from the server-side cursor of a streamed listing. */
+    public static final int DB_STREAM_FETCH_SIZE = Integer.getInteger("mctg.db.streamFetchSize", 500);
+
+    /** Storage engine: {@code jdbc} (PostgreSQL) or {@code memory} (everything in memory, lost on restart). */
+    public static final String STORAGE = System.getProperty("mctg.storage", "jdbc");
+
+    /** Number of per-user locks of the in-memory storage; users whose names hash alike share one. */
+    public static final int MEMORY_LOCK_STRIPES = Integer.getInteger("mctg.storage.lockStripes", 64);
+}
@@ -0,0 +1,229 @@
+package at.technikum_wien;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU cache of prepared statements for one physical connection, keyed by SQL text. The DB classes
+ * prepare constant SQL strings and close the statement right after use; with the cache, close()
+ * only resets the statement so the next {@code prepareStatement} with the same SQL gets it back
+ * and PostgreSQL does not parse and plan the query again. Settings a user changes on the statement
+ * (fetch size, fetch direction, max rows, query timeout) are put back on close(), so e.g. the
+ * fetch size of a streaming read does not carry over to a plain read of the same SQL.
+ *
+ * <p>Not thread-safe: a pooled connection is only used by one thread at a time.
+ */
+public class StatementCache {
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static final LongAdder EVICTIONS = new LongAdder();
+
+    private final Connection connection;
+    private final Map<String, Entry> statements;
+
+    public StatementCache(Connection connection, int maxSize) {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= maxSize) {
+                    return false;
+                }
+                EVICTIONS.increment();
+                eldest.getValue().evict();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached statement for this SQL, or prepares and caches a new one. If the cached
+     * statement is still in use (the same SQL twice at the same time), an uncached one is returned.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        Entry entry = statements.get(sql);
+        if (entry != null && entry.evicted) {
+            // Closed after an error while it was reset
+            statements.remove(sql);
+            entry = null;
+        }
+        if (entry != null && entry.checkedOut == null) {
+            HITS.increment();
+            return entry.checkOut();
+        }
+        MISSES.increment();
+        PreparedStatement statement = connection.prepareStatement(sql);
+        if (entry != null) {
+            return statement;
+        }
+        entry = new Entry(statement);
+        statements.put(sql, entry);
+        return entry.checkOut();
+    }
+
+    /**
+     * Takes back all statements the last user of the connection did not close.
+     */
+    public void releaseAll() {
+        for (Entry entry : statements.values()) {
+            if (entry.checkedOut != null) {
+                entry.checkedOut.release();
+            }
+        }
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    public static long hits() {
+        return HITS.sum();
+    }
+
+    public static long misses() {
+        return MISSES.sum();
+    }
+
+    public static long evictions() {
+        return EVICTIONS.sum();
+    }
+
+    private static class Entry {
+        private final PreparedStatement statement;
+        private Lease checkedOut;
+        private boolean evicted;
+        // Settings as prepared; read the first time a lease changes one of them
+        private boolean defaultsRead;
+        private int fetchSize;
+        private int fetchDirection;
+        private int maxRows;
+        private int queryTimeout;
+
+        Entry(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        PreparedStatement checkOut() {
+            checkedOut = new Lease(this);
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, checkedOut);
+        }
+
+        void readDefaults() throws SQLException {
+            if (!defaultsRead) {
+                fetchSize = statement.getFetchSize();
+                fetchDirection = statement.getFetchDirection();
+                maxRows = statement.getMaxRows();
+                queryTimeout = statement.getQueryTimeout();
+                defaultsRead = true;
+            }
+        }
+
+        void restoreDefaults() throws SQLException {
+            statement.setFetchSize(fetchSize);
+            statement.setFetchDirection(fetchDirection);
+            statement.setMaxRows(maxRows);
+            statement.setQueryTimeout(queryTimeout);
+        }
+
+        void evict() {
+            evicted = true;
+            if (checkedOut == null) {
+                closeQuietly();
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // Connection is probably gone
+            }
+        }
+    }
+
+    /**
+     * One use of a cached statement, from prepareStatement() to close().
+     */
+    private static class Lease implements InvocationHandler {
+        private final Entry entry;
+        private boolean released;
+        // A setting was changed that the next lease must not see
+        private boolean tuned;
+
+        Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            entry.checkedOut = null;
+            if (entry.evicted) {
+                entry.closeQuietly();
+                return;
+            }
+            try {
+                ResultSet resultSet = entry.statement.getResultSet();
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                entry.statement.clearParameters();
+                entry.statement.clearBatch();
+                if (tuned) {
+                    entry.restoreDefaults();
+                }
+            } catch (SQLException e) {
+                entry.evicted = true;
+                entry.closeQuietly();
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    release();
+                    return null;
+                case "isClosed":
+                    return released;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            if (released) {
+                throw new SQLException("Statement has already been closed");
+            }
+            if (isTuning(method.getName())) {
+                entry.readDefaults();
+                tuned = true;
+            }
+            try {
+                return method.invoke(entry.statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private static boolean isTuning(String methodName) {
+            return switch (methodName) {
+                case "setFetchSize", "setFetchDirection", "setMaxRows", "setLargeMaxRows", "setQueryTimeout" -> true;
+                default -> false;
+            };
+        }
+    }
+}
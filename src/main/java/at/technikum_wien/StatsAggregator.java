@@ -0,0 +1,276 @@
+package at.technikum_wien;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write-behind buffer for ELO changes and games played. Battles only add deltas per user in
+ * memory; a background thread writes all pending deltas with one statement every
+ * {@code flushIntervalMs}, or earlier once {@code flushEntries} users have pending deltas, and
+ * {@link #close()} writes the rest on shutdown.
+ *
+ * <p>Reads that must include pending deltas run inside {@link #beginRead()}: a flush commits and
+ * forgets the written deltas under the write lock, so a reader sees each delta exactly once,
+ * either still pending or already in the database.
+ */
+public class StatsAggregator {
+
+    /**
+     * Writes deltas to the database in one transaction.
+     */
+    @FunctionalInterface
+    public interface Writer {
+        /**
+         * Writes the deltas and commits through {@code commitStep}, so the commit happens while no
+         * reader is between its database read and {@link #pendingDelta}.
+         */
+        void write(Map<String, Delta> deltas, CommitStep commitStep) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface CommitStep {
+        void commit(SqlAction commit) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface SqlAction {
+        void run() throws SQLException;
+    }
+
+
+    private final long flushIntervalNanos;
+    private final int flushEntries;
+    private final Writer writer;
+    private final Map<String, Delta> pending = new ConcurrentHashMap<>();
+    // Deltas taken by the running flush, until they are committed
+    private volatile Map<String, Delta> flushing = Map.of();
+    private final ReentrantReadWriteLock visibility = new ReentrantReadWriteLock();
+    // One flush at a time (background thread or close())
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // Created by start(), so no thread sees the aggregator before it is constructed
+    private volatile Thread flusher;
+    private volatile boolean running = true;
+
+    public StatsAggregator(long flushIntervalMs, int flushEntries, Writer writer) {
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        this.flushEntries = flushEntries;
+        this.writer = writer;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::flushLoop, "stats-flusher");
+        thread.setDaemon(true);
+        flusher = thread;
+        thread.start();
+    }
+
+    /**
+     * Adds an ELO change and a number of games played for a user.
+     */
+    public void add(String username, int eloDelta, int gamesPlayed) {
+        pending.merge(username, new Delta(eloDelta, gamesPlayed), Delta::plus);
+        if (pending.size() >= flushEntries) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    /**
+     * Holds off commits of a flush until closed. Open it after borrowing the connection (so no
+     * reader waits for the pool while holding it), read from the database, add {@link #pendingDelta}.
+     */
+    public ReadScope beginRead() {
+        visibility.readLock().lock();
+        return new ReadScope();
+    }
+
+    /**
+     * Delta not yet committed to the database for this user (zero if there is none).
+     */
+    public Delta pendingDelta(String username) {
+        Delta delta = Delta.ZERO;
+        Delta inFlight = flushing.get(username);
+        if (inFlight != null) {
+            delta = delta.plus(inFlight);
+        }
+        Delta queued = pending.get(username);
+        if (queued != null) {
+            delta = delta.plus(queued);
+        }
+        return delta;
+    }
+
+    public int pendingUsers() {
+        return pending.size();
+    }
+
+    /**
+     * Writes all pending deltas. If the write fails, the deltas are kept for the next flush.
+     *
+     * @return false if the write failed
+     */
+    public boolean flush() {
+        flushLock.lock();
+        try {
+            if (pending.isEmpty()) {
+                return true;
+            }
+            Map<String, Delta> batch = new HashMap<>();
+            // Moved under the write lock so no reader finds a delta in neither map
+            visibility.writeLock().lock();
+            try {
+                for (String username : pending.keySet()) {
+                    Delta delta = pending.remove(username);
+                    if (delta != null) {
+                        batch.put(username, delta);
+                    }
+                }
+                flushing = batch;
+            } finally {
+                visibility.writeLock().unlock();
+            }
+            boolean[] committed = new boolean[1];
+            try {
+                writer.write(batch, commit -> {
+                    visibility.writeLock().lock();
+                    try {
+                        commit.run();
+                        committed[0] = true;
+                        // Readers now see the new rows, so the deltas must no longer be added
+                        flushing = Map.of();
+                    } finally {
+                        visibility.writeLock().unlock();
+                    }
+                });
+                return true;
+            } catch (SQLException | RuntimeException e) {
+                AsyncLog.error("StatsAggregator.flush", e);
+                if (committed[0]) {
+                    // Failed while cleaning up after the commit; the deltas are written
+                    return true;
+                }
+                visibility.writeLock().lock();
+                try {
+                    // Back into pending, before anything added in the meantime
+                    batch.forEach((username, delta) -> pending.merge(username, delta,
+                            (newer, older) -> older.plus(newer)));
+                    flushing = Map.of();
+                } finally {
+                    visibility.writeLock().unlock();
+                }
+                return false;
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the background thread and writes what is still pending.
+     */
+    public void close() {
+        running = false;
+        Thread thread = flusher;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    private void flushLoop() {
+        while (running) {
+            long deadline = System.nanoTime() + flushIntervalNanos;
+            long remaining;
+            while (running && pending.size() < flushEntries && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            if (running) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * A read started with {@link #beginRead()}; close it when done. Pending deltas are read through
+     * the scope, so they are only looked at while commits are held off.
+     */
+    public final class ReadScope implements AutoCloseable {
+        private ReadScope() {
+        }
+
+        public Delta pendingDelta(String username) {
+            return StatsAggregator.this.pendingDelta(username);
+        }
+
+        @Override
+        public void close() {
+            visibility.readLock().unlock();
+        }
+    }
+
+    /**
+     * Pending ELO change and games played of one user. ELO is clamped at 0 after every battle, so
+     * a sum of changes is not enough: the delta also keeps the lowest ELO the battles can end on,
+     * and {@link #applyTo} gives the same result as applying them one by one.
+     */
+    public static class Delta {
+        static final Delta ZERO = new Delta(0, 0);
+
+        private final int elo;
+        private final int gamesPlayed;
+        private final int minElo;
+
+        /**
+         * The result of one battle (or several without a clamp in between).
+         */
+        public Delta(int elo, int gamesPlayed) {
+            this(elo, gamesPlayed, 0);
+        }
+
+        private Delta(int elo, int gamesPlayed, int minElo) {
+            this.elo = elo;
+            this.gamesPlayed = gamesPlayed;
+            this.minElo = minElo;
+        }
+
+        public int getElo() {
+            return elo;
+        }
+
+        public int getGamesPlayed() {
+            return gamesPlayed;
+        }
+
+        /**
+         * Lower bound of the resulting ELO: {@code max(minElo, elo + getElo())}.
+         */
+        public int getMinElo() {
+            return minElo;
+        }
+
+        /**
+         * ELO after all battles of this delta, starting from {@code elo}.
+         */
+        public int applyTo(int elo) {
+            return Math.max(minElo, elo + this.elo);
+        }
+
+        /**
+         * This delta followed by {@code later}.
+         */
+        Delta plus(Delta later) {
+            return new Delta(elo + later.elo, gamesPlayed + later.gamesPlayed,
+                    Math.max(later.minElo, minElo + later.elo));
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package at.technikum_wien;
+
+import at.technikum_wien.cards.Card;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Storage SPI: everything the request handlers and battles read or write, split into one
+ * repository per area. {@link JdbcStorage} delegates to the PostgreSQL classes
+ * ({@link UserDatabase}, {@link PackageDatabase}, {@link TradingDatabase}); {@link InMemoryStorage}
+ * keeps everything in memory and needs no database at all. Which one is used is chosen with
+ * {@code -Dmctg.storage=jdbc|memory}.
+ *
+ * <p>Both implementations are expected to behave the same for every method below; the storage
+ * contract test runs the same scenario against each of them.
+ */
+public interface Storage {
+
+    /**
+     * Smallest UUID; the {@code after} key of the first page of a keyset-paginated listing.
+     */
+    UUID FIRST_KEY = new UUID(0, 0);
+
+    /**
+     * The storage selected by {@link ServerConfig#STORAGE}.
+     */
+    static Storage get() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Prepares the storage before the server accepts connections (schema, caches).
+     *
+     * @throws SQLException          if the database is not reachable or a migration fails
+     * @throws IllegalStateException if the database is not in a usable state
+     */
+    default void start() throws SQLException {
+    }
+
+    /**
+     * Appends the gauges and counters of this storage (connection pool, caches, sizes) in the
+     * Prometheus text format; called by {@link Metrics#writePrometheus(StringBuilder)}.
+     */
+    void writeMetrics(StringBuilder out);
+
+    UserRepository users();
+
+    CardRepository cards();
+
+    DeckRepository decks();
+
+    PackageRepository packages();
+
+    TradeRepository trades();
+
+    /**
+     * Accounts, login tokens, profile, coins and battle statistics.
+     */
+    interface UserRepository {
+        /**
+         * Creates a user with 20 coins and 100 ELO; false if the name is taken.
+         */
+        boolean createUser(String username, String password);
+
+        /**
+         * Deletes the user together with their stack, deck and trading deals.
+         */
+        boolean deleteUser(String username);
+
+        boolean authenticateUser(String username, String password);
+
+        /**
+         * Sets the login token of a user; {@code null} logs the user out.
+         */
+        boolean updateToken(String username, String token);
+
+        /**
+         * @return the user the token belongs to, or null if the token is unknown
+         */
+        Principal getPrincipalByToken(String token);
+
+        default String getUsernameByToken(String token) {
+            Principal principal = getPrincipalByToken(token);
+            return (principal != null) ? principal.getUsername() : null;
+        }
+
+        /**
+         * @return the user, or null if there is none
+         */
+        User getUser(String username);
+
+        boolean updateUserProfile(String username, String bio, String image);
+
+        boolean updateUserCoins(String username, int coins);
+
+        boolean updateUserBoosterCard(String username, String boosterCardId);
+
+        /**
+         * Applies a battle outcome: ELO (winner +3, loser -5, never below 0; unchanged on a draw), one
+         * more game for both players and the cards that changed owner during the battle. All or
+         * nothing: if a card no longer belongs to its {@code fromUser}, nothing is applied.
+         *
+         * @return false if the result was not stored
+         */
+        boolean recordBattleResult(String winner, String loser, boolean isWin, List<Battle.CardTransfer> transfers);
+
+        Leaderboard leaderboard();
+    }
+
+    /**
+     * The cards a user owns (their stack).
+     */
+    interface CardRepository {
+        /**
+         * @return the whole stack, or null on a storage error
+         */
+        List<Card> getUserCards(String username);
+
+        /**
+         * Up to {@code limit} cards with an id greater than {@code afterId}, ordered by id.
+         *
+         * @return the page, or null on a storage error
+         */
+        List<Card> getUserCards(String username, UUID afterId, int limit);
+
+        /**
+         * Hands the whole stack to {@code consumer} card by card.
+         *
+         * @return false on a storage error (cards may have been handed over already)
+         */
+        boolean streamUserCards(String username, Database.RowConsumer<? super Card> consumer) throws IOException;
+
+        /**
+         * @return the cards of the stack that are not in the deck, or null on a storage error
+         */
+        List<Card> getTradeableCards(String username);
+
+        boolean isCardOwnedByUser(String username, String cardId);
+    }
+
+    /**
+     * The deck a user battles with.
+     */
+    interface DeckRepository {
+        /**
+         * @return the deck (empty if none is set), or null on a storage error
+         */
+        List<Card> getUserDeck(String username);
+
+        /**
+         * Replaces the deck; all {@link ServerConfig#DECK_SIZE} distinct cards must be owned by the user.
+         */
+        boolean setUserDeck(String username, List<String> cardIds);
+
+        boolean isCardInDeck(String username, String cardId);
+
+        /**
+         * Checks the card ids of a new deck: exactly {@code deckSize} valid UUIDs without duplicates.
+         *
+         * @return the ids, or null if the deck is invalid
+         */
+        static UUID[] parseDeck(List<String> cardIds, int deckSize) {
+            if (cardIds == null || cardIds.size() != deckSize) {
+                return null;
+            }
+            UUID[] ids = new UUID[deckSize];
+            try {
+                for (int i = 0; i < deckSize; i++) {
+                    ids[i] = UUID.fromString(cardIds.get(i));
+                }
+            } catch (IllegalArgumentException | NullPointerException e) {
+                return null;
+            }
+            return (new HashSet<>(Arrays.asList(ids)).size() == deckSize) ? ids : null;
+        }
+    }
+
+    /**
+     * Card packages: created by the admin, bought by users for coins.
+     */
+    interface PackageRepository {
+        /**
+         * Adds a package of {@link PackageDatabase#PACKAGE_SIZE} new cards; false if a card id already exists.
+         */
+        boolean createPackage(List<Card> cards);
+
+        /**
+         * Adds many packages, {@code chunkSize} at a time; a failing chunk does not affect the others.
+         */
+        List<PackageDatabase.ChunkResult> createPackages(List<List<Card>> packages, int chunkSize);
+
+        /**
+         * Buys the oldest unsold package; false if the user cannot afford it or none is left.
+         */
+        boolean purchasePackage(String username);
+    }
+
+    /**
+     * Open trading deals.
+     */
+    interface TradeRepository {
+        boolean createTradingDeal(TradingDeal deal);
+
+        /**
+         * Up to {@code limit} deals with an id greater than {@code afterId}, ordered by id.
+         *
+         * @return the page, or null on a storage error
+         */
+        List<TradingDeal> getTradingDeals(UUID afterId, int limit);
+
+        /**
+         * Hands all open deals to {@code consumer} one by one.
+         *
+         * @return false on a storage error (deals may have been handed over already)
+         */
+        boolean streamTradingDeals(Database.RowConsumer<? super TradingDeal> consumer) throws IOException;
+
+        /**
+         * Swaps the deal's card against the offered card and removes the deal, atomically; of two
+         * buyers racing for the same deal exactly one gets {@link TradingDatabase.TradeResult#ACCEPTED}.
+         */
+        TradingDatabase.TradeResult acceptTradingDeal(String dealId, String buyer, String offeredCardId);
+
+        /**
+         * @return the deals of others that a tradeable card of the user satisfies, or null on a storage error
+         */
+        List<TradeIndex.Match> findMatches(String username);
+    }
+
+    /**
+     * Creates the configured storage on first use.
+     */
+    final class Holder {
+        private static final Storage INSTANCE = "memory".equalsIgnoreCase(ServerConfig.STORAGE)
+                ? new InMemoryStorage() : new JdbcStorage();
+
+        private Holder() {
+        }
+    }
+}
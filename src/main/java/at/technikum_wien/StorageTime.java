@@ -0,0 +1,32 @@
+package at.technikum_wien;
+
+/**
+ * Time the current request has spent waiting for and holding database connections, for the
+ * access log. Kept apart from {@link Database}, so handling a request does not initialize the
+ * connection pool when the in-memory storage is used.
+ */
+public final class StorageTime {
+    // Time the current thread has spent with (waiting for) connections since reset()
+    private static final ThreadLocal<long[]> NANOS = ThreadLocal.withInitial(() -> new long[1]);
+
+    private StorageTime() {
+    }
+
+    /**
+     * Resets the time of the current thread (at the start of a request).
+     */
+    public static void reset() {
+        NANOS.get()[0] = 0;
+    }
+
+    /**
+     * Time of the current thread in nanoseconds since the last {@link #reset()}.
+     */
+    public static long nanos() {
+        return NANOS.get()[0];
+    }
+
+    static void add(long nanos) {
+        NANOS.get()[0] += nanos;
+    }
+}
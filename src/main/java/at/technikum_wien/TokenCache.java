@@ -0,0 +1,145 @@
+package at.technikum_wien;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of token → {@link Principal}, so authenticating a request does not cost a database
+ * round trip. Entries expire after the TTL; changing or removing a user's token must call
+ * {@link #invalidate(String)} after the change is committed.
+ *
+ * <p>A lookup that missed reads the database and then calls {@link #put}. To keep such a load from
+ * re-inserting a token that was invalidated while the query was running, callers take
+ * {@link #version()} before the query and the entry is dropped again if an invalidation happened
+ * in between.
+ */
+public class TokenCache {
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Map<String, Entry> byToken = new ConcurrentHashMap<>();
+    // Current cached token per user, so invalidation by username needs no scan
+    private final Map<String, String> tokenByUser = new ConcurrentHashMap<>();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxSize maximum number of cached tokens (0 disables the cache)
+     * @param ttlMs   time after which an entry is loaded from the database again
+     */
+    public TokenCache(int maxSize, long ttlMs) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlMs * 1_000_000;
+    }
+
+    /**
+     * Returns the cached principal for the token, or null if it is not cached or has expired.
+     */
+    public Principal get(String token) {
+        Entry entry = byToken.get(token);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAt > 0) {
+            remove(token, entry);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.principal;
+    }
+
+    /**
+     * Version to pass to {@link #put} for a value that is about to be loaded.
+     */
+    public long version() {
+        return invalidations.get();
+    }
+
+    /**
+     * Caches a principal loaded from the database, unless an invalidation happened since
+     * {@code version} was taken.
+     */
+    public void put(String token, Principal principal, long version) {
+        if (maxSize <= 0) {
+            return;
+        }
+        if (byToken.size() >= maxSize) {
+            evict();
+        }
+        Entry entry = new Entry(principal, System.nanoTime() + ttlNanos);
+        byToken.put(token, entry);
+        String previous = tokenByUser.put(principal.getUsername(), token);
+        if (previous != null && !previous.equals(token)) {
+            byToken.remove(previous);
+        }
+        // Checked after publishing: an invalidation either sees the entry or is seen here
+        if (invalidations.get() != version) {
+            remove(token, entry);
+        }
+    }
+
+    /**
+     * Drops the cached token of a user (after login, logout or deletion).
+     */
+    public void invalidate(String username) {
+        invalidations.incrementAndGet();
+        String token = tokenByUser.remove(username);
+        if (token != null) {
+            byToken.remove(token);
+        }
+    }
+
+    public int size() {
+        return byToken.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    private void remove(String token, Entry entry) {
+        if (byToken.remove(token, entry)) {
+            tokenByUser.remove(entry.principal.getUsername(), token);
+        }
+    }
+
+    /**
+     * Makes room when the cache is full: drops expired entries, and if that is not enough an
+     * arbitrary eighth of the cache, so a full cache is not cleaned up on every insert.
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        int target = maxSize - Math.max(1, maxSize / 8);
+        Iterator<Map.Entry<String, Entry>> it = byToken.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (now - e.getValue().expiresAt > 0) {
+                remove(e.getKey(), e.getValue());
+            }
+        }
+        it = byToken.entrySet().iterator();
+        while (byToken.size() > target && it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            remove(e.getKey(), e.getValue());
+        }
+    }
+
+    private static class Entry {
+        private final Principal principal;
+        private final long expiresAt;
+
+        Entry(Principal principal, long expiresAt) {
+            this.principal = principal;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package at.technikum_wien;
+
+import at.technikum_wien.cards.Card;
+import at.technikum_wien.cards.MonsterCard;
+import at.technikum_wien.cards.SpellCard;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Open trading deals kept in memory for "which deals can my cards satisfy?". Deals are bucketed by
+ * required type and element (a deal without element has its own bucket that every element of the
+ * type matches) and sorted by minimum damage within a bucket. A card therefore only looks at two
+ * buckets and, within them, only at the deals whose minimum damage it reaches.
+ *
+ * <p>Kept up to date when deals are created, accepted or deleted; reads share a read lock.
+ */
+public class TradeIndex {
+    private static final String ANY_ELEMENT = "*";
+
+    // Lowest minimum damage first; deals without minimum count as 0
+    private static final Comparator<TradingDeal> BY_MINIMUM_DAMAGE = Comparator
+            .comparingDouble(TradeIndex::minimumDamage)
+            .thenComparing(TradingDeal::getId);
+
+    private final Map<String, NavigableSet<TradingDeal>> buckets = new HashMap<>();
+    private final Map<String, TradingDeal> byId = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Replaces all deals (e.g. after loading them from the database).
+     */
+    public void reset(List<TradingDeal> deals) {
+        lock.writeLock().lock();
+        try {
+            buckets.clear();
+            byId.clear();
+            for (TradingDeal deal : deals) {
+                insert(deal);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void add(TradingDeal deal) {
+        lock.writeLock().lock();
+        try {
+            delete(deal.getId());
+            insert(deal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String dealId) {
+        lock.writeLock().lock();
+        try {
+            delete(dealId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all deals of a user (when the user is deleted).
+     */
+    public void removeOwner(String owner) {
+        lock.writeLock().lock();
+        try {
+            List<String> ids = new ArrayList<>();
+            for (TradingDeal deal : byId.values()) {
+                if (owner.equals(deal.getOwner())) {
+                    ids.add(deal.getId());
+                }
+            }
+            ids.forEach(this::delete);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The deals of other users that one of the given cards satisfies, each with the weakest card that
+     * does (so the strongest cards are kept), in the order the cards were given.
+     *
+     * @param username the caller; their own deals are left out
+     * @param cards    the caller's tradeable cards (not in the deck)
+     */
+    public List<Match> matches(String username, List<Card> cards) {
+        Map<String, Match> best = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            for (Card card : cards) {
+                String type = key(card.getType());
+                String element = key(elementOf(card));
+                collect(username, card, buckets.get(type + '|' + element), best);
+                collect(username, card, buckets.get(type + '|' + ANY_ELEMENT), best);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new ArrayList<>(best.values());
+    }
+
+    private static void collect(String username, Card card, NavigableSet<TradingDeal> bucket, Map<String, Match> best) {
+        if (bucket == null) {
+            return;
+        }
+        // Every deal up to the first one whose minimum damage the card does not reach
+        for (TradingDeal deal : bucket) {
+            if (minimumDamage(deal) > card.getDamage()) {
+                break;
+            }
+            if (username.equals(deal.getOwner())) {
+                continue;
+            }
+            Match current = best.get(deal.getId());
+            if (current == null || card.getDamage() < current.card.getDamage()) {
+                best.put(deal.getId(), new Match(deal, card));
+            }
+        }
+    }
+
+    private void insert(TradingDeal deal) {
+        byId.put(deal.getId(), deal);
+        buckets.computeIfAbsent(bucketOf(deal), k -> new TreeSet<>(BY_MINIMUM_DAMAGE)).add(deal);
+    }
+
+    private void delete(String dealId) {
+        TradingDeal deal = byId.remove(dealId);
+        if (deal == null) {
+            return;
+        }
+        String bucketKey = bucketOf(deal);
+        NavigableSet<TradingDeal> bucket = buckets.get(bucketKey);
+        bucket.remove(deal);
+        if (bucket.isEmpty()) {
+            buckets.remove(bucketKey);
+        }
+    }
+
+    private static String bucketOf(TradingDeal deal) {
+        return key(deal.getRequiredType()) + '|'
+                + (TradingDatabase.acceptsAnyElement(deal) ? ANY_ELEMENT : key(deal.getRequiredElement()));
+    }
+
+    // Requirements are compared case-insensitively, as in TradingDatabase.meetsRequirements
+    private static String key(String value) {
+        return (value == null) ? "" : value.toLowerCase(Locale.ROOT);
+    }
+
+    private static double minimumDamage(TradingDeal deal) {
+        return (deal.getMinimumDamage() == null) ? 0 : deal.getMinimumDamage();
+    }
+
+    private static String elementOf(Card card) {
+        if (card instanceof MonsterCard) {
+            return ((MonsterCard) card).getElementType();
+        }
+        return (card instanceof SpellCard) ? ((SpellCard) card).getElementType() : null;
+    }
+
+    /**
+     * An open deal and the caller's card that satisfies it.
+     */
+    public static class Match {
+        private final TradingDeal deal;
+        private final Card card;
+
+        public Match(TradingDeal deal, Card card) {
+            this.deal = deal;
+            this.card = card;
+        }
+
+        public TradingDeal getDeal() {
+            return deal;
+        }
+
+        public String getCardId() {
+            return card.getId();
+        }
+    }
+}
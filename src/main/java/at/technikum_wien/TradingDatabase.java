@@ -4,13 +4,22 @@ import at.technikum_wien.cards.Card;
 import at.technikum_wien.cards.MonsterCard;
 import at.technikum_wien.cards.SpellCard;
 
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class TradingDatabase {
 
+    // Offene Angebote im Speicher für GET /tradings/matches; wird beim Start geladen
+    private static final TradeIndex OPEN_DEALS = new TradeIndex();
+    private static volatile boolean openDealsLoaded;
+    // Laden und Änderungen am Index nacheinander, damit kein Angebot zwischen SELECT und reset() verloren geht
+    private static final ReentrantLock OPEN_DEALS_LOCK = new ReentrantLock();
+
     public static boolean createTradingDeal(TradingDeal deal) {
         String insertDeal = "INSERT INTO trading_deals " +
                 "(id, owner, card_to_trade, required_type, required_element, minimum_damage) " +
@@ -32,115 +41,301 @@ public class TradingDatabase {
             }
 
             int rowsAffected = stmt.executeUpdate();
+            if (rowsAffected == 1) {
+                // Im Index so, wie die Datenbank die IDs zurückgibt
+                deal.setId(UUID.fromString(deal.getId()).toString());
+                deal.setCardToTrade(UUID.fromString(deal.getCardToTrade()).toString());
+                updateOpenDeals(index -> index.add(deal));
+            }
             return rowsAffected == 1;
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("TradingDatabase.createTradingDeal", e);
             return false;
         }
     }
 
 
+    private static final String DEAL_COLUMNS =
+            "id, owner, card_to_trade, required_type, required_element, minimum_damage";
+
     public static List<TradingDeal> getAllTradingDeals() {
-        String query = "SELECT * FROM trading_deals";
+        String query = "SELECT " + DEAL_COLUMNS + " FROM trading_deals";
         List<TradingDeal> deals = new ArrayList<>();
         try (Connection conn = Database.getConnection();
              PreparedStatement stmt = conn.prepareStatement(query);
              ResultSet rs = stmt.executeQuery()) {
 
             while (rs.next()) {
-                TradingDeal deal = new TradingDeal();
-                deal.setId(rs.getString("id"));
-                deal.setOwner(rs.getString("owner"));
-                deal.setCardToTrade(rs.getString("card_to_trade"));
-                deal.setRequiredType(rs.getString("required_type"));
-                deal.setRequiredElement(rs.getString("required_element"));
-                deal.setMinimumDamage(rs.getDouble("minimum_damage"));
-                deals.add(deal);
+                deals.add(readDeal(rs));
             }
             return deals;
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("TradingDatabase.getAllTradingDeals", e);
             return deals;
         }
     }
 
-    public static boolean acceptTradingDeal(String dealId, String buyer, String offeredCardId) {
-        String selectDeal = "SELECT * FROM trading_deals WHERE id = ?";
-        String deleteDeal = "DELETE FROM trading_deals WHERE id = ?";
+    /**
+     * Eine Seite der Handelsangebote, sortiert nach ID (Keyset-Pagination).
+     *
+     * @param afterId letzte ID der vorigen Seite, {@link Storage#FIRST_KEY} für die erste Seite
+     * @return die Angebote, oder null bei einem Datenbankfehler
+     */
+    public static List<TradingDeal> getTradingDeals(UUID afterId, int limit) {
+        String query = "SELECT " + DEAL_COLUMNS + " FROM trading_deals WHERE id > ? ORDER BY id LIMIT ?";
+        try (Connection conn = Database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
+            stmt.setObject(1, afterId);
+            stmt.setInt(2, limit);
+            ResultSet rs = stmt.executeQuery();
+            List<TradingDeal> deals = new ArrayList<>(limit);
+            while (rs.next()) {
+                deals.add(readDeal(rs));
+            }
+            return deals;
+        } catch (SQLException e) {
+            AsyncLog.error("TradingDatabase.getTradingDeals", e);
+            return null;
+        }
+    }
+
+    /**
+     * Liest alle Handelsangebote über einen serverseitigen Cursor und übergibt sie einzeln.
+     *
+     * @return false bei einem Datenbankfehler (Angebote können dann bereits übergeben worden sein)
+     * @throws IOException wenn {@code consumer} fehlschlägt
+     */
+    public static boolean streamTradingDeals(Database.RowConsumer<? super TradingDeal> consumer) throws IOException {
+        String query = "SELECT " + DEAL_COLUMNS + " FROM trading_deals";
         try (Connection conn = Database.getConnection()) {
+            // Der Cursor bleibt nur innerhalb einer Transaktion offen
             conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                stmt.setFetchSize(ServerConfig.DB_STREAM_FETCH_SIZE);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    consumer.accept(readDeal(rs));
+                }
+                conn.commit();
+                return true;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            AsyncLog.error("TradingDatabase.streamTradingDeals", e);
+            return false;
+        }
+    }
 
-            try (PreparedStatement selectStmt = conn.prepareStatement(selectDeal);
-                 PreparedStatement deleteStmt = conn.prepareStatement(deleteDeal)) {
+    private static TradingDeal readDeal(ResultSet rs) throws SQLException {
+        TradingDeal deal = new TradingDeal();
+        deal.setId(rs.getString("id"));
+        deal.setOwner(rs.getString("owner"));
+        deal.setCardToTrade(rs.getString("card_to_trade"));
+        deal.setRequiredType(rs.getString("required_type"));
+        deal.setRequiredElement(rs.getString("required_element"));
+        deal.setMinimumDamage(rs.getDouble("minimum_damage"));
+        return deal;
+    }
 
-                // Handelsangebot abrufen
-                selectStmt.setString(1, dealId);
-                ResultSet rs = selectStmt.executeQuery();
-                if (!rs.next()) {
-                    conn.rollback();
-                    return false;
-                }
+    /**
+     * Ergebnis von {@link #acceptTradingDeal}.
+     */
+    public enum TradeResult {
+        ACCEPTED,
+        /** Das Angebot existiert nicht (mehr), z.B. weil ein anderer Käufer schneller war. */
+        NOT_FOUND,
+        /** Die angebotene Karte gehört dem Käufer nicht, liegt in seinem Deck, oder es ist sein eigenes Angebot. */
+        FORBIDDEN,
+        /** Die angebotene Karte erfüllt die Anforderungen des Angebots nicht. */
+        REQUIREMENTS_NOT_MET,
+        ERROR
+    }
 
-                TradingDeal deal = new TradingDeal();
-                deal.setId(rs.getString("id"));
-                deal.setOwner(rs.getString("owner"));
-                deal.setCardToTrade(rs.getString("card_to_trade"));
-                deal.setRequiredType(rs.getString("required_type"));
-                deal.setRequiredElement(rs.getString("required_element"));
-                deal.setMinimumDamage(rs.getDouble("minimum_damage"));
-
-                // Überprüfen, ob der Käufer die Anforderungen erfüllt
-                Card offeredCard = UserDatabase.getCardById(offeredCardId);
-                if (offeredCard == null || !offeredCard.getType().equalsIgnoreCase(deal.getRequiredType())) {
-                    conn.rollback();
-                    return false;
-                }
+    // Sperrt das Angebot und prüft im selben Roundtrip, ob der Käufer die angebotene Karte frei verfügbar hat
+    private static final String LOCK_DEAL = "SELECT " + DEAL_COLUMNS + ", EXISTS (SELECT 1 FROM user_cards uc "
+            + "WHERE uc.username = ? AND uc.card_id = ? AND NOT EXISTS "
+            + "(SELECT 1 FROM decks dk WHERE dk.username = uc.username AND dk.card_id = uc.card_id)) AS offer_available "
+            + "FROM trading_deals WHERE id = ? FOR UPDATE OF trading_deals";
 
-                if (deal.getRequiredElement() != null) {
-                    String elementType = offeredCard instanceof MonsterCard ?
-                            ((MonsterCard) offeredCard).getElementType() :
-                            ((SpellCard) offeredCard).getElementType();
+    // Beide Besitzwechsel und das Löschen des Angebots in einem Statement
+    private static final String SWAP_AND_DELETE = "WITH moved AS ("
+            + "UPDATE user_cards SET username = CASE WHEN card_id = ? THEN ? ELSE ? END "
+            + "WHERE (username = ? AND card_id = ?) OR (username = ? AND card_id = ?) RETURNING card_id), "
+            + "removed AS (DELETE FROM trading_deals WHERE id = ? RETURNING id) "
+            + "SELECT (SELECT COUNT(*) FROM moved), (SELECT COUNT(*) FROM removed)";
 
-                    if (!elementType.equalsIgnoreCase(deal.getRequiredElement())) {
-                        conn.rollback();
-                        return false;
-                    }
-                }
+    public static TradeResult acceptTradingDeal(String dealId, String buyer, String offeredCardId) {
+        try (Connection conn = Database.getConnection()) {
+            return acceptTradingDeal(conn, dealId, buyer, offeredCardId);
+        } catch (SQLException e) {
+            AsyncLog.error("TradingDatabase.acceptTradingDeal", e);
+            return TradeResult.ERROR;
+        }
+    }
+
+    /**
+     * Führt einen Tausch in einer Transaktion auf einer Verbindung aus: Angebot mit
+     * {@code FOR UPDATE} sperren (zugleich Besitz und Deck der angebotenen Karte prüfen), die Karte
+     * gegen den {@link CardCatalog} validieren, dann beide Karten tauschen und das Angebot löschen.
+     * Konkurrierende Käufer warten auf die Sperre und finden danach kein Angebot mehr.
+     */
+    static TradeResult acceptTradingDeal(Connection conn, String dealId, String buyer, String offeredCardId)
+            throws SQLException {
+        UUID dealUuid;
+        UUID offeredUuid;
+        try {
+            offeredUuid = UUID.fromString(offeredCardId);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            // Keine gültige Karten-ID: kann dem Käufer nicht gehören (wie bisher 403)
+            return TradeResult.FORBIDDEN;
+        }
+        try {
+            dealUuid = UUID.fromString(dealId);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return TradeResult.NOT_FOUND;
+        }
 
-                if (deal.getMinimumDamage() != null && offeredCard.getDamage() < deal.getMinimumDamage()) {
+        conn.setAutoCommit(false);
+        try {
+            TradingDeal deal;
+            boolean offerAvailable;
+            try (PreparedStatement lockStmt = conn.prepareStatement(LOCK_DEAL)) {
+                lockStmt.setString(1, buyer);
+                lockStmt.setObject(2, offeredUuid);
+                lockStmt.setObject(3, dealUuid);
+                ResultSet rs = lockStmt.executeQuery();
+                if (!rs.next()) {
                     conn.rollback();
-                    return false;
+                    // Z.B. von einem anderen Prozess angenommen: auch aus dem Index entfernen
+                    updateOpenDeals(index -> index.remove(dealUuid.toString()));
+                    return TradeResult.NOT_FOUND;
                 }
+                deal = readDeal(rs);
+                offerAvailable = rs.getBoolean("offer_available");
+            }
+            if (!offerAvailable || buyer.equals(deal.getOwner())) {
+                conn.rollback();
+                return TradeResult.FORBIDDEN;
+            }
 
-                // Karten zwischen den Benutzern tauschen
-                boolean transfer1 = UserDatabase.transferCard(deal.getOwner(), buyer, deal.getCardToTrade());
-                boolean transfer2 = UserDatabase.transferCard(buyer, deal.getOwner(), offeredCardId);
-
-                if (transfer1 && transfer2) {
-                    // Handelsangebot löschen
-                    deleteStmt.setString(1, dealId);
-                    deleteStmt.executeUpdate();
+            // Karten ändern sich nie; meist liegt die Karte schon im Katalog und kostet keinen Roundtrip
+            Card offeredCard = CardCatalog.resolve(conn, List.of(offeredUuid.toString())).get(0);
+            if (!meetsRequirements(deal, offeredCard)) {
+                conn.rollback();
+                return TradeResult.REQUIREMENTS_NOT_MET;
+            }
 
-                    conn.commit();
-                    return true;
-                } else {
+            try (PreparedStatement swapStmt = conn.prepareStatement(SWAP_AND_DELETE)) {
+                UUID dealCard = UUID.fromString(deal.getCardToTrade());
+                swapStmt.setObject(1, dealCard);
+                swapStmt.setString(2, buyer);
+                swapStmt.setString(3, deal.getOwner());
+                swapStmt.setString(4, deal.getOwner());
+                swapStmt.setObject(5, dealCard);
+                swapStmt.setString(6, buyer);
+                swapStmt.setObject(7, offeredUuid);
+                swapStmt.setObject(8, dealUuid);
+                ResultSet rs = swapStmt.executeQuery();
+                // Der Anbieter besitzt seine Karte nicht mehr: Angebot ist nicht mehr gültig
+                if (!rs.next() || rs.getInt(1) != 2 || rs.getInt(2) != 1) {
                     conn.rollback();
-                    return false;
+                    return TradeResult.NOT_FOUND;
                 }
+            }
+            conn.commit();
+            updateOpenDeals(index -> index.remove(dealUuid.toString()));
+            return TradeResult.ACCEPTED;
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
 
-            } catch (SQLException e) {
-                conn.rollback();
-                e.printStackTrace();
+    static boolean meetsRequirements(TradingDeal deal, Card offeredCard) {
+        if (offeredCard == null || !offeredCard.getType().equalsIgnoreCase(deal.getRequiredType())) {
+            return false;
+        }
+        if (!acceptsAnyElement(deal)) {
+            String elementType = offeredCard instanceof MonsterCard ?
+                    ((MonsterCard) offeredCard).getElementType() :
+                    ((SpellCard) offeredCard).getElementType();
+            if (!elementType.equalsIgnoreCase(deal.getRequiredElement())) {
                 return false;
-            } finally {
-                conn.setAutoCommit(true);
             }
+        }
+        return deal.getMinimumDamage() == null || offeredCard.getDamage() >= deal.getMinimumDamage();
+    }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * Ein Angebot ohne Element ({@code null} oder leer) akzeptiert Karten jedes Elements; gilt für
+     * {@link #meetsRequirements} und den {@link TradeIndex}.
+     */
+    static boolean acceptsAnyElement(TradingDeal deal) {
+        return deal.getRequiredElement() == null || deal.getRequiredElement().isEmpty();
+    }
+
+    /**
+     * Index der offenen Angebote; wird beim ersten Zugriff geladen, falls das beim Start nicht ging.
+     */
+    public static TradeIndex openDeals() {
+        if (!openDealsLoaded) {
+            loadOpenDeals();
+        }
+        return OPEN_DEALS;
+    }
+
+    /**
+     * Baut den Index der offenen Angebote aus der Datenbank neu auf.
+     *
+     * @return true, wenn die Angebote geladen werden konnten
+     */
+    public static boolean loadOpenDeals() {
+        OPEN_DEALS_LOCK.lock();
+        try {
+            List<TradingDeal> deals = new ArrayList<>();
+            if (!streamTradingDeals(deals::add)) {
+                return false;
+            }
+            OPEN_DEALS.reset(deals);
+            openDealsLoaded = true;
+            return true;
+        } catch (IOException e) {
+            // Kommt beim Sammeln in eine Liste nicht vor
+            AsyncLog.error("TradingDatabase.loadOpenDeals", e);
             return false;
+        } finally {
+            OPEN_DEALS_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Entfernt die Angebote eines gelöschten Benutzers aus dem Index.
+     */
+    public static void forgetDealsOf(String owner) {
+        updateOpenDeals(index -> index.removeOwner(owner));
+    }
+
+    /**
+     * Angebote, die die handelbaren Karten (nicht im Deck) des Benutzers erfüllen.
+     *
+     * @return die Treffer, oder null bei einem Datenbankfehler
+     */
+    public static List<TradeIndex.Match> findMatches(String username) {
+        List<Card> cards = UserDatabase.getTradeableCards(username);
+        return (cards == null) ? null : openDeals().matches(username, cards);
+    }
+
+    private static void updateOpenDeals(Consumer<TradeIndex> update) {
+        OPEN_DEALS_LOCK.lock();
+        try {
+            update.accept(OPEN_DEALS);
+        } finally {
+            OPEN_DEALS_LOCK.unlock();
         }
     }
 }
@@ -1,15 +1,37 @@
 package at.technikum_wien;
 
 import at.technikum_wien.cards.Card;
-import at.technikum_wien.cards.MonsterCard;
-import at.technikum_wien.cards.SpellCard;
 
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class UserDatabase {
+    // Benutzer, dessen Token Admin-Rechte gibt (z.B. für POST /packages)
+    static final String ADMIN_USERNAME = "admin";
+
+    private static final TokenCache TOKENS = new TokenCache(ServerConfig.TOKEN_CACHE_SIZE,
+            ServerConfig.TOKEN_CACHE_TTL_MS);
+
+    // ELO und gespielte Spiele werden gesammelt und gebündelt geschrieben
+    private static final StatsAggregator STATS = new StatsAggregator(ServerConfig.STATS_FLUSH_INTERVAL_MS,
+            ServerConfig.STATS_FLUSH_ENTRIES, UserDatabase::writeStats);
+
+    static {
+        STATS.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(STATS::close, "stats-shutdown"));
+    }
+
+    // Rangliste im Speicher, enthält noch nicht geschriebene ELO-Änderungen bereits
+    private static final Leaderboard LEADERBOARD = new Leaderboard();
+    private static volatile boolean leaderboardLoaded;
+    // Hält Laden und ELO-Änderungen auseinander, damit eine Änderung nicht doppelt gezählt wird
+    private static final ReentrantLock LEADERBOARD_LOCK = new ReentrantLock();
 
     /**
      * Erstellt einen neuen Benutzer in der Datenbank.
@@ -26,10 +48,13 @@ public class UserDatabase {
             stmt.setString(1, username);
             stmt.setString(2, password);
             int rowsAffected = stmt.executeUpdate();
+            if (rowsAffected == 1) {
+                LEADERBOARD.put(username, 100, 0);
+            }
             return rowsAffected == 1;
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.createUser", e);
             return false;
         }
     }
@@ -60,16 +85,19 @@ public class UserDatabase {
                 int rows = stmtDeleteUser.executeUpdate();
 
                 conn.commit();
+                TOKENS.invalidate(username);
+                LEADERBOARD.remove(username);
+                TradingDatabase.forgetDealsOf(username);
                 return rows > 0;
             } catch (SQLException e) {
                 conn.rollback();
-                e.printStackTrace();
+                AsyncLog.error("UserDatabase.deleteUser", e);
                 return false;
             } finally {
                 conn.setAutoCommit(true);
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.deleteUser", e);
             return false;
         }
     }
@@ -89,114 +117,168 @@ public class UserDatabase {
             }
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.authenticateUser", e);
             return false;
         }
     }
 
     public static List<Card> getUserCards(String username) {
-        String query = "SELECT c.id, c.name, c.damage, c.type, c.element FROM user_cards uc " +
-                "JOIN cards c ON uc.card_id = c.id WHERE uc.username = ?";
+        String query = "SELECT card_id FROM user_cards WHERE username = ?";
+        try (Connection conn = Database.getConnection()) {
+            return CardCatalog.resolve(conn, queryCardIds(conn, query, username));
+        } catch (SQLException e) {
+            AsyncLog.error("UserDatabase.getUserCards", e);
+            return null;
+        }
+    }
+
+    /**
+     * Eine Seite des Stacks, sortiert nach Karten-ID (Keyset-Pagination).
+     *
+     * @param afterId letzte Karten-ID der vorigen Seite, {@link Storage#FIRST_KEY} für die erste Seite
+     */
+    public static List<Card> getUserCards(String username, UUID afterId, int limit) {
+        String query = "SELECT card_id FROM user_cards WHERE username = ? AND card_id > ? ORDER BY card_id LIMIT ?";
         try (Connection conn = Database.getConnection();
              PreparedStatement stmt = conn.prepareStatement(query)) {
-
             stmt.setString(1, username);
+            stmt.setObject(2, afterId);
+            stmt.setInt(3, limit);
             ResultSet rs = stmt.executeQuery();
-            List<Card> cards = new ArrayList<>();
+            List<String> cardIds = new ArrayList<>(limit);
             while (rs.next()) {
-                String id = rs.getString("id");
-                String name = rs.getString("name");
-                double damage = rs.getDouble("damage");
-                String type = rs.getString("type");
-                String element = rs.getString("element");
-
-                Card card;
-                if ("Monster".equalsIgnoreCase(type)) {
-                    card = new MonsterCard(id, name, damage, element);
-                } else {
-                    card = new SpellCard(id, name, damage, element);
+                cardIds.add(rs.getString(1));
+            }
+            return CardCatalog.resolve(conn, cardIds);
+        } catch (SQLException e) {
+            AsyncLog.error("UserDatabase.getUserCards", e);
+            return null;
+        }
+    }
+
+    /**
+     * Liest den ganzen Stack über einen serverseitigen Cursor ({@code setFetchSize} innerhalb einer
+     * Transaktion) und übergibt die Karten einzeln, während weitere Zeilen gelesen werden. Es liegen
+     * nie mehr als {@link ServerConfig#DB_STREAM_FETCH_SIZE} Zeilen gleichzeitig im Speicher.
+     *
+     * @return false bei einem Datenbankfehler (Karten können dann bereits übergeben worden sein)
+     * @throws IOException wenn {@code consumer} fehlschlägt, z.B. weil der Client weg ist
+     */
+    public static boolean streamUserCards(String username, Database.RowConsumer<? super Card> consumer) throws IOException {
+        String query = "SELECT card_id FROM user_cards WHERE username = ?";
+        int fetchSize = ServerConfig.DB_STREAM_FETCH_SIZE;
+        try (Connection conn = Database.getConnection()) {
+            // Ohne offene Transaktion würde der Treiber alle Zeilen auf einmal laden
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                stmt.setFetchSize(fetchSize);
+                stmt.setString(1, username);
+                ResultSet rs = stmt.executeQuery();
+                List<String> cardIds = new ArrayList<>(fetchSize);
+                boolean more = true;
+                while (more) {
+                    more = rs.next();
+                    if (more) {
+                        cardIds.add(rs.getString(1));
+                    }
+                    if (cardIds.size() == fetchSize || (!more && !cardIds.isEmpty())) {
+                        // Fehlende Karten eines ganzen Fetch-Blocks mit einer Abfrage nachladen
+                        for (Card card : CardCatalog.resolve(conn, cardIds)) {
+                            consumer.accept(card);
+                        }
+                        cardIds.clear();
+                    }
                 }
-                cards.add(card);
+                conn.commit();
+                return true;
+            } finally {
+                conn.setAutoCommit(true);
             }
-            return cards;
+        } catch (SQLException e) {
+            AsyncLog.error("UserDatabase.streamUserCards", e);
+            return false;
+        }
+    }
 
+    /**
+     * Karten des Benutzers, die nicht im Deck liegen und daher getauscht werden dürfen.
+     */
+    public static List<Card> getTradeableCards(String username) {
+        String query = "SELECT uc.card_id FROM user_cards uc WHERE uc.username = ? AND NOT EXISTS "
+                + "(SELECT 1 FROM decks d WHERE d.username = uc.username AND d.card_id = uc.card_id)";
+        try (Connection conn = Database.getConnection()) {
+            return CardCatalog.resolve(conn, queryCardIds(conn, query, username));
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.getTradeableCards", e);
             return null;
         }
     }
 
     public static List<Card> getUserDeck(String username) {
-        String query = "SELECT c.id, c.name, c.damage, c.type, c.element FROM decks d " +
-                "JOIN cards c ON d.card_id = c.id WHERE d.username = ?";
-        try (Connection conn = Database.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query)) {
+        String query = "SELECT card_id FROM decks WHERE username = ?";
+        try (Connection conn = Database.getConnection()) {
+            return CardCatalog.resolve(conn, queryCardIds(conn, query, username));
+        } catch (SQLException e) {
+            AsyncLog.error("UserDatabase.getUserDeck", e);
+            return null;
+        }
+    }
 
+    /**
+     * Liest nur die Karten-IDs eines Benutzers; die Karten selbst kommen aus dem {@link CardCatalog}.
+     */
+    private static List<String> queryCardIds(Connection conn, String query, String username) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setString(1, username);
             ResultSet rs = stmt.executeQuery();
-            List<Card> deck = new ArrayList<>();
+            List<String> cardIds = new ArrayList<>();
             while (rs.next()) {
-                String id = rs.getString("id");
-                String name = rs.getString("name");
-                double damage = rs.getDouble("damage");
-                String type = rs.getString("type");
-                String element = rs.getString("element");
-
-                Card card;
-                if ("Monster".equalsIgnoreCase(type)) {
-                    card = new MonsterCard(id, name, damage, element);
-                } else {
-                    card = new SpellCard(id, name, damage, element);
-                }
-                deck.add(card);
+                cardIds.add(rs.getString(1));
             }
-            return deck;
-
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return null;
+            return cardIds;
         }
     }
 
     public static boolean setUserDeck(String username, List<String> cardIds) {
-        if (cardIds.size() != 4) {
+        return setUserDeck(username, cardIds, ServerConfig.DECK_SIZE);
+    }
+
+    /**
+     * Ersetzt das Deck eines Benutzers in einer Transaktion mit zwei Statements: altes Deck löschen,
+     * dann alle Karten mit einem INSERT ... SELECT aus {@code user_cards} übernehmen. Das SELECT prüft
+     * zugleich den Besitz ({@code card_id = ANY(?)}): fehlt eine Karte, werden weniger Zeilen eingefügt
+     * und die Transaktion zurückgerollt.
+     *
+     * @param cardIds  IDs der Karten, ohne Duplikate
+     * @param deckSize geforderte Anzahl Karten im Deck
+     * @return true, wenn das Deck gesetzt wurde
+     */
+    public static boolean setUserDeck(String username, List<String> cardIds, int deckSize) {
+        UUID[] ids = Storage.DeckRepository.parseDeck(cardIds, deckSize);
+        if (ids == null) {
             return false;
         }
 
         String deleteOldDeck = "DELETE FROM decks WHERE username = ?";
-        String insertDeckCard = "INSERT INTO decks (username, card_id) VALUES (?, ?)";
-        String checkOwnership = "SELECT COUNT(*) FROM user_cards WHERE username = ? AND card_id = ?";
+        // FOR SHARE: ein gleichzeitiger Tausch kann die Karten erst nach dem Commit abgeben
+        String insertOwnedCards = "INSERT INTO decks (username, card_id) "
+                + "SELECT username, card_id FROM user_cards WHERE username = ? AND card_id = ANY(?) FOR SHARE";
 
         try (Connection conn = Database.getConnection()) {
             conn.setAutoCommit(false);
 
             try (PreparedStatement deleteStmt = conn.prepareStatement(deleteOldDeck);
-                 PreparedStatement insertStmt = conn.prepareStatement(insertDeckCard);
-                 PreparedStatement checkStmt = conn.prepareStatement(checkOwnership)) {
-
-                for (String cardId : cardIds) {
-                    checkStmt.setString(1, username);
-                    checkStmt.setObject(2, UUID.fromString(cardId));
-                    ResultSet rs = checkStmt.executeQuery();
-                    if (rs.next()) {
-                        int count = rs.getInt(1);
-                        if (count == 0) {
-                            conn.rollback();
-                            return false;
-                        }
-                    } else {
-                        conn.rollback();
-                        return false;
-                    }
-                }
+                 PreparedStatement insertStmt = conn.prepareStatement(insertOwnedCards)) {
 
                 deleteStmt.setString(1, username);
                 deleteStmt.executeUpdate();
 
-                for (String cardId : cardIds) {
-                    insertStmt.setString(1, username);
-                    insertStmt.setObject(2, UUID.fromString(cardId));
-                    insertStmt.executeUpdate();
+                insertStmt.setString(1, username);
+                insertStmt.setArray(2, conn.createArrayOf("uuid", ids));
+                if (insertStmt.executeUpdate() != deckSize) {
+                    // Mindestens eine Karte gehört nicht dem Benutzer
+                    conn.rollback();
+                    return false;
                 }
 
                 conn.commit();
@@ -204,15 +286,14 @@ public class UserDatabase {
 
             } catch (SQLException e) {
                 conn.rollback();
-                e.printStackTrace();
+                AsyncLog.error("UserDatabase.setUserDeck", e);
                 return false;
 
             } finally {
                 conn.setAutoCommit(true);
             }
-
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.setUserDeck", e);
             return false;
         }
     }
@@ -228,12 +309,34 @@ public class UserDatabase {
             return rowsAffected == 1;
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.updateToken", e);
             return false;
+        } finally {
+            // Der alte Token darf nicht mehr aus dem Cache aufgelöst werden
+            TOKENS.invalidate(username);
         }
     }
 
     public static String getUsernameByToken(String token) {
+        Principal principal = getPrincipalByToken(token);
+        return (principal != null) ? principal.getUsername() : null;
+    }
+
+    /**
+     * Löst einen Token zum Benutzer auf, zuerst über den {@link TokenCache}, sonst über die Datenbank.
+     *
+     * @param token Der Token aus dem Authorization-Header
+     * @return Benutzer samt Admin-Flag, oder null bei einem unbekannten Token
+     */
+    public static Principal getPrincipalByToken(String token) {
+        if (token == null) {
+            return null;
+        }
+        Principal cached = TOKENS.get(token);
+        if (cached != null) {
+            return cached;
+        }
+        long version = TOKENS.version();
         String query = "SELECT username FROM users WHERE token = ?";
         try (Connection conn = Database.getConnection();
              PreparedStatement stmt = conn.prepareStatement(query)) {
@@ -241,17 +344,27 @@ public class UserDatabase {
             stmt.setString(1, token);
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
-                return rs.getString("username");
+                String username = rs.getString("username");
+                Principal principal = new Principal(username, ADMIN_USERNAME.equals(username));
+                TOKENS.put(token, principal, version);
+                return principal;
             } else {
                 return null;
             }
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.getPrincipalByToken", e);
             return null;
         }
     }
 
+    /**
+     * Cache für {@link #getPrincipalByToken(String)} (Größe und Treffer für /metrics).
+     */
+    public static TokenCache tokenCache() {
+        return TOKENS;
+    }
+
     public static int getUserCoins(String username) {
         String query = "SELECT coins FROM users WHERE username = ?";
         try (Connection conn = Database.getConnection();
@@ -266,7 +379,7 @@ public class UserDatabase {
             }
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.getUserCoins", e);
             return -1;
         }
     }
@@ -282,7 +395,7 @@ public class UserDatabase {
             return rowsAffected == 1;
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.updateUserCoins", e);
             return false;
         }
     }
@@ -290,35 +403,40 @@ public class UserDatabase {
     public static int getUserElo(String username) {
         String query = "SELECT elo FROM users WHERE username = ?";
         try (Connection conn = Database.getConnection();
+             StatsAggregator.ReadScope stats = STATS.beginRead();
              PreparedStatement stmt = conn.prepareStatement(query)) {
 
             stmt.setString(1, username);
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
-                return rs.getInt("elo");
+                return stats.pendingDelta(username).applyTo(rs.getInt("elo"));
             } else {
                 return 100;
             }
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.getUserElo", e);
             return 100;
         }
     }
 
     public static boolean updateUserElo(String username, int eloChange) {
         String updateElo = "UPDATE users SET elo = GREATEST(0, elo + ?) WHERE username = ?";
+        LEADERBOARD_LOCK.lock();
         try (Connection conn = Database.getConnection();
              PreparedStatement stmt = conn.prepareStatement(updateElo)) {
 
             stmt.setInt(1, eloChange);
             stmt.setString(2, username);
             int rowsAffected = stmt.executeUpdate();
+            LEADERBOARD.adjust(username, eloChange, 0);
             return rowsAffected == 1;
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.updateUserElo", e);
             return false;
+        } finally {
+            LEADERBOARD_LOCK.unlock();
         }
     }
 
@@ -352,14 +470,14 @@ public class UserDatabase {
 
             } catch (SQLException e) {
                 conn.rollback();
-                e.printStackTrace();
+                AsyncLog.error("UserDatabase.transferCard", e);
                 return false;
             } finally {
                 conn.setAutoCommit(true);
             }
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.transferCard", e);
             return false;
         }
     }
@@ -367,6 +485,7 @@ public class UserDatabase {
     public static User getUser(String username) {
         String query = "SELECT username, coins, elo, bio, image, games_played, booster_card_id FROM users WHERE username = ?";
         try (Connection conn = Database.getConnection();
+             StatsAggregator.ReadScope stats = STATS.beginRead();
              PreparedStatement stmt = conn.prepareStatement(query)) {
 
             stmt.setString(1, username);
@@ -379,17 +498,28 @@ public class UserDatabase {
                 String image = rs.getString("image");
                 int gamesPlayed = rs.getInt("games_played");
                 String boosterCardId = rs.getString("booster_card_id");
-                return new User(uname, coins, elo, bio, image, gamesPlayed, boosterCardId);
+                User user = new User(uname, coins, elo, bio, image, gamesPlayed, boosterCardId);
+                applyPendingStats(stats, user);
+                return user;
             } else {
                 return null;
             }
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.getUser", e);
             return null;
         }
     }
 
+    /**
+     * Rechnet noch nicht geschriebene ELO-Änderungen und Spiele ein.
+     */
+    private static void applyPendingStats(StatsAggregator.ReadScope stats, User user) {
+        StatsAggregator.Delta delta = stats.pendingDelta(user.getUsername());
+        user.setElo(delta.applyTo(user.getElo()));
+        user.setGamesPlayed(user.getGamesPlayed() + delta.getGamesPlayed());
+    }
+
     public static boolean updateUserProfile(String username, String bio, String image) {
         String updateProfile = "UPDATE users SET bio = ?, image = ? WHERE username = ?";
         try (Connection conn = Database.getConnection();
@@ -402,7 +532,7 @@ public class UserDatabase {
             return rowsAffected == 1;
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.updateUserProfile", e);
             return false;
         }
     }
@@ -418,7 +548,7 @@ public class UserDatabase {
             return rowsAffected == 1;
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.updateUserPassword", e);
             return false;
         }
     }
@@ -433,7 +563,7 @@ public class UserDatabase {
             stmt.executeUpdate();
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.addCardToUser", e);
         }
     }
 
@@ -447,35 +577,15 @@ public class UserDatabase {
             stmt.executeUpdate();
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.removeCardFromUser", e);
         }
     }
 
     public static Card getCardById(String cardId) {
-        String query = "SELECT * FROM cards WHERE id = ?";
-        try (Connection conn = Database.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query)) {
-
-            stmt.setObject(1, UUID.fromString(cardId));
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                String id = rs.getString("id");
-                String name = rs.getString("name");
-                double damage = rs.getDouble("damage");
-                String type = rs.getString("type");
-                String element = rs.getString("element");
-
-                if ("Monster".equalsIgnoreCase(type)) {
-                    return new MonsterCard(id, name, damage, element);
-                } else {
-                    return new SpellCard(id, name, damage, element);
-                }
-            } else {
-                return null;
-            }
-
+        try {
+            return CardCatalog.get(cardId);
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.getCardById", e);
             return null;
         }
     }
@@ -495,7 +605,7 @@ public class UserDatabase {
             }
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.isCardOwnedByUser", e);
             return false;
         }
     }
@@ -515,8 +625,51 @@ public class UserDatabase {
             }
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.isCardInDeck", e);
+            return false;
+        }
+    }
+
+    /**
+     * Rangliste aller Benutzer; wird beim ersten Zugriff (bzw. beim Start über {@link #loadLeaderboard()})
+     * aus der Datenbank aufgebaut und danach im Speicher aktualisiert.
+     */
+    public static Leaderboard leaderboard() {
+        if (!leaderboardLoaded) {
+            loadLeaderboard();
+        }
+        return LEADERBOARD;
+    }
+
+    /**
+     * Baut die Rangliste aus der Datenbank neu auf, inklusive noch nicht geschriebener ELO-Änderungen.
+     *
+     * @return true, wenn die Benutzer geladen werden konnten
+     */
+    public static boolean loadLeaderboard() {
+        String query = "SELECT username, elo, games_played FROM users";
+        LEADERBOARD_LOCK.lock();
+        try (Connection conn = Database.getConnection();
+             StatsAggregator.ReadScope stats = STATS.beginRead();
+             PreparedStatement stmt = conn.prepareStatement(query);
+             ResultSet rs = stmt.executeQuery()) {
+
+            List<Leaderboard.Entry> users = new ArrayList<>();
+            while (rs.next()) {
+                String username = rs.getString("username");
+                StatsAggregator.Delta delta = stats.pendingDelta(username);
+                users.add(new Leaderboard.Entry(0, username, delta.applyTo(rs.getInt("elo")),
+                        rs.getInt("games_played") + delta.getGamesPlayed()));
+            }
+            LEADERBOARD.reset(users);
+            leaderboardLoaded = true;
+            return true;
+
+        } catch (SQLException e) {
+            AsyncLog.error("UserDatabase.loadLeaderboard", e);
             return false;
+        } finally {
+            LEADERBOARD_LOCK.unlock();
         }
     }
 
@@ -524,6 +677,7 @@ public class UserDatabase {
         String query = "SELECT username, coins, elo, bio, image, booster_card_id FROM users ORDER BY elo DESC";
         List<User> users = new ArrayList<>();
         try (Connection conn = Database.getConnection();
+             StatsAggregator.ReadScope stats = STATS.beginRead();
              PreparedStatement stmt = conn.prepareStatement(query);
              ResultSet rs = stmt.executeQuery()) {
 
@@ -536,28 +690,138 @@ public class UserDatabase {
                 String boosterCardId = rs.getString("booster_card_id");
                 User u = new User(username, coins, elo, bio, image, 0, boosterCardId);
                 // gamesPlayed not retrieved here, default 0 is okay for scoreboard display
+                u.setElo(stats.pendingDelta(username).applyTo(elo));
                 users.add(u);
             }
+            // Noch nicht geschriebene ELO-Änderungen können die Reihenfolge ändern
+            users.sort(Comparator.comparingInt(User::getElo).reversed());
             return users;
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.getAllUsersSortedByElo", e);
             return users;
         }
     }
 
+    /**
+     * Speichert das Ergebnis eines Battles: die Kartenübertragungen in einer Transaktion, danach ELO
+     * (Sieger +3, Verlierer -5) und gespielte Spiele beider Spieler über den {@link StatsAggregator}.
+     * Schlägt die Transaktion fehl, wird auch das Battle nicht gezählt.
+     *
+     * @param isWin     false bei Unentschieden (dann nur gespielte Spiele)
+     * @param transfers Karten, die am Ende des Battles den Besitzer gewechselt haben
+     * @return true, wenn das Ergebnis gespeichert wurde
+     */
+    public static boolean recordBattleResult(String winner, String loser, boolean isWin,
+                                             List<Battle.CardTransfer> transfers) {
+        if (!transfers.isEmpty() && !transferCards(transfers)) {
+            return false;
+        }
+        LEADERBOARD_LOCK.lock();
+        try {
+            STATS.add(winner, isWin ? 3 : 0, 1);
+            STATS.add(loser, isWin ? -5 : 0, 1);
+            LEADERBOARD.adjust(winner, isWin ? 3 : 0, 1);
+            LEADERBOARD.adjust(loser, isWin ? -5 : 0, 1);
+        } finally {
+            LEADERBOARD_LOCK.unlock();
+        }
+        return true;
+    }
+
+    private static boolean transferCards(List<Battle.CardTransfer> transfers) {
+        String moveCard = "UPDATE user_cards SET username = ? WHERE username = ? AND card_id = ?";
+        try (Connection conn = Database.getConnection()) {
+            conn.setAutoCommit(false);
+
+            try (PreparedStatement moveStmt = conn.prepareStatement(moveCard)) {
+                for (Battle.CardTransfer transfer : transfers) {
+                    moveStmt.setString(1, transfer.getToUser());
+                    moveStmt.setString(2, transfer.getFromUser());
+                    moveStmt.setObject(3, UUID.fromString(transfer.getCardId()));
+                    moveStmt.addBatch();
+                }
+                // Hat der Verlierer eine Karte während des Battles abgegeben (z.B. getauscht), gilt das ganze Ergebnis nicht
+                for (int count : moveStmt.executeBatch()) {
+                    if (count != 1) {
+                        conn.rollback();
+                        return false;
+                    }
+                }
+
+                conn.commit();
+                return true;
+
+            } catch (SQLException e) {
+                conn.rollback();
+                AsyncLog.error("UserDatabase.transferCards", e);
+                return false;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            AsyncLog.error("UserDatabase.transferCards", e);
+            return false;
+        }
+    }
+
+    /**
+     * Schreibt gesammelte ELO-Änderungen und Spiele aller Benutzer mit einem UPDATE (für den {@link StatsAggregator}).
+     */
+    private static void writeStats(Map<String, StatsAggregator.Delta> deltas,
+                                   StatsAggregator.CommitStep commitStep) throws SQLException {
+        // Wie Delta.applyTo: ergibt dasselbe, als wäre nach jedem Battle auf 0 begrenzt worden
+        String updateStats = "UPDATE users u SET elo = GREATEST(v.min_elo, u.elo + v.elo_delta), "
+                + "games_played = u.games_played + v.games "
+                + "FROM unnest(?::text[], ?::int[], ?::int[], ?::int[]) AS v(username, elo_delta, games, min_elo) "
+                + "WHERE u.username = v.username";
+        String[] usernames = new String[deltas.size()];
+        Integer[] eloDeltas = new Integer[deltas.size()];
+        Integer[] games = new Integer[deltas.size()];
+        Integer[] minElos = new Integer[deltas.size()];
+        int i = 0;
+        for (Map.Entry<String, StatsAggregator.Delta> entry : deltas.entrySet()) {
+            usernames[i] = entry.getKey();
+            eloDeltas[i] = entry.getValue().getElo();
+            games[i] = entry.getValue().getGamesPlayed();
+            minElos[i] = entry.getValue().getMinElo();
+            i++;
+        }
+
+        try (Connection conn = Database.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(updateStats)) {
+                stmt.setArray(1, conn.createArrayOf("text", usernames));
+                stmt.setArray(2, conn.createArrayOf("integer", eloDeltas));
+                stmt.setArray(3, conn.createArrayOf("integer", games));
+                stmt.setArray(4, conn.createArrayOf("integer", minElos));
+                stmt.executeUpdate();
+                commitStep.commit(conn::commit);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
     public static boolean incrementGamesPlayed(String username) {
         String updateGames = "UPDATE users SET games_played = games_played + 1 WHERE username = ?";
+        LEADERBOARD_LOCK.lock();
         try (Connection conn = Database.getConnection();
              PreparedStatement stmt = conn.prepareStatement(updateGames)) {
 
             stmt.setString(1, username);
             int rowsAffected = stmt.executeUpdate();
+            LEADERBOARD.adjust(username, 0, 1);
             return rowsAffected == 1;
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.incrementGamesPlayed", e);
             return false;
+        } finally {
+            LEADERBOARD_LOCK.unlock();
         }
     }
 
@@ -576,7 +840,7 @@ public class UserDatabase {
             }
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.isCardInStack", e);
             return false;
         }
     }
@@ -595,7 +859,7 @@ public class UserDatabase {
             int rowsAffected = stmt.executeUpdate();
             return rowsAffected == 1;
         } catch (SQLException e) {
-            e.printStackTrace();
+            AsyncLog.error("UserDatabase.updateUserBoosterCard", e);
             return false;
         }
     }
@@ -0,0 +1,55 @@
+-- Tables the DB classes work with. IF NOT EXISTS, so databases that were set up by hand
+-- before schema versioning existed are taken over as they are.
+
+CREATE TABLE IF NOT EXISTS users (
+    username        TEXT PRIMARY KEY,
+    password        TEXT NOT NULL,
+    token           TEXT,
+    coins           INTEGER NOT NULL DEFAULT 20,
+    elo             INTEGER NOT NULL DEFAULT 100,
+    games_played    INTEGER NOT NULL DEFAULT 0,
+    bio             TEXT,
+    image           TEXT,
+    booster_card_id UUID
+);
+
+CREATE TABLE IF NOT EXISTS cards (
+    id      UUID PRIMARY KEY,
+    name    TEXT NOT NULL,
+    damage  DOUBLE PRECISION NOT NULL,
+    type    TEXT NOT NULL,
+    element TEXT
+);
+
+CREATE TABLE IF NOT EXISTS packages (
+    id SERIAL PRIMARY KEY
+);
+
+CREATE TABLE IF NOT EXISTS package_cards (
+    package_id INTEGER NOT NULL REFERENCES packages (id) ON DELETE CASCADE,
+    card_id    UUID NOT NULL REFERENCES cards (id)
+);
+
+CREATE TABLE IF NOT EXISTS acquired_packages (
+    username   TEXT NOT NULL REFERENCES users (username) ON DELETE CASCADE,
+    package_id INTEGER NOT NULL REFERENCES packages (id)
+);
+
+CREATE TABLE IF NOT EXISTS user_cards (
+    username TEXT NOT NULL REFERENCES users (username) ON DELETE CASCADE,
+    card_id  UUID NOT NULL REFERENCES cards (id)
+);
+
+CREATE TABLE IF NOT EXISTS decks (
+    username TEXT NOT NULL REFERENCES users (username) ON DELETE CASCADE,
+    card_id  UUID NOT NULL REFERENCES cards (id)
+);
+
+CREATE TABLE IF NOT EXISTS trading_deals (
+    id               UUID PRIMARY KEY,
+    owner            TEXT NOT NULL REFERENCES users (username) ON DELETE CASCADE,
+    card_to_trade    UUID NOT NULL REFERENCES cards (id),
+    required_type    TEXT,
+    required_element TEXT,
+    minimum_damage   DOUBLE PRECISION
+);
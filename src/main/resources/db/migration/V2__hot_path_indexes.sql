@@ -0,0 +1,41 @@
+-- Indexes behind the lookups that run on (almost) every request. The unique ones are also the
+-- constraints the code relies on: a card has one owner, a package is sold once.
+
+-- Before versioning, PUT /deck accepted a repeated card id and nothing stopped a card or package
+-- from being stored twice. The unique indexes below would fail on such rows, so they are removed
+-- first; of each group of equal rows, the oldest (lowest ctid) is kept.
+
+-- The same card twice in one user's stack
+DELETE FROM user_cards a USING user_cards b
+WHERE a.username = b.username AND a.card_id = b.card_id AND a.ctid > b.ctid;
+
+-- A card with several owners stays with the first one; the others also lose it from their deck
+DELETE FROM decks d USING user_cards a, user_cards b
+WHERE a.card_id = b.card_id AND a.ctid > b.ctid AND d.username = a.username AND d.card_id = a.card_id;
+DELETE FROM user_cards a USING user_cards b
+WHERE a.card_id = b.card_id AND a.ctid > b.ctid;
+
+-- The same card twice in one deck
+DELETE FROM decks a USING decks b
+WHERE a.username = b.username AND a.card_id = b.card_id AND a.ctid > b.ctid;
+
+-- A package sold twice counts as sold to the first buyer
+DELETE FROM acquired_packages a USING acquired_packages b
+WHERE a.package_id = b.package_id AND a.ctid > b.ctid;
+
+-- Token -> user, for every authenticated request
+CREATE INDEX IF NOT EXISTS users_token_idx ON users (token) WHERE token IS NOT NULL;
+
+-- Ownership checks, stack listing and keyset pages of GET /cards
+CREATE UNIQUE INDEX IF NOT EXISTS user_cards_card_id_key ON user_cards (card_id);
+CREATE INDEX IF NOT EXISTS user_cards_username_card_id_idx ON user_cards (username, card_id);
+
+-- Deck of a user (battles, GET /deck, PUT /deck)
+CREATE UNIQUE INDEX IF NOT EXISTS decks_username_card_id_key ON decks (username, card_id);
+
+-- Package purchase: "is this package sold?" and copying its cards
+CREATE UNIQUE INDEX IF NOT EXISTS acquired_packages_package_id_key ON acquired_packages (package_id);
+CREATE INDEX IF NOT EXISTS package_cards_package_id_idx ON package_cards (package_id);
+
+-- Deals of a user, e.g. when the user is deleted
+CREATE INDEX IF NOT EXISTS trading_deals_owner_idx ON trading_deals (owner);
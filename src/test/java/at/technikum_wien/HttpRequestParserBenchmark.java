@@ -0,0 +1,98 @@
+package at.technikum_wien;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the old BufferedReader/String.split request parsing with {@link HttpRequestParser}.
+ * Run with {@code mvn test-compile} and then the main method (or {@code org.openjdk.jmh.Main}); the
+ * GC profiler reports the allocated bytes per request as {@code gc.alloc.rate.norm}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpRequestParserBenchmark {
+    private static final String BODY = "{\"Id\": \"6cd85277-4590-49d4-b0cf-ba0a921faad0\", \"CardToTrade\": " +
+            "\"1cb6ab86-bdb2-47e5-b6e4-68c5ab389334\", \"Type\": \"monster\", \"MinimumDamage\": 15}";
+    private static final byte[] REQUEST = ("POST /tradings HTTP/1.1\r\n" +
+            "Host: localhost:10001\r\n" +
+            "User-Agent: curl/8.4.0\r\n" +
+            "Accept: */*\r\n" +
+            "Content-Type: application/json\r\n" +
+            "Authorization: Bearer kienboec-mtcgToken\r\n" +
+            "Content-Length: " + BODY.length() + "\r\n" +
+            "\r\n" + BODY).getBytes(StandardCharsets.UTF_8);
+
+    private final HttpRequestParser parser = new HttpRequestParser(16 * 1024, 1024 * 1024);
+    private final HttpRequest request = new HttpRequest();
+    private final ByteBuffer buffer = ByteBuffer.wrap(REQUEST);
+
+    @Benchmark
+    public void legacyReaderParse(Blackhole blackhole) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(REQUEST)));
+        String requestLine = reader.readLine();
+        Map<String, String> headers = new HashMap<>();
+        String headerLine;
+        while ((headerLine = reader.readLine()) != null && !headerLine.isEmpty()) {
+            String[] headerParts = headerLine.split(": ", 2);
+            if (headerParts.length == 2) {
+                headers.put(headerParts[0], headerParts[1]);
+            }
+        }
+        String body = "";
+        if (headers.containsKey("Content-Length")) {
+            int contentLength = Integer.parseInt(headers.get("Content-Length"));
+            char[] bodyChars = new char[contentLength];
+            int read = reader.read(bodyChars, 0, contentLength);
+            if (read != -1) {
+                body = new String(bodyChars, 0, read);
+            }
+        }
+        String[] requestParts = requestLine.split(" ");
+        blackhole.consume(requestParts[0]);
+        blackhole.consume(requestParts[1]);
+        blackhole.consume(headers.get("Authorization"));
+        blackhole.consume(body);
+    }
+
+    @Benchmark
+    public void byteBufferParse(Blackhole blackhole) throws IOException {
+        parser.parseHead(buffer, 0, REQUEST.length, request);
+        blackhole.consume(request.method());
+        blackhole.consume(request.path());
+        blackhole.consume(request.header("Authorization"));
+        blackhole.consume(request.bodyAsString());
+    }
+
+    @Benchmark
+    public void byteBufferParseHeadOnly(Blackhole blackhole) throws IOException {
+        blackhole.consume(parser.parseHead(buffer, 0, REQUEST.length, request));
+        blackhole.consume(request.method());
+        blackhole.consume(request.headerEqualsIgnoreCase("Connection", "close"));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(HttpRequestParserBenchmark.class.getSimpleName())
+                .addProfiler("gc")
+                .build();
+        new Runner(options).run();
+    }
+}
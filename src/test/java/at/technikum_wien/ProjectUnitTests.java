@@ -8,6 +8,8 @@ import org.junit.jupiter.api.*;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -19,7 +21,7 @@ public class ProjectUnitTests {
     @DisplayName("A) Player hasCards: returns false when deck is empty")
     void testPlayerHasNoCardsWhenEmpty() {
         List<Card> emptyDeck = new ArrayList<>();
-        Player player = new Player("EmptyDeckPlayer", emptyDeck, null, new Object());
+        Player player = new Player("EmptyDeckPlayer", emptyDeck, null);
         assertFalse(player.hasCards(), "Player should have zero cards, so hasCards() should be false");
     }
 
@@ -28,7 +30,7 @@ public class ProjectUnitTests {
     void testPlayerHasCardsWhenNotEmpty() {
         List<Card> deck = new ArrayList<>();
         deck.add(new MonsterCard("id1", "Monster1", 10.0, "fire"));
-        Player player = new Player("NonEmptyDeckPlayer", deck, null, new Object());
+        Player player = new Player("NonEmptyDeckPlayer", deck, null);
         assertTrue(player.hasCards(), "Player deck has 1 card, so hasCards() should be true");
     }
 
@@ -171,7 +173,7 @@ public class ProjectUnitTests {
     @DisplayName("18) Player isBoosterCard: returns true if IDs match and not used yet")
     void testPlayerIsBoosterCardTrue() {
         Card c = new MonsterCard("id1", "BoosterMonster", 50, "normal");
-        Player p = new Player("Alice", new ArrayList<>(), null, new Object(), "id1");
+        Player p = new Player("Alice", new ArrayList<>(), null, "id1");
         assertTrue(p.isBoosterCard(c));
     }
 
@@ -179,7 +181,7 @@ public class ProjectUnitTests {
     @DisplayName("19) Player isBoosterCard: returns false if boosterUsed is already true")
     void testPlayerIsBoosterCardAlreadyUsed() {
         Card c = new MonsterCard("id1", "BoosterMonster", 50, "normal");
-        Player p = new Player("Alice", new ArrayList<>(), null, new Object(), "id1");
+        Player p = new Player("Alice", new ArrayList<>(), null, "id1");
         p.markBoosterUsed(); // booster is now used
         assertFalse(p.isBoosterCard(c));
     }
@@ -189,7 +191,7 @@ public class ProjectUnitTests {
     void testPlayerConstructor() {
         List<Card> deck = new ArrayList<>();
         deck.add(new MonsterCard("id1", "Monster1", 10, "fire"));
-        Player p = new Player("Bob", deck, null, new Object());
+        Player p = new Player("Bob", deck, null);
         assertEquals("Bob", p.getUsername());
         assertTrue(p.hasCards());
     }
@@ -198,8 +200,8 @@ public class ProjectUnitTests {
     @Test
     @DisplayName("24) Battle constructor sets players properly")
     void testBattleConstructor() {
-        Player p1 = new Player("Alice", new ArrayList<>(), null, new Object());
-        Player p2 = new Player("Bob", new ArrayList<>(), null, new Object());
+        Player p1 = new Player("Alice", new ArrayList<>(), null);
+        Player p2 = new Player("Bob", new ArrayList<>(), null);
         Battle b = new Battle(p1, p2);
         // There's no direct getter, but we can check that no exception was thrown
         assertNotNull(b);
@@ -215,4 +217,1557 @@ public class ProjectUnitTests {
         assertEquals("Spell", card.getType());
         assertEquals("water", card.getElementType());
     }
+
+    @Test
+    @DisplayName("26) HttpRequestParser: parses method, path, headers and a multi-byte UTF-8 body by byte length")
+    void testHttpRequestParser() throws IOException {
+        String body = "{\"Bio\":\"Grüße\"}";
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = ("PUT /users/kienboec?x=1 HTTP/1.1\r\nauthorization:  Bearer t \r\n" +
+                "Content-Length: " + bodyBytes.length + "\r\n\r\n" + body).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        HttpRequestParser parser = new HttpRequestParser(1024, 1024);
+        HttpRequest request = new HttpRequest();
+
+        assertFalse(parser.parseHead(buffer, 0, 20, request));
+        assertTrue(parser.parseHead(buffer, 0, bytes.length, request));
+        assertTrue(HttpRequestParser.isComplete(request, bytes.length));
+        assertFalse(HttpRequestParser.isComplete(request, bytes.length - 1));
+        assertEquals("PUT", request.method());
+        assertEquals("/users/kienboec", request.path());
+        assertEquals("x=1", request.query());
+        assertEquals("Bearer t", request.header("Authorization"));
+        assertEquals(bytes.length, request.length());
+        assertEquals(body, request.bodyAsString());
+        assertEquals(body, request.copy().bodyAsString());
+    }
+
+    @Test
+    @DisplayName("27) Player finishBattle releases a virtual thread waiting for the battle result")
+    void testPlayerFinishBattleReleasesWaiter() throws InterruptedException {
+        Player p = new Player("Alice", new ArrayList<>(), null);
+        Thread waiter = Thread.ofVirtual().start(() -> {
+            try {
+                p.awaitBattleFinished();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        p.finishBattle();
+        waiter.join(1000);
+        assertFalse(waiter.isAlive());
+    }
+
+    @Test
+    @DisplayName("28) ClientHandler keep-alive: HTTP/1.1 persistent by default, HTTP/1.0 only on request")
+    void testKeepAliveNegotiation() {
+        assertTrue(ClientHandler.isKeepAliveRequested("HTTP/1.1", null));
+        assertFalse(ClientHandler.isKeepAliveRequested("HTTP/1.1", "close"));
+        assertFalse(ClientHandler.isKeepAliveRequested("HTTP/1.0", null));
+        assertTrue(ClientHandler.isKeepAliveRequested("HTTP/1.0", "Keep-Alive"));
+    }
+
+    @Test
+    @DisplayName("29) Router: static segments win over parameters, parameters are extracted without regex")
+    void testRouterMatching() {
+        Router<String> router = new Router<String>()
+                .add("GET", "/", "root")
+                .add("GET", "/users/{username}", "getUser")
+                .add("PUT", "/users/{username}/booster", "booster")
+                .add("GET", "/users/admin", "adminPage");
+
+        assertEquals("root", router.match("GET", "/").handler());
+        Router.Match<String> match = router.match("PUT", "/users/kienboec/booster");
+        assertEquals("booster", match.handler());
+        assertEquals("kienboec", match.param("username"));
+        assertEquals("/users/{username}/booster", match.template());
+        assertEquals("adminPage", router.match("GET", "/users/admin").handler());
+        assertEquals("altenhof", router.match("GET", "/users/altenhof").param("username"));
+        assertNull(router.match("GET", "/users/kienboec/booster"));
+        assertNull(router.match("GET", "/users/"));
+        assertNull(router.match("DELETE", "/users/kienboec"));
+    }
+
+    @Test
+    @DisplayName("30) HttpResponse: JSON is streamed with the same output as ObjectMapper and a byte-exact Content-Length")
+    void testHttpResponseStreamsJson() throws IOException {
+        List<Card> cards = new ArrayList<>();
+        cards.add(new MonsterCard("c1", "Drachenfeuer", 50.0, "fire"));
+        ResponseBuffer output = new ResponseBuffer(64);
+        HttpResponse response = new HttpResponse(output);
+        response.setKeepAlive(true);
+        response.sendJson(200, JsonCodec.CARD_LIST_WRITER, cards);
+
+        String expectedBody = new com.fasterxml.jackson.databind.ObjectMapper().writeValueAsString(cards);
+        byte[] bodyBytes = expectedBody.getBytes(StandardCharsets.UTF_8);
+        String raw = output.toString(StandardCharsets.UTF_8);
+        assertTrue(raw.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(raw.contains("Connection: keep-alive\r\n"));
+        assertTrue(raw.contains("Content-Length: " + bodyBytes.length + "\r\n"));
+        assertTrue(raw.endsWith("\r\n\r\n" + expectedBody));
+    }
+
+    @Test
+    @DisplayName("31) ResponseCompressor: Accept-Encoding negotiation prefers gzip and honours q=0")
+    void testAcceptEncodingNegotiation() {
+        assertEquals("gzip", ResponseCompressor.negotiate("gzip, deflate, br"));
+        assertEquals("deflate", ResponseCompressor.negotiate("deflate"));
+        assertEquals("deflate", ResponseCompressor.negotiate("gzip;q=0, deflate"));
+        assertEquals("gzip", ResponseCompressor.negotiate("*"));
+        assertNull(ResponseCompressor.negotiate("br"));
+        assertNull(ResponseCompressor.negotiate("identity, *;q=0"));
+        assertNull(ResponseCompressor.negotiate(null));
+    }
+
+    @Test
+    @DisplayName("32) HttpResponse: large bodies are gzip compressed, small ones are sent as they are")
+    void testHttpResponseCompression() throws IOException {
+        String largeBody = "Unauthorized ".repeat(ServerConfig.COMPRESSION_MIN_BYTES);
+        ResponseBuffer output = new ResponseBuffer(64);
+        HttpResponse response = new HttpResponse(output);
+        response.setAcceptEncoding("gzip");
+        response.sendText(200, largeBody);
+
+        byte[] raw = output.toByteArray();
+        String head = new String(raw, StandardCharsets.ISO_8859_1);
+        int bodyStart = head.indexOf("\r\n\r\n") + 4;
+        assertTrue(head.substring(0, bodyStart).contains("Content-Encoding: gzip\r\n"));
+        assertTrue(head.substring(0, bodyStart).contains("Content-Length: " + (raw.length - bodyStart) + "\r\n"));
+        try (java.util.zip.GZIPInputStream in = new java.util.zip.GZIPInputStream(
+                new java.io.ByteArrayInputStream(raw, bodyStart, raw.length - bodyStart))) {
+            assertEquals(largeBody, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        output.reset();
+        response.sendText(401, "Unauthorized");
+        String small = output.toString(StandardCharsets.UTF_8);
+        assertFalse(small.contains("Content-Encoding"));
+        assertTrue(small.endsWith("\r\n\r\nUnauthorized"));
+    }
+
+    @Test
+    @DisplayName("33) AdmissionController: full budget rejects quickly, a released slot admits a waiter, battle budget per mode")
+    void testAdmissionBudget() throws InterruptedException {
+        AdmissionController.Budget noQueue = new AdmissionController.Budget(1, 0, 1000);
+        assertTrue(noQueue.tryAcquire());
+        assertFalse(noQueue.tryAcquire());
+        assertEquals(1, noQueue.rejected());
+
+        AdmissionController.Budget queued = new AdmissionController.Budget(1, 1, 5000);
+        assertTrue(queued.tryAcquire());
+        boolean[] admitted = new boolean[1];
+        Thread waiter = new Thread(() -> admitted[0] = queued.tryAcquire());
+        waiter.start();
+        while (queued.waiting() == 0) {
+            Thread.sleep(1);
+        }
+        queued.release();
+        waiter.join(1000);
+        assertTrue(admitted[0]);
+        assertEquals(1, queued.inFlight());
+
+        // nio: waiting battles leave at least half of the workers to cheap requests
+        assertEquals(16, ServerConfig.maxInFlightBattles("nio", 32));
+        assertEquals(1, ServerConfig.maxInFlightBattles("nio", 1));
+        assertEquals(ServerConfig.DEFAULT_MAX_IN_FLIGHT_BATTLES, ServerConfig.maxInFlightBattles("blocking", 32));
+        // virtual: thousands of players may wait for an opponent without a 503
+        AdmissionController.Budget battles = AdmissionController.forServerMode("virtual").battles();
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(battles.tryAcquire());
+        }
+        assertEquals(0, battles.rejected());
+    }
+
+    @Test
+    @DisplayName("34) HttpResponse: 503 carries Retry-After")
+    void testServiceUnavailableRetryAfter() throws IOException {
+        ResponseBuffer output = new ResponseBuffer(64);
+        new HttpResponse(output).sendServiceUnavailable(3);
+        String raw = output.toString(StandardCharsets.UTF_8);
+        assertTrue(raw.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+        assertTrue(raw.contains("Retry-After: 3\r\n"));
+        assertTrue(raw.contains("Connection: close\r\n"));
+    }
+
+    @Test
+    @DisplayName("35) AsyncLog: records are written by the background thread, a full buffer drops instead of blocking")
+    void testAsyncLogDropsWhenFull() throws InterruptedException {
+        StringWriter out = new StringWriter();
+        AsyncLog log = new AsyncLog(2, 1, out);
+        log.logAccess("GET", "/users/{username}", 200, 154, 912_000, 640_000);
+        log.logAccess("GET", "/deck", 401, 12, 1_000, 0);
+        log.logAccess("GET", "/cards", 200, 10, 1_000, 0);
+        assertEquals(1, log.dropped());
+
+        log.start();
+        log.close();
+        String written = out.toString();
+        assertTrue(written.contains("method=GET route=/users/{username} status=200 bytes=154 latency_us=912 db_us=640\n"));
+        assertTrue(written.contains("route=/deck status=401"));
+        assertFalse(written.contains("/cards"));
+    }
+
+    @Test
+    @DisplayName("36) Metrics.LatencyHistogram: log-linear buckets keep the relative error within 12.5%")
+    void testLatencyHistogram() {
+        for (long micros : new long[]{0, 7, 8, 100, 12_345, 3_000_000}) {
+            int index = Metrics.LatencyHistogram.bucketIndex(micros);
+            long upper = Metrics.LatencyHistogram.bucketUpperBound(index);
+            assertTrue(upper > micros);
+            assertTrue(upper - micros <= Math.max(1, micros / Metrics.LatencyHistogram.SUB_BUCKETS));
+        }
+        assertEquals(Metrics.LatencyHistogram.BUCKET_COUNT - 1, Metrics.LatencyHistogram.bucketIndex(Long.MAX_VALUE / 1000));
+
+        Metrics.LatencyHistogram histogram = new Metrics.LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1_000_000L);
+        }
+        assertEquals(100, histogram.count());
+        long p50 = histogram.percentile(0.5);
+        assertTrue(p50 >= 50_000_000 / 1000 && p50 <= 57_000_000 / 1000);
+    }
+
+    @Test
+    @DisplayName("37) Metrics: recorded requests appear in the Prometheus output")
+    void testMetricsPrometheusOutput() {
+        Metrics.recordRequest("GET", "/users/{username}", 200, 154, 2_000_000);
+        StringBuilder out = new StringBuilder();
+        Metrics.writePrometheus(out);
+        String text = out.toString();
+        assertTrue(text.contains("# TYPE mctg_request_duration_seconds histogram\n"));
+        assertTrue(text.contains("mctg_request_duration_seconds_count{method=\"GET\",route=\"/users/{username}\"} "));
+        assertTrue(text.contains("mctg_responses_total{status=\"200\"} "));
+        assertTrue(text.contains("mctg_battle_queue_depth 0\n"));
+    }
+
+    @Test
+    @DisplayName("38) ConnectionPool: connections are reused, reset and limited by the acquire timeout")
+    void testConnectionPool() throws Exception {
+        FakeDriver driver = new FakeDriver();
+        java.sql.DriverManager.registerDriver(driver);
+        try {
+            ConnectionPool pool = new ConnectionPool(FakeDriver.URL, "user", "", 0, 1, 100, 60_000, 0, 0, 0);
+            java.sql.Connection first = pool.getConnection();
+            first.setAutoCommit(false);
+            assertEquals(1, pool.active());
+            assertThrows(java.sql.SQLTransientConnectionException.class, pool::getConnection);
+
+            first.close();
+            assertTrue(first.isClosed());
+            assertThrows(java.sql.SQLException.class, first::commit);
+            assertEquals(1, pool.idle());
+
+            try (java.sql.Connection second = pool.getConnection()) {
+                assertTrue(second.getAutoCommit());
+            }
+            assertEquals(1, driver.opened);
+            assertEquals(1, driver.rollbacks);
+            assertEquals(1, pool.total());
+            pool.close();
+            assertEquals(0, pool.total());
+        } finally {
+            java.sql.DriverManager.deregisterDriver(driver);
+        }
+    }
+
+    @Test
+    @DisplayName("39) StatementCache: closed statements are reused per connection, LRU eviction beyond the limit")
+    void testStatementCache() throws Exception {
+        FakeDriver driver = new FakeDriver();
+        java.sql.DriverManager.registerDriver(driver);
+        try {
+            ConnectionPool pool = new ConnectionPool(FakeDriver.URL, "user", "", 0, 1, 100, 60_000, 0, 0, 2);
+            long hits = StatementCache.hits();
+            try (java.sql.Connection conn = pool.getConnection()) {
+                conn.prepareStatement("SELECT 1").close();
+            }
+            try (java.sql.Connection conn = pool.getConnection()) {
+                java.sql.PreparedStatement statement = conn.prepareStatement("SELECT 1");
+                // Same SQL while the cached statement is in use: separate, uncached statement
+                conn.prepareStatement("SELECT 1").close();
+                statement.close();
+                assertTrue(statement.isClosed());
+            }
+            assertEquals(2, driver.prepared);
+            assertEquals(hits + 1, StatementCache.hits());
+
+            long evictions = StatementCache.evictions();
+            try (java.sql.Connection conn = pool.getConnection()) {
+                conn.prepareStatement("SELECT 2").close();
+                conn.prepareStatement("SELECT 1").close();
+                // Evicts "SELECT 2", the least recently used statement
+                conn.prepareStatement("SELECT 3").close();
+                conn.prepareStatement("SELECT 1").close();
+            }
+            assertEquals(evictions + 1, StatementCache.evictions());
+            assertEquals(4, driver.prepared);
+
+            // Settings of a streaming read do not carry over to the next use of the same SQL
+            try (java.sql.Connection conn = pool.getConnection()) {
+                java.sql.PreparedStatement streaming = conn.prepareStatement("SELECT 1");
+                streaming.setFetchSize(500);
+                streaming.setMaxRows(10);
+                streaming.setQueryTimeout(5);
+                streaming.close();
+                try (java.sql.PreparedStatement plain = conn.prepareStatement("SELECT 1")) {
+                    assertEquals(0, plain.getFetchSize());
+                    assertEquals(0, plain.getMaxRows());
+                    assertEquals(0, plain.getQueryTimeout());
+                }
+            }
+            assertEquals(4, driver.prepared);
+            pool.close();
+        } finally {
+            java.sql.DriverManager.deregisterDriver(driver);
+        }
+    }
+
+    @Test
+    @DisplayName("40) TokenCache: hits until invalidated or expired, stale loads are not cached")
+    void testTokenCache() throws Exception {
+        TokenCache cache = new TokenCache(100, 60_000);
+        cache.put("alice-mtcgToken", new Principal("alice", false), cache.version());
+        assertEquals("alice", cache.get("alice-mtcgToken").getUsername());
+
+        // New login: the old token must not resolve any more
+        cache.invalidate("alice");
+        assertNull(cache.get("alice-mtcgToken"));
+
+        // A load that started before an invalidation is dropped
+        long version = cache.version();
+        cache.invalidate("bob");
+        cache.put("bob-mtcgToken", new Principal("bob", false), version);
+        assertNull(cache.get("bob-mtcgToken"));
+
+        // Caching a new token of the same user replaces the old one
+        cache.put("admin-old", new Principal("admin", true), cache.version());
+        cache.put("admin-mtcgToken", new Principal("admin", true), cache.version());
+        assertNull(cache.get("admin-old"));
+        assertTrue(cache.get("admin-mtcgToken").isAdmin());
+
+        TokenCache expiring = new TokenCache(100, 1);
+        expiring.put("carol-mtcgToken", new Principal("carol", false), expiring.version());
+        Thread.sleep(5);
+        assertNull(expiring.get("carol-mtcgToken"));
+
+        TokenCache small = new TokenCache(8, 60_000);
+        for (int i = 0; i < 50; i++) {
+            small.put("user" + i + "-mtcgToken", new Principal("user" + i, false), small.version());
+        }
+        assertTrue(small.size() <= 8);
+    }
+
+    @Test
+    @DisplayName("41) CardCatalog: created cards are shared instances, resolved in query order")
+    void testCardCatalog() throws Exception {
+        CardCatalog.clear();
+        Card goblin = new MonsterCard("845f0dc7-37d0-426e-994e-43fc3ac83c08", "WaterGoblin", 10.0, "Water");
+        Card spell = new SpellCard("99f8f8dc-e25e-4a95-aa2c-782823f36e2a", "FireSpell", 25.0, "Fire");
+        Card upper = new SpellCard("E85E3976-7C86-4D06-9A80-641C2019A79F", "RegularSpell", 20.0, "Normal");
+        CardCatalog.register(List.of(goblin, spell, upper));
+
+        // Everything is cached, so no connection is needed
+        List<Card> stack = CardCatalog.resolve(null, List.of(spell.getId(), goblin.getId(), spell.getId()));
+        assertEquals(3, stack.size());
+        assertSame(spell, stack.get(0));
+        assertSame(goblin, stack.get(1));
+        assertSame(spell, stack.get(2));
+        assertSame(goblin, CardCatalog.get("845F0DC7-37D0-426E-994E-43FC3AC83C08"));
+
+        // Not in PostgreSQL's notation, so left to be loaded from the database
+        assertEquals(2, CardCatalog.size());
+        CardCatalog.clear();
+    }
+
+    @Test
+    @DisplayName("42) Bulk packages: JSON array and NDJSON parse to the same packages, chunk results as JSON")
+    void testBulkPackageFormats() throws Exception {
+        String card = "{\"type\":\"Monster\",\"id\":\"%s\",\"name\":\"WaterGoblin\",\"damage\":10.0,\"elementType\":\"Water\"}";
+        String first = "[" + String.format(card, "845f0dc7-37d0-426e-994e-43fc3ac83c08") + "]";
+        String second = "[" + String.format(card, "99f8f8dc-e25e-4a95-aa2c-782823f36e2a") + "]";
+
+        List<List<Card>> fromArray = JsonCodec.PACKAGE_LIST_READER.readValue("[" + first + "," + second + "]");
+        List<List<Card>> fromNdjson = JsonCodec.readNdjson(JsonCodec.CARD_LIST_READER,
+                (first + "\n" + second + "\n").getBytes(StandardCharsets.UTF_8));
+        assertEquals(2, fromArray.size());
+        assertEquals(2, fromNdjson.size());
+        assertEquals(fromArray.get(1).get(0).getId(), fromNdjson.get(1).get(0).getId());
+        assertTrue(fromNdjson.get(0).get(0) instanceof MonsterCard);
+
+        PackageDatabase.ChunkResult result = new PackageDatabase.ChunkResult(1, 500, 250);
+        String json = JsonCodec.CHUNK_RESULT_LIST_WRITER.writeValueAsString(List.of(result));
+        assertEquals("[{\"chunk\":1,\"firstPackage\":500,\"packages\":250,\"created\":false,\"error\":null}]", json);
+    }
+
+    @Test
+    @DisplayName("43) PackageQueue: concurrent buyers sell every package once, refills continue after the last id")
+    void testPackageQueue() throws Exception {
+        int packages = 1000;
+        // Packages that are bought; the loader leaves them out like the NOT EXISTS on acquired_packages
+        java.util.Set<Integer> sold = java.util.concurrent.ConcurrentHashMap.newKeySet();
+        List<Integer> afterIds = java.util.Collections.synchronizedList(new ArrayList<>());
+        PackageQueue queue = new PackageQueue(64, (conn, afterId, limit) -> {
+            afterIds.add(afterId);
+            List<Integer> ids = new ArrayList<>();
+            for (int id = afterId + 1; id <= packages && ids.size() < limit; id++) {
+                if (!sold.contains(id)) {
+                    ids.add(id);
+                }
+            }
+            return ids;
+        });
+
+        java.util.concurrent.atomic.AtomicInteger claimed = new java.util.concurrent.atomic.AtomicInteger();
+        List<Thread> buyers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread buyer = new Thread(() -> {
+                try {
+                    Integer id;
+                    while ((id = queue.claim(null)) != null) {
+                        claimed.incrementAndGet();
+                        // Stands in for lockUnsoldPackage: a package is sold at most once
+                        sold.add(id);
+                    }
+                } catch (java.sql.SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            buyers.add(buyer);
+            buyer.start();
+        }
+        for (Thread buyer : buyers) {
+            buyer.join();
+        }
+        assertEquals(packages, sold.size());
+        // Ids are only handed out twice by the final rescan, for packages still being bought
+        assertTrue(claimed.get() - packages <= 8 * 64, "claimed " + claimed.get());
+        // 16 batches along the keyset, never the same range twice
+        List<Integer> expected = new ArrayList<>();
+        for (int afterId = 0; afterId < packages; afterId += 64) {
+            expected.add(afterId);
+        }
+        assertEquals(expected, afterIds.subList(0, 16));
+
+        // A rolled back purchase puts its package first in line again
+        queue.giveBack(42);
+        assertEquals(42, queue.claim(null));
+
+        // Packages committed out of order: 200 is visible first, the bulk import 100-104 commits later
+        java.util.NavigableSet<Integer> committed = new java.util.concurrent.ConcurrentSkipListSet<>();
+        PackageQueue outOfOrder = new PackageQueue(64, (conn, afterId, limit) ->
+                committed.tailSet(afterId, false).stream().limit(limit).toList());
+        committed.add(200);
+        assertEquals(200, outOfOrder.claim(null));
+        committed.remove(200);
+        committed.addAll(List.of(100, 101, 102, 103, 104));
+        List<Integer> late = new ArrayList<>();
+        Integer id;
+        while ((id = outOfOrder.claim(null)) != null) {
+            late.add(id);
+            committed.remove(id);
+        }
+        assertEquals(List.of(100, 101, 102, 103, 104), late);
+    }
+
+    @Test
+    @DisplayName("44) setUserDeck: wrong size, duplicate or malformed ids are rejected before touching the database")
+    void testSetUserDeckValidation() {
+        String a = "845f0dc7-37d0-426e-994e-43fc3ac83c08";
+        String b = "99f8f8dc-e25e-4a95-aa2c-782823f36e2a";
+        String c = "e85e3976-7c86-4d06-9a80-641c2019a79f";
+        assertFalse(UserDatabase.setUserDeck("kienboec", List.of(a, b, c), 4));
+        assertFalse(UserDatabase.setUserDeck("kienboec", List.of(a, b, c, a), 4));
+        assertFalse(UserDatabase.setUserDeck("kienboec", List.of(a, b, c, "not-a-uuid"), 4));
+        assertFalse(UserDatabase.setUserDeck("kienboec", null, 4));
+    }
+
+    @Test
+    @DisplayName("45) Battle: rounds only move cards in memory, the net transfers are stored at the end")
+    void testBattleNetTransfers() {
+        Card goblin = new MonsterCard("845f0dc7-37d0-426e-994e-43fc3ac83c08", "WaterGoblin", 10.0, "water");
+        Card dragon = new MonsterCard("99f8f8dc-e25e-4a95-aa2c-782823f36e2a", "Dragon", 50.0, "fire");
+        Card spell = new SpellCard("e85e3976-7c86-4d06-9a80-641c2019a79f", "WaterSpell", 20.0, "water");
+        Player alice = new Player("alice", List.of(goblin, spell), null);
+        Player bob = new Player("bob", List.of(dragon), null);
+        Battle battle = new Battle(alice, bob);
+
+        // Goblin is afraid of the dragon: goblin goes to bob
+        assertTrue(battle.applySpecialRules(goblin, dragon));
+        // Spell goes to bob, then back to alice
+        bob.addCard(spell);
+        alice.removeCard(spell);
+        alice.addCard(spell);
+        bob.removeCard(spell);
+
+        List<Battle.CardTransfer> transfers = battle.netTransfers();
+        assertEquals(1, transfers.size());
+        assertEquals(goblin.getId(), transfers.get(0).getCardId());
+        assertEquals("alice", transfers.get(0).getFromUser());
+        assertEquals("bob", transfers.get(0).getToUser());
+    }
+
+    @Test
+    @DisplayName("46) StatsAggregator: deltas are merged per user, visible until committed and kept when a flush fails")
+    void testStatsAggregator() throws Exception {
+        java.util.Map<String, StatsAggregator.Delta> database = new java.util.concurrent.ConcurrentHashMap<>();
+        boolean[] failing = {false};
+        StatsAggregator stats = new StatsAggregator(60_000, 3, (deltas, commitStep) -> {
+            if (failing[0]) {
+                throw new java.sql.SQLException("database down");
+            }
+            commitStep.commit(() -> deltas.forEach((user, delta) -> database.merge(user, delta,
+                    (a, b) -> new StatsAggregator.Delta(a.getElo() + b.getElo(), a.getGamesPlayed() + b.getGamesPlayed()))));
+        });
+
+        stats.add("alice", 3, 1);
+        stats.add("bob", -5, 1);
+        stats.add("alice", 3, 1);
+        assertEquals(6, stats.pendingDelta("alice").getElo());
+        assertEquals(2, stats.pendingDelta("alice").getGamesPlayed());
+
+        failing[0] = true;
+        assertFalse(stats.flush());
+        assertEquals(-5, stats.pendingDelta("bob").getElo());
+        assertTrue(database.isEmpty());
+
+        failing[0] = false;
+        assertTrue(stats.flush());
+        assertEquals(0, stats.pendingDelta("alice").getElo());
+        assertEquals(6, database.get("alice").getElo());
+        assertEquals(1, database.get("bob").getGamesPlayed());
+
+        // Enough users with pending deltas wake the background flush before the interval
+        stats.start();
+        stats.add("carol", 3, 1);
+        stats.add("dave", -5, 1);
+        stats.add("erin", 0, 1);
+        for (int i = 0; i < 200 && stats.pendingUsers() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, stats.pendingUsers());
+        assertEquals(-5, database.get("dave").getElo());
+
+        stats.add("alice", -5, 1);
+        stats.close();
+        assertEquals(1, database.get("alice").getElo());
+
+        // ELO is clamped at 0 after every battle: from 2, a loss and then a win give 3, not 0
+        StatsAggregator unflushed = new StatsAggregator(60_000, 100, (deltas, commitStep) -> {
+            throw new java.sql.SQLException("database down");
+        });
+        Leaderboard board = new Leaderboard();
+        int[][] battles = {{-5, 3}, {3, -5, -5, 3}, {-5, -5, 3, 3, -5}};
+        for (int b = 0; b < battles.length; b++) {
+            String username = "zoe" + b;
+            board.put(username, 2, 0);
+            for (int i = 0; i < battles[b].length; i++) {
+                unflushed.add(username, battles[b][i], 1);
+                board.adjust(username, battles[b][i], 1);
+                // A failed flush puts the deltas back in front of the ones added afterwards
+                if (i == 0) {
+                    assertFalse(unflushed.flush());
+                }
+            }
+            assertEquals(board.entry(username).getElo(), unflushed.pendingDelta(username).applyTo(2));
+        }
+        assertEquals(3, new StatsAggregator.Delta(-5, 1).plus(new StatsAggregator.Delta(3, 1)).applyTo(2));
+    }
+
+    @Test
+    @DisplayName("47) Leaderboard: ranks and pages match a fully sorted scoreboard after random updates")
+    void testLeaderboard() {
+        Leaderboard board = new Leaderboard();
+        board.reset(List.of(new Leaderboard.Entry(0, "alice", 100, 0), new Leaderboard.Entry(0, "bob", 120, 2)));
+        board.put("carol", 100, 1);
+        assertEquals(1, board.entry("bob").getRank());
+        // Same ELO: ordered by username
+        assertEquals(2, board.entry("alice").getRank());
+        assertEquals(3, board.entry("carol").getRank());
+
+        board.adjust("carol", 3, 1);
+        assertEquals(2, board.entry("carol").getRank());
+        assertEquals(2, board.entry("carol").getGamesPlayed());
+        board.adjust("alice", -500, 1);
+        assertEquals(0, board.entry("alice").getElo());
+        board.adjust("nobody", 3, 1);
+        assertNull(board.entry("nobody"));
+
+        board.remove("bob");
+        assertEquals(2, board.size());
+        assertEquals("carol", board.page(0, 10).get(0).getUsername());
+        assertTrue(board.page(5, 10).isEmpty());
+
+        java.util.Random random = new java.util.Random(47);
+        java.util.Map<String, Integer> elo = new java.util.HashMap<>();
+        board.reset(List.of());
+        for (int i = 0; i < 2000; i++) {
+            String username = "user" + random.nextInt(300);
+            int action = random.nextInt(10);
+            if (action == 0) {
+                board.remove(username);
+                elo.remove(username);
+            } else if (action < 4 || !elo.containsKey(username)) {
+                int value = random.nextInt(50);
+                board.put(username, value, 0);
+                elo.put(username, value);
+            } else {
+                int delta = random.nextBoolean() ? 3 : -5;
+                board.adjust(username, delta, 1);
+                elo.put(username, Math.max(0, elo.get(username) + delta));
+            }
+        }
+        List<String> expected = new ArrayList<>(elo.keySet());
+        expected.sort(java.util.Comparator.comparing((String u) -> -elo.get(u)).thenComparing(u -> u));
+        assertEquals(expected.size(), board.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(i + 1, board.entry(expected.get(i)).getRank());
+        }
+        List<Leaderboard.Entry> page = board.page(17, 25);
+        for (int i = 0; i < page.size(); i++) {
+            assertEquals(expected.get(17 + i), page.get(i).getUsername());
+            assertEquals(18 + i, page.get(i).getRank());
+        }
+    }
+
+    @Test
+    @DisplayName("48) Listings: page parameters are validated and streamed arrays are framed as chunks")
+    void testStreamedListing() throws Exception {
+        assertNull(ClientHandler.Page.parse(null, null));
+        ClientHandler.Page first = ClientHandler.Page.parse(null, "10");
+        assertEquals(Storage.FIRST_KEY, first.after());
+        assertEquals(10, first.limit());
+        String id = java.util.UUID.randomUUID().toString();
+        assertEquals(id, ClientHandler.Page.parse(id, null).after().toString());
+        assertEquals(ServerConfig.PAGE_DEFAULT_LIMIT, ClientHandler.Page.parse(id, null).limit());
+        assertThrows(IllegalArgumentException.class, () -> ClientHandler.Page.parse("not-a-uuid", "10"));
+        assertThrows(IllegalArgumentException.class, () -> ClientHandler.Page.parse(null, "0"));
+        assertThrows(IllegalArgumentException.class, () -> ClientHandler.Page.parse(null, "many"));
+
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        HttpResponse response = new HttpResponse(out);
+        response.setKeepAlive(true);
+        HttpResponse.JsonArrayStream stream = response.streamJsonArray(200, JsonCodec.STREAM_ELEMENT_WRITER);
+        assertFalse(stream.isStarted());
+        assertEquals(0, out.size());
+        for (int i = 0; i < 2000; i++) {
+            stream.write(new Leaderboard.Entry(i + 1, "user" + i, 100, i));
+        }
+        stream.finish();
+
+        String raw = out.toString(StandardCharsets.UTF_8);
+        int bodyStart = raw.indexOf("\r\n\r\n") + 4;
+        assertTrue(raw.substring(0, bodyStart).contains("Transfer-Encoding: chunked"));
+        assertFalse(raw.substring(0, bodyStart).contains("Content-Length"));
+        StringBuilder body = new StringBuilder();
+        int chunks = 0;
+        int pos = bodyStart;
+        while (true) {
+            int lineEnd = raw.indexOf("\r\n", pos);
+            int size = Integer.parseInt(raw.substring(pos, lineEnd), 16);
+            if (size == 0) {
+                assertEquals(raw.length(), lineEnd + 4);
+                break;
+            }
+            body.append(raw, lineEnd + 2, lineEnd + 2 + size);
+            pos = lineEnd + 2 + size + 2;
+            chunks++;
+        }
+        assertTrue(chunks > 1, "large arrays are sent in several chunks");
+        List<?> entries = JsonCodec.STRING_LIST_READER.forType(List.class).readValue(body.toString());
+        assertEquals(2000, entries.size());
+        assertEquals(body.length(), response.bodyBytes());
+        assertTrue(response.isKeepAlive());
+
+        // Empty listing and a body that is cut off after a failure
+        out.reset();
+        response.streamJsonArray(200, JsonCodec.STREAM_ELEMENT_WRITER).finish();
+        assertTrue(out.toString(StandardCharsets.UTF_8).endsWith("\r\n\r\n2\r\n[]\r\n0\r\n\r\n"));
+        out.reset();
+        HttpResponse.JsonArrayStream broken = response.streamJsonArray(200, JsonCodec.STREAM_ELEMENT_WRITER);
+        broken.write(new Leaderboard.Entry(1, "alice", 100, 0));
+        broken.abort();
+        assertFalse(response.isKeepAlive());
+        assertFalse(out.toString(StandardCharsets.UTF_8).endsWith("0\r\n\r\n"));
+    }
+
+    @Test
+    @DisplayName("49) SchemaManager: migrations load in order, split into statements and seq scans are detected")
+    void testSchemaManager() {
+        List<SchemaManager.Migration> migrations = SchemaManager.loadMigrations();
+        assertEquals(SchemaManager.MIGRATIONS.size(), migrations.size());
+        assertEquals(1, migrations.get(0).version());
+        assertEquals("base schema", migrations.get(0).description());
+        assertTrue(migrations.get(0).statements().stream().anyMatch(sql -> sql.startsWith("CREATE TABLE IF NOT EXISTS users")));
+        String indexes = String.join("\n", migrations.get(1).statements());
+        assertTrue(indexes.contains("ON users (token)"));
+        assertTrue(indexes.contains("ON user_cards (username, card_id)"));
+        assertTrue(indexes.contains("ON decks (username, card_id)"));
+        assertTrue(indexes.contains("ON acquired_packages (package_id)"));
+        // Duplicates from before versioning are removed before the unique indexes are created
+        List<String> v2 = migrations.get(1).statements();
+        int lastDelete = 0;
+        for (int i = 0; i < v2.size(); i++) {
+            if (v2.get(i).startsWith("DELETE FROM")) {
+                lastDelete = i;
+            }
+        }
+        assertTrue(lastDelete > 0);
+        assertTrue(v2.subList(0, lastDelete).stream().noneMatch(sql -> sql.startsWith("CREATE UNIQUE INDEX")));
+
+        List<String> statements = SchemaManager.splitStatements(
+                "-- comment\nCREATE TABLE a (\n  x INT\n);\n\nCREATE INDEX b ON a (x);\nSELECT 1");
+        assertEquals(List.of("CREATE TABLE a (\n  x INT\n)", "CREATE INDEX b ON a (x)", "SELECT 1"), statements);
+
+        SchemaManager.Migration parsed = SchemaManager.Migration.parse("V12__add_things.sql", "SELECT 1;\n");
+        assertEquals(12, parsed.version());
+        assertEquals(parsed.checksum(), SchemaManager.Migration.parse("V12__add_things.sql", "SELECT 1;\r\n").checksum());
+        assertNotEquals(parsed.checksum(), SchemaManager.Migration.parse("V12__add_things.sql", "SELECT 2;\n").checksum());
+        assertThrows(IllegalStateException.class, () -> SchemaManager.Migration.parse("add_things.sql", ""));
+
+        assertNull(SchemaManager.findSeqScan(List.of(
+                "Index Only Scan using users_token_idx on users  (cost=0.12..8.14 rows=1 width=32)",
+                "  Index Cond: (token = 'x'::text)")));
+        assertEquals("Seq Scan on decks", SchemaManager.findSeqScan(List.of(
+                "Seq Scan on decks  (cost=10000000000.00..10000000025.88 rows=6 width=16)",
+                "  Filter: (username = 'x'::text)")));
+    }
+
+    @Test
+    @DisplayName("50) Trading: the rows of the locking query and the swap are mapped to the right trade result")
+    void testTradeResultMapping() throws Exception {
+        String dealCard = java.util.UUID.randomUUID().toString();
+        String strongCard = java.util.UUID.randomUUID().toString();
+        String weakCard = java.util.UUID.randomUUID().toString();
+        CardCatalog.register(List.of(new MonsterCard(strongCard, "Dragon", 50.0, "fire"),
+                new MonsterCard(weakCard, "Goblin", 5.0, "water")));
+        java.util.Map<String, Object> deal = new java.util.HashMap<>();
+        deal.put("id", java.util.UUID.randomUUID().toString());
+        deal.put("owner", "alice");
+        deal.put("card_to_trade", dealCard);
+        deal.put("required_type", "monster");
+        deal.put("minimum_damage", 10.0);
+        deal.put("offer_available", true);
+        java.util.Map<String, Object> blocked = new java.util.HashMap<>(deal);
+        blocked.put("offer_available", false);
+        String dealId = (String) deal.get("id");
+
+        // Malformed ids are rejected before any statement runs (card: 403, deal: 409)
+        CannedTradeConnection unused = new CannedTradeConnection(deal, 2, 1);
+        assertEquals(TradingDatabase.TradeResult.FORBIDDEN,
+                TradingDatabase.acceptTradingDeal(unused.connect(), dealId, "bob", "no-uuid"));
+        assertEquals(TradingDatabase.TradeResult.FORBIDDEN,
+                TradingDatabase.acceptTradingDeal(unused.connect(), "no-uuid", "bob", null));
+        assertEquals(TradingDatabase.TradeResult.NOT_FOUND,
+                TradingDatabase.acceptTradingDeal(unused.connect(), "no-uuid", "bob", strongCard));
+        assertEquals(0, unused.statements);
+
+        Object[][] cases = {
+                // deal row, moved, removed, buyer, offered card, expected result
+                {null, 2, 1, "bob", strongCard, TradingDatabase.TradeResult.NOT_FOUND},
+                {blocked, 2, 1, "bob", strongCard, TradingDatabase.TradeResult.FORBIDDEN},
+                {deal, 2, 1, "alice", strongCard, TradingDatabase.TradeResult.FORBIDDEN},
+                {deal, 2, 1, "bob", weakCard, TradingDatabase.TradeResult.REQUIREMENTS_NOT_MET},
+                // The owner no longer has the card, or the deal was deleted meanwhile
+                {deal, 1, 1, "bob", strongCard, TradingDatabase.TradeResult.NOT_FOUND},
+                {deal, 2, 0, "bob", strongCard, TradingDatabase.TradeResult.NOT_FOUND},
+                {deal, 2, 1, "bob", strongCard, TradingDatabase.TradeResult.ACCEPTED},
+        };
+        for (Object[] c : cases) {
+            @SuppressWarnings("unchecked")
+            CannedTradeConnection conn = new CannedTradeConnection((java.util.Map<String, Object>) c[0], (int) c[1], (int) c[2]);
+            assertEquals(c[5], TradingDatabase.acceptTradingDeal(conn.connect(), dealId, (String) c[3], (String) c[4]));
+            boolean accepted = c[5] == TradingDatabase.TradeResult.ACCEPTED;
+            assertEquals(accepted ? 1 : 0, conn.commits);
+            assertEquals(accepted ? 0 : 1, conn.rollbacks);
+            assertTrue(conn.autoCommit, "auto-commit is restored");
+        }
+    }
+
+    @Test
+    @DisplayName("51) TradeIndex: matches agree with the trade requirements and follow creates and accepts")
+    void testTradeIndex() throws Exception {
+        TradeIndex index = new TradeIndex();
+        TradingDeal fireMonster = tradingDeal("alice", "Monster", "fire", 30.0);
+        TradingDeal anySpell = tradingDeal("alice", "spell", null, null);
+        TradingDeal ownDeal = tradingDeal("bob", "monster", null, null);
+        index.reset(List.of(fireMonster, anySpell, ownDeal));
+
+        Card weakDragon = new MonsterCard("c1", "Dragon", 35.0, "fire");
+        Card strongDragon = new MonsterCard("c2", "Dragon", 90.0, "FIRE");
+        Card goblin = new MonsterCard("c3", "Goblin", 20.0, "fire");
+        Card waterSpell = new SpellCard("c4", "WaterSpell", 10.0, "water");
+        List<TradeIndex.Match> matches = index.matches("bob", List.of(strongDragon, goblin, weakDragon, waterSpell));
+        assertEquals(2, matches.size());
+        assertEquals(fireMonster.getId(), matches.get(0).getDeal().getId());
+        // The weakest card that satisfies the deal is offered
+        assertEquals("c1", matches.get(0).getCardId());
+        assertEquals("c4", matches.get(1).getCardId());
+        String json = JsonCodec.TRADE_MATCH_LIST_WRITER.writeValueAsString(matches);
+        assertTrue(json.contains("\"cardId\":\"c1\""));
+        assertTrue(json.contains("\"deal\":{"));
+
+        // An empty element means "any element" for the index and for accepting the deal alike
+        TradingDeal emptyElement = tradingDeal("alice", "monster", "", 10.0);
+        assertTrue(TradingDatabase.meetsRequirements(emptyElement, goblin));
+        TradeIndex single = new TradeIndex();
+        single.add(emptyElement);
+        assertEquals(1, single.matches("bob", List.of(goblin)).size());
+
+        index.remove(fireMonster.getId());
+        index.removeOwner("alice");
+        assertEquals(1, index.size());
+        assertTrue(index.matches("bob", List.of(strongDragon)).isEmpty());
+        assertEquals(1, index.matches("carol", List.of(goblin)).size());
+
+        // Randomized: the index finds exactly the deals a brute-force check with meetsRequirements finds
+        java.util.Random random = new java.util.Random(51);
+        String[] types = {"monster", "spell"};
+        String[] elements = {"fire", "water", "normal", null, ""};
+        List<TradingDeal> deals = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            deals.add(tradingDeal(random.nextBoolean() ? "alice" : "carol", types[random.nextInt(2)],
+                    elements[random.nextInt(5)], random.nextInt(4) == 0 ? null : (double) random.nextInt(100)));
+        }
+        index.reset(deals);
+        List<Card> cards = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String element = elements[random.nextInt(3)];
+            double damage = random.nextInt(100);
+            cards.add(random.nextBoolean() ? new MonsterCard("m" + i, "Monster", damage, element)
+                    : new SpellCard("s" + i, "Spell", damage, element));
+        }
+        java.util.Map<String, String> found = new java.util.HashMap<>();
+        for (TradeIndex.Match match : index.matches("carol", cards)) {
+            found.put(match.getDeal().getId(), match.getCardId());
+        }
+        for (TradingDeal deal : deals) {
+            Card weakest = null;
+            for (Card card : cards) {
+                if (!deal.getOwner().equals("carol") && TradingDatabase.meetsRequirements(deal, card)
+                        && (weakest == null || card.getDamage() < weakest.getDamage())) {
+                    weakest = card;
+                }
+            }
+            if (weakest == null) {
+                assertFalse(found.containsKey(deal.getId()));
+            } else {
+                assertEquals(weakest.getDamage(), cardDamage(cards, found.get(deal.getId())));
+            }
+        }
+    }
+
+    private static TradingDeal tradingDeal(String owner, String type, String element, Double minimumDamage) {
+        TradingDeal deal = new TradingDeal();
+        deal.setOwner(owner);
+        deal.setCardToTrade(java.util.UUID.randomUUID().toString());
+        deal.setRequiredType(type);
+        deal.setRequiredElement(element);
+        deal.setMinimumDamage(minimumDamage);
+        return deal;
+    }
+
+    private static double cardDamage(List<Card> cards, String cardId) {
+        return cards.stream().filter(c -> c.getId().equals(cardId)).findFirst().orElseThrow().getDamage();
+    }
+
+    @Test
+    @DisplayName("52) Storage: the in-memory engine fulfils the storage contract, also under concurrency")
+    void testInMemoryStorage() throws Exception {
+        storageContract(new InMemoryStorage());
+
+        // 30 buyers with money for 2 packages each race for 40 packages: every package is sold once
+        InMemoryStorage storage = new InMemoryStorage(4);
+        for (int i = 0; i < 40; i++) {
+            assertTrue(storage.packages().createPackage(randomPackage()));
+        }
+        List<String> buyers = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            buyers.add("buyer" + i);
+            storage.users().createUser("buyer" + i, "pw");
+            storage.users().updateUserCoins("buyer" + i, 10);
+        }
+        java.util.concurrent.atomic.AtomicInteger sold = new java.util.concurrent.atomic.AtomicInteger();
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(8);
+        try {
+            List<java.util.concurrent.Future<?>> purchases = new ArrayList<>();
+            for (String buyer : buyers) {
+                for (int i = 0; i < 3; i++) {
+                    purchases.add(pool.submit(() -> {
+                        if (storage.packages().purchasePackage(buyer)) {
+                            sold.incrementAndGet();
+                        }
+                    }));
+                }
+            }
+            for (java.util.concurrent.Future<?> purchase : purchases) {
+                purchase.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(40, sold.get());
+        java.util.Set<String> owned = new java.util.HashSet<>();
+        for (String buyer : buyers) {
+            User user = storage.users().getUser(buyer);
+            List<Card> stack = storage.cards().getUserCards(buyer);
+            assertEquals(10 - user.getCoins(), stack.size(), "5 coins per package of 5 cards");
+            stack.forEach(card -> assertTrue(owned.add(card.getId()), "card sold twice: " + card.getId()));
+        }
+        assertEquals(200, owned.size());
+    }
+
+    @Test
+    @DisplayName("53) Storage: the JDBC engine fulfils the storage contract (needs PostgreSQL, -Dmctg.test.jdbc=true)")
+    void testJdbcStorage() throws Exception {
+        Assumptions.assumeTrue(Boolean.getBoolean("mctg.test.jdbc"), "no database configured for this run");
+        JdbcStorage storage = new JdbcStorage();
+        storage.start();
+        storageContract(storage);
+    }
+
+    /**
+     * Behaviour every {@link Storage} must show. Uses fresh user names and card ids, so it also runs
+     * against a database that already contains data (other unsold packages may be bought first).
+     */
+    private static void storageContract(Storage storage) throws Exception {
+        String suffix = java.util.UUID.randomUUID().toString().substring(0, 8);
+        String alice = "alice-" + suffix;
+        String bob = "bob-" + suffix;
+        Storage.UserRepository users = storage.users();
+
+        // Accounts and tokens
+        assertTrue(users.createUser(alice, "secret"));
+        assertFalse(users.createUser(alice, "other"));
+        assertTrue(users.createUser(bob, "pw"));
+        assertTrue(users.authenticateUser(alice, "secret"));
+        assertFalse(users.authenticateUser(alice, "wrong"));
+        assertTrue(users.updateToken(alice, alice + "-token"));
+        assertEquals(alice, users.getUsernameByToken(alice + "-token"));
+        assertFalse(users.getPrincipalByToken(alice + "-token").isAdmin());
+        assertTrue(users.updateToken(alice, alice + "-token2"));
+        assertNull(users.getPrincipalByToken(alice + "-token"));
+        assertTrue(users.updateToken(bob, bob + "-token"));
+        User fresh = users.getUser(alice);
+        assertEquals(20, fresh.getCoins());
+        assertEquals(100, fresh.getElo());
+        assertNull(users.getUser("nobody-" + suffix));
+        assertTrue(users.updateUserProfile(alice, "bio", ":-)"));
+        assertEquals("bio", users.getUser(alice).getBio());
+
+        // Packages: alice can afford 4, bob gets 1
+        List<Card> first = randomPackage();
+        assertTrue(storage.packages().createPackage(first));
+        assertFalse(storage.packages().createPackage(first), "card ids must be unique");
+        assertFalse(storage.packages().createPackage(first.subList(0, 4)));
+        List<PackageDatabase.ChunkResult> chunks = storage.packages().createPackages(
+                List.of(randomPackage(), randomPackage(), randomPackage(), first, randomPackage()), 3);
+        assertEquals(2, chunks.size());
+        assertTrue(chunks.get(0).isCreated());
+        assertFalse(chunks.get(1).isCreated(), "the chunk with the duplicate is rolled back");
+        assertTrue(storage.packages().createPackage(randomPackage()));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(storage.packages().purchasePackage(alice));
+        }
+        assertFalse(storage.packages().purchasePackage(alice), "no coins left");
+        assertEquals(0, users.getUser(alice).getCoins());
+        assertTrue(storage.packages().purchasePackage(bob));
+
+        // Stack: ids in canonical form, keyset pages in id order add up to the whole stack
+        Storage.CardRepository cards = storage.cards();
+        List<String> stack = new ArrayList<>();
+        cards.getUserCards(alice).forEach(card -> stack.add(card.getId()));
+        assertEquals(20, stack.size());
+        stack.forEach(id -> assertEquals(java.util.UUID.fromString(id).toString(), id));
+        List<String> paged = new ArrayList<>();
+        java.util.UUID after = Storage.FIRST_KEY;
+        List<Card> page;
+        while (!(page = cards.getUserCards(alice, after, 7)).isEmpty()) {
+            assertTrue(page.size() <= 7);
+            page.forEach(card -> paged.add(card.getId()));
+            after = java.util.UUID.fromString(page.get(page.size() - 1).getId());
+        }
+        List<String> sorted = new ArrayList<>(stack);
+        java.util.Collections.sort(sorted);
+        assertEquals(sorted, paged);
+        List<String> streamed = new ArrayList<>();
+        assertTrue(cards.streamUserCards(alice, card -> streamed.add(card.getId())));
+        assertEquals(new java.util.HashSet<>(stack), new java.util.HashSet<>(streamed));
+        assertTrue(cards.isCardOwnedByUser(alice, stack.get(0).toUpperCase()));
+        assertFalse(cards.isCardOwnedByUser(bob, stack.get(0)));
+
+        // Deck
+        Storage.DeckRepository decks = storage.decks();
+        List<String> deck = sorted.subList(0, ServerConfig.DECK_SIZE);
+        String bobCardId = cards.getUserCards(bob).get(0).getId();
+        List<String> foreign = new ArrayList<>(deck);
+        foreign.set(0, bobCardId);
+        List<String> duplicate = new ArrayList<>(deck);
+        duplicate.set(0, deck.get(1));
+        assertTrue(decks.getUserDeck(alice).isEmpty());
+        assertFalse(decks.setUserDeck(alice, foreign));
+        assertFalse(decks.setUserDeck(alice, duplicate));
+        assertFalse(decks.setUserDeck(alice, deck.subList(1, deck.size())));
+        assertTrue(decks.getUserDeck(alice).isEmpty(), "a rejected deck changes nothing");
+        assertTrue(decks.setUserDeck(alice, deck));
+        assertEquals(ServerConfig.DECK_SIZE, decks.getUserDeck(alice).size());
+        assertTrue(decks.isCardInDeck(alice, deck.get(0)));
+        assertEquals(20 - ServerConfig.DECK_SIZE, cards.getTradeableCards(alice).size());
+
+        // Trades: alice offers a tradeable card for any card at least as strong as bob's
+        Card bobCard = cards.getUserCards(bob).get(0);
+        String aliceCardId = sorted.get(sorted.size() - 1);
+        TradingDeal deal = new TradingDeal();
+        deal.setOwner(alice);
+        deal.setCardToTrade(aliceCardId);
+        deal.setRequiredType(bobCard.getType());
+        deal.setMinimumDamage(bobCard.getDamage());
+        TradingDeal outOfReach = new TradingDeal();
+        outOfReach.setOwner(alice);
+        outOfReach.setCardToTrade(sorted.get(sorted.size() - 2));
+        outOfReach.setRequiredType(bobCard.getType());
+        outOfReach.setMinimumDamage(bobCard.getDamage() + 1000);
+        Storage.TradeRepository trades = storage.trades();
+        assertTrue(trades.createTradingDeal(deal));
+        assertFalse(trades.createTradingDeal(deal), "deal ids must be unique");
+        assertTrue(trades.createTradingDeal(outOfReach));
+        List<String> open = new ArrayList<>();
+        assertTrue(trades.streamTradingDeals(d -> open.add(d.getId())));
+        assertTrue(open.containsAll(List.of(deal.getId(), outOfReach.getId())));
+        List<String> matched = new ArrayList<>();
+        trades.findMatches(bob).forEach(match -> matched.add(match.getDeal().getId()));
+        assertTrue(matched.contains(deal.getId()));
+        assertFalse(matched.contains(outOfReach.getId()));
+        assertTrue(trades.findMatches(alice).stream().noneMatch(match -> match.getDeal().getOwner().equals(alice)));
+
+        assertEquals(TradingDatabase.TradeResult.FORBIDDEN, trades.acceptTradingDeal(deal.getId(), alice, sorted.get(5)));
+        assertEquals(TradingDatabase.TradeResult.FORBIDDEN, trades.acceptTradingDeal(deal.getId(), bob, sorted.get(5)));
+        assertEquals(TradingDatabase.TradeResult.REQUIREMENTS_NOT_MET,
+                trades.acceptTradingDeal(outOfReach.getId(), bob, bobCard.getId()));
+        assertEquals(TradingDatabase.TradeResult.NOT_FOUND,
+                trades.acceptTradingDeal(java.util.UUID.randomUUID().toString(), bob, bobCard.getId()));
+        assertEquals(TradingDatabase.TradeResult.NOT_FOUND, trades.acceptTradingDeal("no-uuid", bob, bobCard.getId()));
+        // A malformed card id cannot be owned by the buyer
+        assertEquals(TradingDatabase.TradeResult.FORBIDDEN, trades.acceptTradingDeal(deal.getId(), bob, "no-uuid"));
+        assertEquals(TradingDatabase.TradeResult.FORBIDDEN, trades.acceptTradingDeal("no-uuid", bob, "no-uuid"));
+        assertEquals(TradingDatabase.TradeResult.ACCEPTED, trades.acceptTradingDeal(deal.getId(), bob, bobCard.getId()));
+        assertEquals(TradingDatabase.TradeResult.NOT_FOUND, trades.acceptTradingDeal(deal.getId(), bob, bobCard.getId()));
+        assertTrue(cards.isCardOwnedByUser(bob, aliceCardId));
+        assertTrue(cards.isCardOwnedByUser(alice, bobCard.getId()));
+
+        // Two buyers racing for one deal: exactly one trade, the other finds the deal gone
+        String carol = "carol-" + suffix;
+        assertTrue(users.createUser(carol, "pw"));
+        assertTrue(storage.packages().createPackage(randomPackage()));
+        assertTrue(storage.packages().purchasePackage(carol));
+        Card bobOffer = cards.getUserCards(bob).stream()
+                .filter(card -> card instanceof MonsterCard && !card.getId().equals(bobCard.getId()))
+                .findFirst().orElseThrow();
+        Card carolOffer = cards.getUserCards(carol).stream()
+                .filter(card -> card instanceof MonsterCard).findFirst().orElseThrow();
+        String racedCardId = sorted.get(sorted.size() - 3);
+        TradingDeal raced = new TradingDeal();
+        raced.setOwner(alice);
+        raced.setCardToTrade(racedCardId);
+        raced.setRequiredType(bobOffer.getType());
+        raced.setMinimumDamage(0.0);
+        assertTrue(trades.createTradingDeal(raced));
+        java.util.concurrent.CyclicBarrier start = new java.util.concurrent.CyclicBarrier(2);
+        java.util.concurrent.ExecutorService buyers = java.util.concurrent.Executors.newFixedThreadPool(2);
+        try {
+            java.util.concurrent.Future<TradingDatabase.TradeResult> bobResult = buyers.submit(() -> {
+                start.await();
+                return trades.acceptTradingDeal(raced.getId(), bob, bobOffer.getId());
+            });
+            java.util.concurrent.Future<TradingDatabase.TradeResult> carolResult = buyers.submit(() -> {
+                start.await();
+                return trades.acceptTradingDeal(raced.getId(), carol, carolOffer.getId());
+            });
+            List<TradingDatabase.TradeResult> results = List.of(
+                    bobResult.get(10, java.util.concurrent.TimeUnit.SECONDS),
+                    carolResult.get(10, java.util.concurrent.TimeUnit.SECONDS));
+            assertEquals(1, results.stream().filter(r -> r == TradingDatabase.TradeResult.ACCEPTED).count());
+            assertEquals(1, results.stream().filter(r -> r == TradingDatabase.TradeResult.NOT_FOUND).count());
+            boolean bobWon = results.get(0) == TradingDatabase.TradeResult.ACCEPTED;
+            Card winnerOffer = bobWon ? bobOffer : carolOffer;
+            Card loserOffer = bobWon ? carolOffer : bobOffer;
+            assertTrue(cards.isCardOwnedByUser(bobWon ? bob : carol, racedCardId));
+            assertTrue(cards.isCardOwnedByUser(alice, winnerOffer.getId()));
+            assertTrue(cards.isCardOwnedByUser(bobWon ? carol : bob, loserOffer.getId()));
+        } finally {
+            buyers.shutdownNow();
+        }
+        List<TradingDeal> remaining = trades.getTradingDeals(Storage.FIRST_KEY, ServerConfig.PAGE_MAX_LIMIT);
+        assertTrue(remaining.stream().noneMatch(d -> d.getId().equals(deal.getId())));
+        assertTrue(remaining.stream().noneMatch(d -> d.getId().equals(raced.getId())));
+        assertTrue(remaining.stream().anyMatch(d -> d.getId().equals(outOfReach.getId())));
+
+        // Battles: +3 / -5 ELO, a draw only counts the game, won cards change owner
+        // aliceCardId was traded to bob: a result that still moves it away from alice is not stored at all
+        String bobStackCard = cards.getUserCards(bob).stream()
+                .filter(card -> !card.getId().equals(aliceCardId)).findFirst().orElseThrow().getId();
+        assertFalse(users.recordBattleResult(bob, alice, true, List.of(new Battle.CardTransfer(bobStackCard, bob, alice),
+                new Battle.CardTransfer(aliceCardId, alice, bob))));
+        assertTrue(cards.isCardOwnedByUser(bob, bobStackCard));
+        assertEquals(100, users.getUser(bob).getElo());
+        assertEquals(0, users.getUser(alice).getGamesPlayed());
+
+        assertTrue(users.recordBattleResult(alice, bob, true,
+                List.of(new Battle.CardTransfer(aliceCardId, bob, alice))));
+        assertTrue(users.recordBattleResult(alice, bob, false, List.of()));
+        User winner = users.getUser(alice);
+        User loser = users.getUser(bob);
+        assertEquals(103, winner.getElo());
+        assertEquals(95, loser.getElo());
+        assertEquals(2, winner.getGamesPlayed());
+        assertEquals(2, loser.getGamesPlayed());
+        assertTrue(cards.isCardOwnedByUser(alice, aliceCardId));
+        assertEquals(103, users.leaderboard().entry(alice).getElo());
+        assertTrue(users.leaderboard().entry(alice).getRank() < users.leaderboard().entry(bob).getRank());
+
+        // Deleting a user removes the account, the token and the open deals
+        assertTrue(users.deleteUser(alice));
+        assertFalse(users.deleteUser(alice));
+        assertNull(users.getUser(alice));
+        assertNull(users.getPrincipalByToken(alice + "-token2"));
+        assertNull(users.leaderboard().entry(alice));
+        List<String> afterDelete = new ArrayList<>();
+        trades.streamTradingDeals(d -> afterDelete.add(d.getId()));
+        assertFalse(afterDelete.contains(outOfReach.getId()));
+        assertTrue(users.deleteUser(bob));
+        assertTrue(users.deleteUser(carol));
+    }
+
+    private static List<Card> randomPackage() {
+        List<Card> cards = new ArrayList<>();
+        java.util.Random random = new java.util.Random();
+        for (int i = 0; i < PackageDatabase.PACKAGE_SIZE; i++) {
+            // Upper-case ids: the storage keeps them in canonical form
+            String id = java.util.UUID.randomUUID().toString().toUpperCase();
+            cards.add(i % 2 == 0 ? new MonsterCard(id, "Dragon", 10 + random.nextInt(90), "fire")
+                    : new SpellCard(id, "WaterSpell", 10 + random.nextInt(90), "water"));
+        }
+        return cards;
+    }
+
+    @Test
+    @DisplayName("54) NioServer: a persistent connection is closed after the maximum number of requests")
+    void testNioKeepAliveLimit() throws Exception {
+        int port;
+        try (java.net.ServerSocket probe = new java.net.ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        NioServer server = new NioServer(port, 2, 16);
+        Thread loop = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException ignored) {
+                // Socket closed when the JVM ends
+            }
+        }, "nio-test");
+        loop.setDaemon(true);
+        loop.start();
+
+        int limit = ServerConfig.MAX_KEEP_ALIVE_REQUESTS;
+        java.net.Socket socket = null;
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new java.net.Socket("localhost", port);
+            } catch (java.net.ConnectException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+        try (java.net.Socket client = socket) {
+            client.setSoTimeout(10_000);
+            // One request more than allowed, all pipelined
+            byte[] request = "GET / HTTP/1.1\r\nHost: x\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+            java.io.OutputStream out = client.getOutputStream();
+            for (int i = 0; i <= limit; i++) {
+                out.write(request);
+            }
+            out.flush();
+            String responses = new String(client.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+            assertEquals(limit, responses.split("HTTP/1.1 200", -1).length - 1);
+            assertEquals(1, responses.split("Connection: close", -1).length - 1);
+            assertTrue(responses.lastIndexOf("Connection: close") > responses.lastIndexOf("HTTP/1.1 200"));
+        }
+    }
+
+    @Test
+    @DisplayName("55) ResponseBuffer.Pool: buffers are shared across (virtual) threads, bounded and capped in size")
+    void testResponseBufferPool() throws Exception {
+        ResponseBuffer.Pool pool = new ResponseBuffer.Pool(2, 16, 64);
+        ResponseBuffer first = pool.acquire();
+        first.writeAscii("abc");
+        pool.release(first);
+        // Another (virtual) thread gets the same buffer back, emptied
+        ResponseBuffer[] reused = new ResponseBuffer[1];
+        Thread.ofVirtual().start(() -> reused[0] = pool.acquire()).join();
+        assertSame(first, reused[0]);
+        assertEquals(0, reused[0].size());
+        pool.release(reused[0]);
+
+        // Grown buffers are dropped
+        ResponseBuffer grown = pool.acquire();
+        grown.write(new byte[1000], 0, 1000);
+        pool.release(grown);
+        assertEquals(0, pool.available());
+
+        // No more than the pool size is kept
+        List<ResponseBuffer> many = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            many.add(pool.acquire());
+        }
+        many.forEach(pool::release);
+        assertEquals(2, pool.available());
+    }
+
+    @Test
+    @DisplayName("56) ResponseCompressor: pooled compressors are reused for both codings and the pool stays bounded")
+    void testResponseCompressorPool() throws Exception {
+        ResponseBuffer input = new ResponseBuffer(64);
+        input.writeAscii("{\"name\":\"Drachenfeuer\",\"damage\":50.0}".repeat(100));
+        byte[] expected = java.util.Arrays.copyOf(input.array(), input.size());
+
+        for (String encoding : List.of("gzip", "deflate", "gzip")) {
+            ResponseCompressor compressor = ResponseCompressor.acquire();
+            try {
+                ResponseBuffer compressed = compressor.compress(encoding, input);
+                java.io.InputStream raw = new java.io.ByteArrayInputStream(compressed.toByteArray());
+                try (java.io.InputStream in = encoding.equals("gzip") ? new java.util.zip.GZIPInputStream(raw)
+                        : new java.util.zip.InflaterInputStream(raw)) {
+                    assertArrayEquals(expected, in.readAllBytes());
+                }
+            } finally {
+                compressor.release();
+            }
+        }
+
+        List<ResponseCompressor> many = new ArrayList<>();
+        for (int i = 0; i < ServerConfig.COMPRESSOR_POOL_SIZE + 4; i++) {
+            many.add(ResponseCompressor.acquire());
+        }
+        many.forEach(ResponseCompressor::release);
+        assertEquals(ServerConfig.COMPRESSOR_POOL_SIZE, ResponseCompressor.pooled());
+    }
+
+    @Test
+    @DisplayName("57) Storage: memory mode serves requests and /metrics without initializing the database classes")
+    void testMemoryModeWithoutDatabase() throws Exception {
+        // Fresh copies of the server classes, so classes initialized by other tests do not count
+        IsolatedLoader loader = new IsolatedLoader(getClass().getClassLoader());
+        String previous = System.setProperty("mctg.storage", "memory");
+        try {
+            Class<?> scenario = loader.loadClass(MemoryModeScenario.class.getName());
+            @SuppressWarnings("unchecked")
+            java.util.concurrent.Callable<String> run =
+                    (java.util.concurrent.Callable<String>) scenario.getDeclaredConstructor().newInstance();
+            String metrics = run.call();
+            assertTrue(metrics.contains("mctg_memory_users 2"), metrics);
+            assertFalse(metrics.contains("mctg_db_pool"));
+        } finally {
+            if (previous == null) {
+                System.clearProperty("mctg.storage");
+            } else {
+                System.setProperty("mctg.storage", previous);
+            }
+        }
+        assertTrue(loader.isLoaded(ClientHandler.class.getName()));
+        assertTrue(loader.isLoaded(InMemoryStorage.class.getName()));
+        for (Class<?> jdbc : List.of(Database.class, ConnectionPool.class, UserDatabase.class)) {
+            assertFalse(loader.isLoaded(jdbc.getName()), jdbc.getSimpleName() + " must not be loaded in memory mode");
+        }
+    }
+
+    /**
+     * Registers users, creates and buys a package, pages the stack and reads /metrics through real
+     * connections; runs inside an {@link IsolatedLoader}.
+     */
+    public static class MemoryModeScenario implements java.util.concurrent.Callable<String> {
+        private int port;
+
+        @Override
+        public String call() throws Exception {
+            assertInstanceOf(InMemoryStorage.class, Storage.get());
+            try (java.net.ServerSocket server = new java.net.ServerSocket(0)) {
+                port = server.getLocalPort();
+                Thread acceptor = new Thread(() -> {
+                    try {
+                        while (true) {
+                            new ClientHandler(server.accept()).run();
+                        }
+                    } catch (IOException ignored) {
+                        // Server socket closed
+                    }
+                }, "memory-mode-test");
+                acceptor.setDaemon(true);
+                acceptor.start();
+
+                assertTrue(exchange("POST", "/users", null, "{\"Username\":\"admin\",\"Password\":\"istrator\"}")
+                        .startsWith("HTTP/1.1 201"));
+                assertTrue(exchange("POST", "/users", null, "{\"Username\":\"kienboec\",\"Password\":\"daniel\"}")
+                        .startsWith("HTTP/1.1 201"));
+                assertTrue(exchange("POST", "/sessions", null, "{\"Username\":\"admin\",\"Password\":\"istrator\"}")
+                        .startsWith("HTTP/1.1 200"));
+                assertTrue(exchange("POST", "/sessions", null, "{\"Username\":\"kienboec\",\"Password\":\"daniel\"}")
+                        .startsWith("HTTP/1.1 200"));
+                String cards = JsonCodec.CARD_LIST_WRITER.writeValueAsString(randomPackage());
+                assertTrue(exchange("POST", "/packages", "admin-mtcgToken", cards).startsWith("HTTP/1.1 201"));
+                assertTrue(exchange("POST", "/transactions/packages", "kienboec-mtcgToken", "")
+                        .startsWith("HTTP/1.1 200"));
+                // First page of a keyset listing
+                assertTrue(exchange("GET", "/cards?limit=2", "kienboec-mtcgToken", null).startsWith("HTTP/1.1 200"));
+                assertTrue(exchange("GET", "/tradings?limit=2", "kienboec-mtcgToken", null).startsWith("HTTP/1.1 200"));
+                return exchange("GET", "/metrics", null, null);
+            }
+        }
+
+        private String exchange(String method, String path, String token, String body) throws IOException {
+            byte[] content = (body == null) ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+            StringBuilder request = new StringBuilder(method).append(' ').append(path)
+                    .append(" HTTP/1.1\r\nHost: x\r\nConnection: close\r\n");
+            if (token != null) {
+                request.append("Authorization: Bearer ").append(token).append("\r\n");
+            }
+            if (body != null) {
+                request.append("Content-Type: application/json\r\nContent-Length: ").append(content.length).append("\r\n");
+            }
+            request.append("\r\n");
+            try (java.net.Socket socket = new java.net.Socket("localhost", port)) {
+                socket.setSoTimeout(10_000);
+                java.io.OutputStream out = socket.getOutputStream();
+                out.write(request.toString().getBytes(StandardCharsets.US_ASCII));
+                out.write(content);
+                out.flush();
+                return new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    /**
+     * Loads the classes of this project itself (child first) and everything else from the parent.
+     */
+    static class IsolatedLoader extends ClassLoader {
+        IsolatedLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith("at.technikum_wien.")) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded == null) {
+                    try (java.io.InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                        if (in == null) {
+                            throw new ClassNotFoundException(name);
+                        }
+                        byte[] bytes = in.readAllBytes();
+                        loaded = defineClass(name, bytes, 0, bytes.length);
+                    } catch (IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                }
+                if (resolve) {
+                    resolveClass(loaded);
+                }
+                return loaded;
+            }
+        }
+
+        boolean isLoaded(String name) {
+            return findLoadedClass(name) != null;
+        }
+    }
+
+    @Test
+    @DisplayName("58) SchemaManager: the index migration takes over a database with duplicate rows (needs PostgreSQL)")
+    void testMigrationOverDuplicates() throws Exception {
+        Assumptions.assumeTrue(Boolean.getBoolean("mctg.test.jdbc"), "no database configured for this run");
+        List<SchemaManager.Migration> migrations = SchemaManager.loadMigrations();
+        try (java.sql.Connection conn = Database.getConnection()) {
+            conn.setAutoCommit(false);
+            // Everything happens in a schema of its own and is rolled back at the end
+            try (java.sql.Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE SCHEMA mctg_migration_test");
+                stmt.execute("SET LOCAL search_path TO mctg_migration_test");
+                for (String sql : migrations.get(0).statements()) {
+                    stmt.execute(sql);
+                }
+                // Rows the code before schema versioning could leave behind
+                stmt.execute("INSERT INTO users (username, password) VALUES ('alice', 'x'), ('bob', 'x')");
+                stmt.execute("INSERT INTO cards (id, name, damage, type) VALUES "
+                        + "('00000000-0000-0000-0000-000000000001', 'Dragon', 50, 'Monster'), "
+                        + "('00000000-0000-0000-0000-000000000002', 'Goblin', 10, 'Monster')");
+                stmt.execute("INSERT INTO user_cards (username, card_id) VALUES "
+                        + "('alice', '00000000-0000-0000-0000-000000000001'), "
+                        + "('alice', '00000000-0000-0000-0000-000000000001'), "
+                        + "('alice', '00000000-0000-0000-0000-000000000002'), "
+                        + "('bob', '00000000-0000-0000-0000-000000000002')");
+                stmt.execute("INSERT INTO decks (username, card_id) VALUES "
+                        + "('alice', '00000000-0000-0000-0000-000000000001'), "
+                        + "('alice', '00000000-0000-0000-0000-000000000001'), "
+                        + "('bob', '00000000-0000-0000-0000-000000000002')");
+                stmt.execute("INSERT INTO packages (id) VALUES (1)");
+                stmt.execute("INSERT INTO acquired_packages (username, package_id) VALUES ('alice', 1), ('bob', 1)");
+
+                for (String sql : migrations.get(1).statements()) {
+                    stmt.execute(sql);
+                }
+
+                assertEquals(List.of("alice:00000000-0000-0000-0000-000000000001",
+                        "alice:00000000-0000-0000-0000-000000000002"),
+                        rows(stmt, "SELECT username || ':' || card_id FROM user_cards ORDER BY 1"));
+                assertEquals(List.of("alice:00000000-0000-0000-0000-000000000001"),
+                        rows(stmt, "SELECT username || ':' || card_id FROM decks ORDER BY 1"));
+                assertEquals(List.of("alice"), rows(stmt, "SELECT username FROM acquired_packages"));
+            } finally {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static List<String> rows(java.sql.Statement stmt, String query) throws java.sql.SQLException {
+        List<String> rows = new ArrayList<>();
+        try (java.sql.ResultSet rs = stmt.executeQuery(query)) {
+            while (rs.next()) {
+                rows.add(rs.getString(1));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Minimal JDBC driver whose connections only keep track of auto-commit, rollbacks, prepares and close.
+     */
+    static class FakeDriver implements java.sql.Driver {
+        static final String URL = "jdbc:mctgfake:test";
+        int opened;
+        int rollbacks;
+        int prepared;
+
+        @Override
+        public java.sql.Connection connect(String url, java.util.Properties info) {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            opened++;
+            boolean[] state = {true, false}; // autoCommit, closed
+            return (java.sql.Connection) java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{java.sql.Connection.class}, (proxy, method, args) -> switch (method.getName()) {
+                        case "getAutoCommit" -> state[0];
+                        case "setAutoCommit" -> { state[0] = (Boolean) args[0]; yield null; }
+                        case "rollback" -> { rollbacks++; yield null; }
+                        case "close" -> { state[1] = true; yield null; }
+                        case "isClosed" -> state[1];
+                        case "isValid" -> !state[1];
+                        case "prepareStatement" -> {
+                            prepared++;
+                            // Keeps what is set through setXxx(int) and returns it from getXxx(), 0 by default
+                            java.util.Map<String, Object> settings = new java.util.HashMap<>();
+                            yield java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+                                    new Class<?>[]{java.sql.PreparedStatement.class}, (p, m, a) -> {
+                                        if (m.getName().startsWith("set") && a != null && a.length == 1) {
+                                            settings.put(m.getName().substring(3), a[0]);
+                                        } else if (m.getName().startsWith("get") && m.getReturnType() == int.class) {
+                                            return settings.getOrDefault(m.getName().substring(3), 0);
+                                        }
+                                        return null;
+                                    });
+                        }
+                        default -> null;
+                    });
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:mctgfake:");
+        }
+
+        @Override
+        public java.sql.DriverPropertyInfo[] getPropertyInfo(String url, java.util.Properties info) {
+            return new java.sql.DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public java.util.logging.Logger getParentLogger() {
+            return java.util.logging.Logger.getGlobal();
+        }
+    }
+
+    /**
+     * Connection that answers the deal lock with a fixed row (or none) and the swap with fixed row
+     * counts. It does not interpret SQL or parameters; the race itself runs in {@link #storageContract}.
+     */
+    static class CannedTradeConnection {
+        private final java.util.Map<String, Object> dealRow;
+        private final int moved;
+        private final int removed;
+        int statements;
+        int commits;
+        int rollbacks;
+        boolean autoCommit = true;
+
+        CannedTradeConnection(java.util.Map<String, Object> dealRow, int moved, int removed) {
+            this.dealRow = dealRow;
+            this.moved = moved;
+            this.removed = removed;
+        }
+
+        java.sql.Connection connect() {
+            return (java.sql.Connection) java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{java.sql.Connection.class}, (proxy, method, args) -> switch (method.getName()) {
+                        case "setAutoCommit" -> { autoCommit = (Boolean) args[0]; yield null; }
+                        case "commit" -> { commits++; yield null; }
+                        case "rollback" -> { rollbacks++; yield null; }
+                        case "prepareStatement" -> {
+                            statements++;
+                            java.util.Map<String, Object> row = (statements == 1) ? dealRow : java.util.Map.of("1", moved, "2", removed);
+                            yield java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+                                    new Class<?>[]{java.sql.PreparedStatement.class},
+                                    (p, m, a) -> m.getName().equals("executeQuery") ? resultSet(row) : null);
+                        }
+                        default -> null;
+                    });
+        }
+
+        private java.sql.ResultSet resultSet(java.util.Map<String, Object> row) {
+            boolean[] read = {false};
+            return (java.sql.ResultSet) java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{java.sql.ResultSet.class}, (proxy, method, args) -> {
+                        Object value = (row != null && args != null && args.length == 1)
+                                ? row.get(String.valueOf(args[0])) : null;
+                        return switch (method.getName()) {
+                            case "next" -> {
+                                boolean hasRow = row != null && !read[0];
+                                read[0] = true;
+                                yield hasRow;
+                            }
+                            case "getString", "getInt", "getBoolean" -> value;
+                            case "getDouble" -> (value == null) ? 0.0 : value;
+                            default -> null;
+                        };
+                    });
+        }
+    }
 }